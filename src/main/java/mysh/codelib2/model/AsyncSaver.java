@@ -0,0 +1,157 @@
+package mysh.codelib2.model;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 后台保存.<br/>
+ * 保存请求在调用线程上取元素快照({@link CodeLib2Element#snapshot()}), 编码压缩和写文件在后台线程执行,
+ * 调用线程之后对元素的修改不影响本次保存.<br/>
+ * 后台线程忙时到达的多个请求, 同一文件只保留最新的一个, 旧快照不再写入; 不同文件按请求顺序依次写入.
+ *
+ * @author Allen
+ */
+public class AsyncSaver {
+	
+	private static final Logger log = LoggerFactory.getLogger(AsyncSaver.class);
+	
+	/**
+	 * 保存过程通知. 在后台保存线程上调用.
+	 */
+	public interface Listener {
+		
+		/**
+		 * 保存进度.
+		 *
+		 * @param percent 百分比.
+		 */
+		void onSaveProgress(File file, int percent);
+		
+		/**
+		 * 保存完成.
+		 *
+		 * @param tag 保存请求的标记, 见 {@link AsyncSaver#save(LibJournal, Collection, long)}.
+		 */
+		void onSaved(File file, long tag);
+		
+		/**
+		 * 保存失败.
+		 */
+		void onSaveFailed(File file, Exception e);
+	}
+	
+	private static class Request {
+		private final LibJournal journal;
+		private final List<CodeLib2Element> snapshot;
+		private final long tag;
+		
+		Request(LibJournal journal, List<CodeLib2Element> snapshot, long tag) {
+			this.journal = journal;
+			this.snapshot = snapshot;
+			this.tag = tag;
+		}
+	}
+	
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "AsyncSaver");
+		t.setDaemon(true);
+		return t;
+	});
+	
+	/**
+	 * 等待执行的请求, 按文件先后排列. 新请求覆盖同一文件尚未开始的旧请求.
+	 */
+	private final Map<File, Request> pending = new LinkedHashMap<>();
+	
+	/**
+	 * 上次 {@link #flush()} 之后保存失败, 且之后未再保存成功的文件. 与 pending 用同一个锁.
+	 */
+	private final Map<File, Exception> failures = new LinkedHashMap<>();
+	
+	private final Listener listener;
+	
+	public AsyncSaver(Listener listener) {
+		this.listener = listener;
+	}
+	
+	/**
+	 * 取快照并提交保存.
+	 *
+	 * @param journal 保存目标.
+	 * @param eles    数据集.
+	 * @param tag     请求标记, 保存完成时原样通知, 调用方可据此判断保存后是否又有修改.
+	 */
+	public void save(LibJournal journal, Collection<CodeLib2Element> eles, long tag) {
+		List<CodeLib2Element> snapshot = new ArrayList<>(eles.size());
+		for (CodeLib2Element ele : eles) {
+			snapshot.add(ele.snapshot());
+		}
+		
+		boolean idle;
+		synchronized (this.pending) {
+			idle = this.pending.isEmpty();
+			this.pending.put(journal.getFile().getAbsoluteFile(), new Request(journal, snapshot, tag));
+		}
+		if (idle)
+			this.executor.execute(this::drain);
+	}
+	
+	/**
+	 * 依次执行等待中的请求, 各文件只取最新的一个.
+	 */
+	private void drain() {
+		Request request;
+		while ((request = this.next()) != null) {
+			File file = request.journal.getFile();
+			try {
+				request.journal.save(request.snapshot, p -> this.listener.onSaveProgress(file, p));
+				synchronized (this.pending) {
+					this.failures.remove(file.getAbsoluteFile());
+				}
+				this.listener.onSaved(file, request.tag);
+			} catch (Exception e) {
+				log.error("saveFile-fail: " + file, e);
+				synchronized (this.pending) {
+					this.failures.put(file.getAbsoluteFile(), e);
+				}
+				this.listener.onSaveFailed(file, e);
+			}
+		}
+	}
+	
+	private Request next() {
+		synchronized (this.pending) {
+			Iterator<Request> it = this.pending.values().iterator();
+			if (!it.hasNext())
+				return null;
+			Request request = it.next();
+			it.remove();
+			return request;
+		}
+	}
+	
+	/**
+	 * 等待已提交的保存全部完成.
+	 *
+	 * @return 上次调用之后保存失败的文件及原因, 之后又保存成功的文件不在其中. 全部成功时为空.
+	 */
+	public Map<File, Exception> flush() throws Exception {
+		this.executor.submit(() -> {
+		}).get();
+		synchronized (this.pending) {
+			Map<File, Exception> failed = new LinkedHashMap<>(this.failures);
+			this.failures.clear();
+			return failed;
+		}
+	}
+}
@@ -0,0 +1,277 @@
+package mysh.codelib2.model;
+
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZInputStream;
+import org.tukaani.xz.XZOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static mysh.codelib2.model.CodeLib2Element.Attachment;
+
+/**
+ * 附件数据区.<br/>
+ * 附件内容按 SHA-256 去重, 每份内容只保存一次, 元素帧中的附件以序号引用数据区中的内容.
+ * 加载后引用同一内容的附件共用一份数据.<br/>
+ * 格式: [数量 int]{[SHA-256 32 字节][起始位置(相对文件头) long][压缩后长度 int]}...[数据...]
+ * 每份内容是独立的 xz 流.
+ *
+ * @author Allen
+ */
+final class BlobStore {
+	
+	private static final int HashLength = 32;
+	
+	/**
+	 * 表项长度.
+	 */
+	private static final int EntryLength = HashLength + 8 + 4;
+	
+	/**
+	 * 保存时收集附件内容并去重.
+	 */
+	static final class Builder {
+		
+		/**
+		 * 按内容对象(数组或内容存储位置)查序号, 已共用的内容不必再计算摘要.
+		 */
+		private final Map<Object, Integer> byContent = new IdentityHashMap<>();
+		private final Map<ByteBuffer, Integer> byHash = new HashMap<>();
+		private final List<Attachment> blobs = new ArrayList<>();
+		private final List<byte[]> hashes = new ArrayList<>();
+		private List<byte[]> compressed;
+		
+		void add(Attachment attachment) {
+			Object key = attachment.contentKey();
+			if (this.byContent.containsKey(key))
+				return;
+			
+			byte[] hash = sha256(attachment.binaryContentBuffer());
+			Integer index = this.byHash.get(ByteBuffer.wrap(hash));
+			if (index == null) {
+				index = this.blobs.size();
+				this.blobs.add(attachment);
+				this.hashes.add(hash);
+				this.byHash.put(ByteBuffer.wrap(hash), index);
+			}
+			this.byContent.put(key, index);
+		}
+		
+		/**
+		 * 附件内容的序号. 附件须已 {@link #add}.
+		 */
+		int indexOf(Attachment attachment) {
+			Integer index = this.byContent.get(attachment.contentKey());
+			if (index == null)
+				throw new IllegalStateException("attachment not added: " + attachment);
+			return index;
+		}
+		
+		/**
+		 * 不重复的内容数.
+		 */
+		int count() {
+			return this.blobs.size();
+		}
+		
+		/**
+		 * 压缩全部内容, 各份并行压缩. 须在 {@link #length()} 和 {@link #writeTo} 之前调用.
+		 *
+		 * @param onEach 每压缩完一份调用一次.
+		 */
+		void compress(Runnable onEach) throws IOException {
+			try {
+				this.compressed = IntStream.range(0, this.blobs.size()).parallel()
+						.mapToObj(i -> {
+							byte[] data = BlobStore.compress(this.blobs.get(i).getBinaryContent());
+							onEach.run();
+							return data;
+						})
+						.collect(Collectors.toList());
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		}
+		
+		/**
+		 * 数据区总长度.
+		 */
+		long length() {
+			long length = 4 + (long) EntryLength * this.compressed.size();
+			for (byte[] d : this.compressed) {
+				length += d.length;
+			}
+			return length;
+		}
+		
+		/**
+		 * 写数据区.
+		 *
+		 * @param offset 数据区在文件中的起始位置.
+		 */
+		void writeTo(DataOutputStream out, long offset) throws IOException {
+			long pos = offset + 4 + (long) EntryLength * this.compressed.size();
+			out.writeInt(this.compressed.size());
+			for (int i = 0; i < this.compressed.size(); i++) {
+				out.write(this.hashes.get(i));
+				out.writeLong(pos);
+				out.writeInt(this.compressed.get(i).length);
+				pos += this.compressed.get(i).length;
+			}
+			for (byte[] d : this.compressed) {
+				out.write(d);
+			}
+		}
+	}
+	
+	/**
+	 * 数据区中的一份内容.
+	 */
+	private static final class Blob {
+		private final long offset;
+		private final int length;
+		
+		/**
+		 * 压缩数据. 从流读取时已在内存中, 从文件打开时为 null, 首次使用时读取.
+		 */
+		private byte[] compressed;
+		
+		/**
+		 * 解压后的内容, byte[] 或 {@link MappedContentStore.Ref}.
+		 */
+		private Object content;
+		
+		Blob(long offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+	
+	private final File file;
+	private final Blob[] blobs;
+	private final MappedContentStore store;
+	
+	private BlobStore(File file, Blob[] blobs, MappedContentStore store) {
+		this.file = file;
+		this.blobs = blobs;
+		this.store = store;
+	}
+	
+	/**
+	 * 读数据区表.
+	 *
+	 * @param file  内容按需从此文件读取. 为 null 时须随后调用 {@link #readData}.
+	 * @param store 内容存储, 为 null 时内容留在堆中.
+	 */
+	static BlobStore readTable(DataInputStream in, File file, MappedContentStore store) throws IOException {
+		int count = in.readInt();
+		if (count < 0)
+			throw new IOException("bad blob count: " + count);
+		
+		Blob[] blobs = new Blob[count];
+		for (int i = 0; i < count; i++) {
+			in.readFully(new byte[HashLength]);
+			long offset = in.readLong();
+			int length = in.readInt();
+			if (length < 0)
+				throw new IOException("bad blob length: " + length);
+			blobs[i] = new Blob(offset, length);
+		}
+		return new BlobStore(file, blobs, store);
+	}
+	
+	/**
+	 * 顺序读入全部压缩数据.
+	 */
+	void readData(DataInputStream in) throws IOException {
+		for (Blob blob : this.blobs) {
+			blob.compressed = new byte[blob.length];
+			in.readFully(blob.compressed);
+		}
+	}
+	
+	/**
+	 * 生成引用数据区内容的附件.
+	 */
+	Attachment attachment(String name, int index) throws IOException {
+		if (index < 0 || index >= this.blobs.length)
+			throw new IOException("bad blob index: " + index);
+		
+		Object content = content(this.blobs[index]);
+		Attachment attachment = new Attachment().setName(name);
+		if (content instanceof MappedContentStore.Ref)
+			return attachment.setMappedContent((MappedContentStore.Ref) content);
+		return attachment.setBinaryContent((byte[]) content);
+	}
+	
+	private Object content(Blob blob) throws IOException {
+		synchronized (blob) {
+			if (blob.content == null) {
+				byte[] compressed = blob.compressed;
+				if (compressed == null) {
+					compressed = new byte[blob.length];
+					try (RandomAccessFile raf = new RandomAccessFile(this.file, "r")) {
+						raf.seek(blob.offset);
+						raf.readFully(compressed);
+					}
+				}
+				
+				byte[] data = decompress(compressed);
+				MappedContentStore.Ref ref = this.store == null ? null : this.store.put(data);
+				blob.content = ref != null ? ref : data;
+				blob.compressed = null;
+			}
+			return blob.content;
+		}
+	}
+	
+	private static byte[] compress(byte[] data) {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			XZOutputStream xzOut = new XZOutputStream(out, new LZMA2Options());
+			xzOut.write(data);
+			xzOut.finish();
+			return out.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	private static byte[] decompress(byte[] data) throws IOException {
+		try (XZInputStream in = new XZInputStream(new ByteArrayInputStream(data))) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 2);
+			byte[] buf = new byte[8192];
+			int len;
+			while ((len = in.read(buf)) > 0) {
+				out.write(buf, 0, len);
+			}
+			return out.toByteArray();
+		}
+	}
+	
+	private static byte[] sha256(ByteBuffer data) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(data);
+			return md.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package mysh.codelib2.model;
+
+import java.util.List;
+
+/**
+ * BM25 匹配度.<br/>
+ * 字段为关键字, 正文(内容和文本附件)与附件名, 各字段按权重合并词频(BM25F), 关键字和正文按库中平均长度归一.
+ * 词频使用匹配时得到的计数, 不再扫描. 关键字的文档频率由搜索索引估计, 无法估计时取库中元素数的一半.
+ *
+ * @author Allen
+ */
+final class Bm25Scorer {
+	
+	private static final double K1 = 1.2;
+	private static final double B = 0.75;
+	
+	private static final double KeywordWeight = 3;
+	private static final double BodyWeight = 1;
+	private static final double AttachmentNameWeight = 2;
+	
+	/**
+	 * 匹配度的放大倍数, 匹配度取整数.
+	 */
+	private static final int Scale = 100;
+	
+	/**
+	 * 库的统计数据. 元素有修改或增减后须重新统计.
+	 */
+	static final class Stats {
+		private final long version;
+		private final int libSize;
+		private final int count;
+		private final double avgKeywordLength, avgBodyLength;
+		
+		private Stats(long version, int libSize, int count, double avgKeywordLength, double avgBodyLength) {
+			this.version = version;
+			this.libSize = libSize;
+			this.count = count;
+			this.avgKeywordLength = avgKeywordLength;
+			this.avgBodyLength = avgBodyLength;
+		}
+		
+		/**
+		 * 统计库中未删除元素的数量和平均字段长度. 不触发内容加载, 正文长度按元素大小估计(含非文本附件).
+		 *
+		 * @param version 统计前取得的元素版本, 见 {@link CodeLib2Element#version()}.
+		 */
+		static Stats of(List<CodeLib2Element> eles, long version) {
+			int libSize = eles.size();
+			int count = 0;
+			long keywordLength = 0, bodyLength = 0;
+			try {
+				for (int i = 0; i < libSize; i++) {
+					CodeLib2Element ele = eles.get(i);
+					if (ele.isDeleted())
+						continue;
+					count++;
+					int k = ele.getKeywords().length();
+					keywordLength += k;
+					bodyLength += Math.max(ele.getSize() - k, 0);
+				}
+			} catch (IndexOutOfBoundsException e) {
+				// 期间有元素被移除, 用已统计的部分
+			}
+			return new Stats(version, libSize, count,
+					count == 0 ? 1 : Math.max(1.0, (double) keywordLength / count),
+					count == 0 ? 1 : Math.max(1.0, (double) bodyLength / count));
+		}
+		
+		boolean isCurrent(long version, int libSize) {
+			return this.version == version && this.libSize == libSize;
+		}
+		
+		int getCount() {
+			return count;
+		}
+	}
+	
+	private final Stats stats;
+	private final double[] idf;
+	
+	/**
+	 * @param stats               库的统计数据.
+	 * @param documentFrequencies 各关键字的文档频率, 无法估计为 -1.
+	 * @param emptyKeys           各关键字是否为空. 空关键字不计分.
+	 */
+	Bm25Scorer(Stats stats, int[] documentFrequencies, boolean[] emptyKeys) {
+		this.stats = stats;
+		this.idf = new double[documentFrequencies.length];
+		int n = Math.max(stats.count, 1);
+		for (int i = 0; i < this.idf.length; i++) {
+			if (emptyKeys[i])
+				continue;
+			double df = documentFrequencies[i] < 0 ? n / 2.0 : Math.min(documentFrequencies[i], n);
+			this.idf[i] = Math.log(1 + (n - df + 0.5) / (df + 0.5));
+		}
+	}
+	
+	/**
+	 * 元素的匹配度.
+	 *
+	 * @param ele             元素.
+	 * @param projection      元素的搜索投影.
+	 * @param keywordIndex    各关键字在元素关键字中的位置, 不匹配为负数.
+	 * @param contentCounts   各关键字在内容中的出现次数.
+	 * @param textCounts      各关键字在文本附件中的出现次数.
+	 * @param attachmentNames 各关键字匹配的附件名数.
+	 */
+	int score(CodeLib2Element ele, SearchProjection projection, int[] keywordIndex, int[] contentCounts,
+	          int[] textCounts, int[] attachmentNames) {
+		int keywordLength = ele.getKeywords().length();
+		int bodyLength = bodyLength(ele, projection, keywordLength);
+		double keywordNorm = 1 - B + B * keywordLength / this.stats.avgKeywordLength;
+		double bodyNorm = 1 - B + B * bodyLength / this.stats.avgBodyLength;
+		
+		double score = 0;
+		for (int i = 0; i < this.idf.length; i++) {
+			if (this.idf[i] == 0)
+				continue;
+			double tf = (keywordIndex[i] > -1 ? KeywordWeight / keywordNorm : 0)
+					+ BodyWeight * (Math.max(contentCounts[i], 0) + Math.max(textCounts[i], 0)) / bodyNorm
+					+ AttachmentNameWeight * Math.max(attachmentNames[i], 0);
+			score += this.idf[i] * tf * (K1 + 1) / (tf + K1);
+		}
+		return (int) Math.round(score * Scale);
+	}
+	
+	/**
+	 * 正文长度: 内容与文本附件的长度. 内容尚未加载时按元素大小估计.
+	 */
+	private static int bodyLength(CodeLib2Element ele, SearchProjection projection, int keywordLength) {
+		if (!ele.isContentLoaded())
+			return Math.max(ele.getSize() - keywordLength, 0);
+		int length = ele.contentBuffer().remaining();
+		for (byte[] text : projection.getAttachmentTexts()) {
+			if (text != null)
+				length += text.length;
+		}
+		return length;
+	}
+}
@@ -3,17 +3,26 @@ package mysh.codelib2.model;
 
 import mysh.collect.Colls;
 import mysh.util.Bytes;
-import mysh.util.Encodings;
 import mysh.util.Times;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 代码库元素.<br/>
@@ -35,6 +44,43 @@ public class CodeLib2Element implements Serializable, Comparable<CodeLib2Element
 	 */
 	private static final String DefaultKeywords = " ";
 	
+	/**
+	 * 元素修改监听.
+	 */
+	public interface MutationListener {
+		
+		/**
+		 * 元素的关键字, 内容, 附件或删除状态已修改(修改时间已更新). 在修改线程上调用, 不应阻塞.
+		 */
+		void onMutated(CodeLib2Element ele);
+	}
+	
+	private static final List<MutationListener> mutationListeners = new CopyOnWriteArrayList<>();
+	
+	/**
+	 * 元素版本. 任一元素修改或内容加载后增加.
+	 */
+	private static final AtomicLong version = new AtomicLong();
+	
+	/**
+	 * 监听全部元素的修改. 由持久化数据还原元素和数据块加载不通知.
+	 * 监听不分库, 库关闭或切换后须用 {@link #removeMutationListener} 移除, 否则监听及其引用的对象一直可达.
+	 */
+	public static void addMutationListener(MutationListener listener) {
+		mutationListeners.add(listener);
+	}
+	
+	public static void removeMutationListener(MutationListener listener) {
+		mutationListeners.remove(listener);
+	}
+	
+	/**
+	 * 元素版本. 两次取得的值相同, 说明期间没有元素被修改, 也没有元素的内容完成加载.
+	 */
+	static long version() {
+		return version.get();
+	}
+	
 	/**
 	 * 附件.
 	 *
@@ -111,6 +157,11 @@ public class CodeLib2Element implements Serializable, Comparable<CodeLib2Element
 		 */
 		private transient ContentType contentType;
 		
+		/**
+		 * 存入内容存储后的附件内容, 此时 binaryContent 为 null.
+		 */
+		private transient MappedContentStore.Ref mappedContent;
+		
 		@Override
 		public boolean equals(Object obj) {
 			
@@ -123,7 +174,11 @@ public class CodeLib2Element implements Serializable, Comparable<CodeLib2Element
 				else if (a.name != null)
 					return false;
 				
-				flag &= Arrays.equals(this.binaryContent, a.binaryContent);
+				// 在内容存储中的内容直接比较, 不复制到堆中
+				if (this.mappedContent == null && a.mappedContent == null)
+					flag &= Arrays.equals(this.binaryContent, a.binaryContent);
+				else
+					flag &= this.binaryContentBuffer().equals(a.binaryContentBuffer());
 				
 				return flag;
 			}
@@ -189,14 +244,13 @@ public class CodeLib2Element implements Serializable, Comparable<CodeLib2Element
 		public void judgeContentType() {
 			this.contentType = ContentType.Binary;
 			
-			if (this.binaryContent != null && this.binaryContent.length > 0
-					&& this.name != null && this.name.length() > 0) {
+			if (this.length() > 0 && this.name != null && this.name.length() > 0) {
 				int pointPos = this.name.lastIndexOf('.');
 				if (pointPos > -1 && pointPos < this.name.length() - 1) {
 					String ext = this.name.substring(pointPos + 1).toLowerCase();
 					
 					if (ContentType.textExt.contains(ext)) {
-						if (Encodings.isUTF8Bytes(this.binaryContent)) {
+						if (isUtf8(this.binaryContentBuffer())) {
 							this.contentType = ContentType.UTF8Text;
 						} else {
 							this.contentType = ContentType.NonUTF8Text;
@@ -209,10 +263,27 @@ public class CodeLib2Element implements Serializable, Comparable<CodeLib2Element
 		}
 		
 		/**
-		 * 附件内容.
+		 * 是否为合法的 UTF-8 编码. 分段解码, 不复制内容.
+		 */
+		private static boolean isUtf8(ByteBuffer data) {
+			CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+			CharBuffer out = CharBuffer.allocate(4096);
+			while (true) {
+				CoderResult r = decoder.decode(data, out, true);
+				if (r.isError())
+					return false;
+				if (r.isUnderflow())
+					return !decoder.flush(out).isError();
+				out.clear();
+			}
+		}
+		
+		/**
+		 * 附件内容. 内容在内容存储中时每次返回新的副本, 只读取时用 {@link #binaryContentBuffer()}.
 		 */
 		public byte[] getBinaryContent() {
-			return this.binaryContent == null ? new byte[0] : this.binaryContent;
+			byte[] binaryContent = this.bytes();
+			return binaryContent == null ? new byte[0] : binaryContent;
 		}
 		
 		/**
@@ -220,13 +291,92 @@ public class CodeLib2Element implements Serializable, Comparable<CodeLib2Element
 		 */
 		public Attachment setBinaryContent(byte[] binaryContent) {
 			this.binaryContent = binaryContent;
+			this.mappedContent = null;
 			this.judgeContentType();
 			return this;
 		}
 		
+		/**
+		 * 附件内容长度. 不复制内容.
+		 */
+		public int length() {
+			if (this.mappedContent != null)
+				return this.mappedContent.length();
+			return this.binaryContent == null ? 0 : this.binaryContent.length;
+		}
+		
+		/**
+		 * 附件内容的只读视图. 内容在内容存储中时不复制.
+		 */
+		public ByteBuffer binaryContentBuffer() {
+			if (this.mappedContent != null)
+				return this.mappedContent.buffer();
+			return ByteBuffer.wrap(this.getBinaryContent()).asReadOnlyBuffer();
+		}
+		
+		/**
+		 * 复制. 与原附件共用内容数据.
+		 */
+		Attachment copy() {
+			Attachment a = new Attachment();
+			a.name = this.name;
+			a.binaryContent = this.binaryContent;
+			a.mappedContent = this.mappedContent;
+			a.contentType = this.contentType;
+			return a;
+		}
+		
+		/**
+		 * 附件内容引用内容存储中的数据.
+		 */
+		Attachment setMappedContent(MappedContentStore.Ref ref) {
+			this.binaryContent = null;
+			this.mappedContent = ref;
+			this.contentType = null;
+			return this;
+		}
+		
+		/**
+		 * 附件内容对象(数组或内容存储位置), 用于识别共用同一内容的附件.
+		 */
+		Object contentKey() {
+			MappedContentStore.Ref ref = this.mappedContent;
+			return ref != null ? ref : this.binaryContent;
+		}
+		
+		/**
+		 * 附件内容是否在内容存储中.
+		 */
+		boolean isMapped() {
+			return this.mappedContent != null;
+		}
+		
+		/**
+		 * 把附件内容移入内容存储.
+		 */
+		void moveTo(MappedContentStore store) throws IOException {
+			MappedContentStore.Ref ref = store.put(this.binaryContent);
+			if (ref != null) {
+				this.mappedContent = ref;
+				this.binaryContent = null;
+			}
+		}
+		
+		private byte[] bytes() {
+			MappedContentStore.Ref ref = this.mappedContent;
+			return ref != null ? ref.toArray() : this.binaryContent;
+		}
+		
+		private void writeObject(ObjectOutputStream out) throws IOException {
+			ObjectOutputStream.PutField fields = out.putFields();
+			fields.put("name", this.name);
+			fields.put("binaryContent", this.bytes());
+			out.writeFields();
+		}
+	
 	}
 	
-	private String id = UUID.randomUUID().toString();
+	private String id;
 	
 	/**
 	 * 关键字. (代码范围内保证不为 null, 但反射和反序列化仍可能导致 null)
@@ -243,10 +393,203 @@ public class CodeLib2Element implements Serializable, Comparable<CodeLib2Element
 	 */
 	private List<Attachment> attachments;
 	
-	private Instant createTime = Instant.now(), updateTime = createTime;
+	private Instant createTime, updateTime;
 	
 	private boolean deleted;
 	
+	/**
+	 * 内容尚未加载时, 内容和附件所在的数据块. 已加载为 null.
+	 */
+	private transient volatile ContentBlock pendingBlock;
+	
+	/**
+	 * 内容尚未加载时, 目录中记录的尺寸.
+	 */
+	private transient int pendingSize;
+	
+	/**
+	 * 内容尚未加载时, 目录中记录的是否有附件.
+	 */
+	private transient boolean pendingHasAttachments;
+	
+	/**
+	 * 存入内容存储后的内容, 此时 content 为 null.
+	 */
+	private transient MappedContentStore.Ref mappedContent;
+	
+	/**
+	 * 修改次数. 内容加载完成也计一次.
+	 */
+	private transient volatile int modCount;
+	
+	/**
+	 * 缓存的搜索投影, 修改次数不一致时重建.
+	 */
+	private transient volatile SearchProjection searchProjection;
+	
+	public CodeLib2Element() {
+		this.id = UUID.randomUUID().toString();
+		this.createTime = Instant.now();
+		this.updateTime = this.createTime;
+	}
+	
+	/**
+	 * 由持久化数据还原元素, 不做关键字整理, 也不改变修改时间.
+	 */
+	CodeLib2Element(String id, String keywords, byte[] content, List<Attachment> attachments,
+	                Instant createTime, Instant updateTime, boolean deleted) {
+		this.id = id;
+		this.keywords = keywords;
+		this.content = content;
+		this.attachments = attachments;
+		this.createTime = createTime;
+		this.updateTime = updateTime;
+		this.deleted = deleted;
+	}
+	
+	/**
+	 * 由库文件目录还原元素, 内容和附件待 block 加载.
+	 */
+	CodeLib2Element(String id, String keywords, Instant createTime, Instant updateTime, boolean deleted,
+	                ContentBlock block, int size, boolean hasAttachments) {
+		this(id, keywords, null, null, createTime, updateTime, deleted);
+		this.pendingSize = size;
+		this.pendingHasAttachments = hasAttachments;
+		this.pendingBlock = block;
+	}
+	
+	/**
+	 * 内容和附件是否已加载.<br/>
+	 * 从带目录的库文件打开时, 内容在后台加载, 加载完成前首次访问内容或附件会按需加载所在数据块.
+	 */
+	public boolean isContentLoaded() {
+		return this.pendingBlock == null;
+	}
+	
+	private void loadPending() {
+		ContentBlock block = this.pendingBlock;
+		if (block != null)
+			block.load();
+	}
+	
+	/**
+	 * 数据块加载后填入内容和附件.
+	 *
+	 * @param store     内容存储, 不为 null 时内容和附件内容移入存储.
+	 * @param snapshots 加载前取得的本元素的快照, 可为 null. 在本元素可被修改前填入相同的内容.
+	 */
+	void fillPending(CodeLib2Element loaded, MappedContentStore store, List<CodeLib2Element> snapshots)
+			throws IOException {
+		if (store != null) {
+			this.mappedContent = store.put(loaded.content);
+			this.content = this.mappedContent == null ? loaded.content : null;
+			if (loaded.attachments != null) {
+				for (Attachment attachment : loaded.attachments) {
+					attachment.moveTo(store);
+				}
+			}
+		} else {
+			this.content = loaded.content;
+		}
+		this.attachments = loaded.attachments;
+		if (snapshots != null) {
+			for (CodeLib2Element s : snapshots) {
+				s.copyContent(this);
+			}
+		}
+		this.pendingBlock = null;
+		this.modCount++;
+		version.incrementAndGet();
+	}
+	
+	/**
+	 * 是否有附件. 不触发内容加载.
+	 */
+	boolean hasAttachments() {
+		if (this.pendingBlock != null)
+			return this.pendingHasAttachments;
+		return Colls.isNotEmpty(this.attachments);
+	}
+	
+	/**
+	 * 快照. 之后对本元素的修改不影响快照, 用于后台保存.<br/>
+	 * 内容和附件内容的数组在修改时整体替换, 不会原地修改, 快照与本元素共用这些数组, 只复制附件列表和附件对象.
+	 * 内容尚未加载时不加载, 快照与本元素共用数据块, 在首次访问快照内容时(通常在保存线程上)解压.
+	 */
+	CodeLib2Element snapshot() {
+		CodeLib2Element s = new CodeLib2Element(this.id, this.keywords, null, null,
+				this.createTime, this.updateTime, this.deleted);
+		ContentBlock block = this.pendingBlock;
+		if (block != null) {
+			s.pendingSize = this.pendingSize;
+			s.pendingHasAttachments = this.pendingHasAttachments;
+			s.pendingBlock = block;
+			if (block.addSnapshot(this, s))
+				return s;
+		}
+		s.copyContent(this);
+		return s;
+	}
+	
+	/**
+	 * 复制 ele 的内容和附件, 共用内容数据.
+	 */
+	private void copyContent(CodeLib2Element ele) {
+		this.content = ele.content;
+		this.mappedContent = ele.mappedContent;
+		if (ele.attachments != null) {
+			this.attachments = new ArrayList<>(ele.attachments.size());
+			for (Attachment attachment : ele.attachments) {
+				this.attachments.add(attachment.copy());
+			}
+		}
+		this.pendingBlock = null;
+	}
+	
+	/**
+	 * 内容的只读视图. 内容在内容存储中时不复制, 供搜索和展示直接读取.
+	 */
+	public ByteBuffer contentBuffer() {
+		loadPending();
+		MappedContentStore.Ref ref = this.mappedContent;
+		if (ref != null)
+			return ref.buffer();
+		return ByteBuffer.wrap(this.getContent()).asReadOnlyBuffer();
+	}
+	
+	/**
+	 * 搜索投影. 首次搜索时建立, 元素修改后重建.
+	 */
+	SearchProjection searchProjection() {
+		int mod = this.modCount;
+		SearchProjection p = this.searchProjection;
+		if (p == null || !p.isCurrent(mod, isContentLoaded())) {
+			p = SearchProjection.of(this, mod);
+			this.searchProjection = p;
+		}
+		return p;
+	}
+	
+	/**
+	 * 内容是否在内容存储中.
+	 */
+	boolean isContentMapped() {
+		return this.mappedContent != null;
+	}
+	
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		loadPending();
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("id", this.id);
+		fields.put("keywords", this.keywords);
+		fields.put("content", this.mappedContent != null ? this.mappedContent.toArray() : this.content);
+		fields.put("attachments", this.attachments);
+		fields.put("createTime", this.createTime);
+		fields.put("updateTime", this.updateTime);
+		fields.put("deleted", this.deleted);
+		out.writeFields();
+	}
+	
 	@Override
 	public boolean equals(Object obj) {
 		
@@ -280,7 +623,7 @@ public class CodeLib2Element implements Serializable, Comparable<CodeLib2Element
 	@Override
 	public String toString() {
 		
-		if (this.attachments == null || this.attachments.size() == 0) {
+		if (!hasAttachments()) {
 			return this.keywords;
 		} else {
 			return this.keywords + " [附]";
@@ -298,11 +641,22 @@ public class CodeLib2Element implements Serializable, Comparable<CodeLib2Element
 	}
 	
 	public void delete() {
+		loadPending();
 		updateTime = Instant.now();
 		deleted = true;
 		keywords = DefaultKeywords;
 		content = null;
+		mappedContent = null;
 		attachments = null;
+		fireMutated();
+	}
+	
+	private void fireMutated() {
+		this.modCount++;
+		version.incrementAndGet();
+		for (MutationListener listener : mutationListeners) {
+			listener.onMutated(this);
+		}
 	}
 	
 	// get set
@@ -353,6 +707,7 @@ public class CodeLib2Element implements Serializable, Comparable<CodeLib2Element
 		}
 		
 		updateTime = Instant.now();
+		fireMutated();
 		return this;
 	}
 	
@@ -369,6 +724,7 @@ public class CodeLib2Element implements Serializable, Comparable<CodeLib2Element
 	 */
 	public List<Attachment> getAttachments() {
 		
+		loadPending();
 		return attachments;
 	}
 	
@@ -377,15 +733,21 @@ public class CodeLib2Element implements Serializable, Comparable<CodeLib2Element
 	 */
 	public void setAttachments(List<Attachment> attachments) {
 		
+		loadPending();
 		this.attachments = attachments;
 		this.updateTime = Instant.now();
+		fireMutated();
 	}
 	
 	/**
-	 * 内容.
+	 * 内容. 内容在内容存储中时每次返回新的副本, 只读取时用 {@link #contentBuffer()}.
 	 */
 	public byte[] getContent() {
 		
+		loadPending();
+		MappedContentStore.Ref ref = this.mappedContent;
+		if (ref != null)
+			return ref.toArray();
 		if (this.content == null) {
 			return new byte[0];
 		}
@@ -397,8 +759,11 @@ public class CodeLib2Element implements Serializable, Comparable<CodeLib2Element
 	 */
 	public void setContent(byte[] content) {
 		
+		loadPending();
 		this.content = content;
+		this.mappedContent = null;
 		this.updateTime = Instant.now();
+		fireMutated();
 	}
 	
 	public Instant getCreateTime() {
@@ -414,18 +779,35 @@ public class CodeLib2Element implements Serializable, Comparable<CodeLib2Element
 		return updateTime;
 	}
 	
+	/**
+	 * 修改时间(毫秒), 未设置时为 0. 用于排序和按时间过滤.
+	 */
+	long getUpdateTimeMillis() {
+		Instant t = this.updateTime;
+		return t == null ? 0 : t.toEpochMilli();
+	}
+	
+	/**
+	 * 修改时间. 原地修改附件列表后须调用, 以通知修改.
+	 */
 	public CodeLib2Element setUpdateTime(Instant updateTime) {
 		this.updateTime = updateTime;
+		fireMutated();
 		return this;
 	}
 	
 	public int getSize() {
+		if (this.pendingBlock != null)
+			return this.pendingSize;
+		
 		int s = keywords.length();
-		if (content != null)
+		if (mappedContent != null)
+			s += mappedContent.length();
+		else if (content != null)
 			s += content.length;
 		if (Colls.isNotEmpty(attachments))
 			for (Attachment attachment : attachments) {
-				s += attachment.binaryContent.length;
+				s += attachment.length();
 			}
 		return s;
 	}
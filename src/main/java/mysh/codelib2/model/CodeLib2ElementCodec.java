@@ -0,0 +1,372 @@
+package mysh.codelib2.model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static mysh.codelib2.model.CodeLib2Element.Attachment;
+
+/**
+ * CodeLib2Element 的二进制编解码.<br/>
+ * 代替 java 内置序列化, 不写类描述, 不经反射.<br/>
+ * 格式(版本 1):
+ * <pre>
+ * [版本 byte][标志 byte]
+ * [id: 16 字节 UUID | 变长长度 + UTF8]
+ * [创建时间 变长 epoch 毫秒][修改时间 变长 epoch 毫秒] (标志位指明是否存在)
+ * [关键字 变长长度 + UTF8]
+ * [内容 变长长度 + 字节] (空内容还原为 null)
+ * [附件数 变长(数量+1)] (0 表示 null) {[附件名 变长(长度+1) + UTF8][附件内容 变长长度 + 字节]}...
+ * </pre>
+ * 版本 2 与版本 1 相同, 但附件内容为 {@link BlobStore} 中的序号(变长), 内容本身存于库文件的附件数据区.<br/>
+ * 版本字节不会与 java 序列化流的魔数首字节 0xAC 相同, 以此区分两种帧.<br/>
+ * 另提供库文件目录项的编解码, 目录项只含关键字, 时间, 尺寸等信息, 不含内容和附件.
+ *
+ * @author Allen
+ */
+final class CodeLib2ElementCodec {
+
+	/**
+	 * 编码版本. 附件内容内嵌.
+	 */
+	static final byte Version = 1;
+
+	/**
+	 * 编码版本. 附件内容引用附件数据区.
+	 */
+	static final byte BlobVersion = 2;
+
+	private static final int FlagDeleted = 1;
+	private static final int FlagUUID = 1 << 1;
+	private static final int FlagCreateTime = 1 << 2;
+	private static final int FlagUpdateTime = 1 << 3;
+	private static final int FlagHasAttachments = 1 << 4;
+
+	private CodeLib2ElementCodec() {
+	}
+
+	/**
+	 * 是否为本编码格式的数据.
+	 */
+	static boolean isCodecFrame(byte[] frame) {
+		return frame.length > 0 && (frame[0] == Version || frame[0] == BlobVersion);
+	}
+
+	static byte[] encode(CodeLib2Element ele) {
+		return encode(ele, null);
+	}
+
+	/**
+	 * @param blobs 附件数据区. 为 null 时附件内容内嵌(版本 1), 否则附件须已加入 blobs(版本 2).
+	 */
+	static byte[] encode(CodeLib2Element ele, BlobStore.Builder blobs) {
+		UUID uuid = parseUUID(ele.getId());
+		byte[] id = uuid == null ? ele.getId().getBytes(StandardCharsets.UTF_8) : null;
+		byte[] keywords = ele.getKeywords().getBytes(StandardCharsets.UTF_8);
+		byte[] content = ele.getContent();
+		List<Attachment> attachments = ele.getAttachments();
+		byte[][] attachmentNames = null;
+
+		int flags = (ele.isDeleted() ? FlagDeleted : 0)
+				| (uuid != null ? FlagUUID : 0)
+				| (ele.getCreateTime() != null ? FlagCreateTime : 0)
+				| (ele.getUpdateTime() != null ? FlagUpdateTime : 0);
+
+		// 先算长度, 一次分配
+		int size = 2;
+		size += uuid != null ? 16 : varIntSize(id.length) + id.length;
+		if (ele.getCreateTime() != null)
+			size += varLongSize(zigZag(ele.getCreateTime().toEpochMilli()));
+		if (ele.getUpdateTime() != null)
+			size += varLongSize(zigZag(ele.getUpdateTime().toEpochMilli()));
+		size += varIntSize(keywords.length) + keywords.length;
+		size += varIntSize(content.length) + content.length;
+		if (attachments == null) {
+			size += 1;
+		} else {
+			size += varIntSize(attachments.size() + 1);
+			attachmentNames = new byte[attachments.size()][];
+			for (int i = 0; i < attachments.size(); i++) {
+				Attachment attachment = attachments.get(i);
+				String name = attachment.getName();
+				attachmentNames[i] = name == null ? null : name.getBytes(StandardCharsets.UTF_8);
+				size += attachmentNames[i] == null ? 1
+						: varIntSize(attachmentNames[i].length + 1) + attachmentNames[i].length;
+				if (blobs != null) {
+					size += varIntSize(blobs.indexOf(attachment));
+				} else {
+					int len = attachment.length();
+					size += varIntSize(len) + len;
+				}
+			}
+		}
+
+		Writer w = new Writer(size);
+		w.buf[w.pos++] = blobs != null ? BlobVersion : Version;
+		w.buf[w.pos++] = (byte) flags;
+		if (uuid != null) {
+			w.writeLong(uuid.getMostSignificantBits());
+			w.writeLong(uuid.getLeastSignificantBits());
+		} else {
+			w.writeBytes(id);
+		}
+		if (ele.getCreateTime() != null)
+			w.writeVarLong(zigZag(ele.getCreateTime().toEpochMilli()));
+		if (ele.getUpdateTime() != null)
+			w.writeVarLong(zigZag(ele.getUpdateTime().toEpochMilli()));
+		w.writeBytes(keywords);
+		w.writeBytes(content);
+		if (attachments == null) {
+			w.writeVarInt(0);
+		} else {
+			w.writeVarInt(attachments.size() + 1);
+			for (int i = 0; i < attachments.size(); i++) {
+				w.writeNullableBytes(attachmentNames[i]);
+				if (blobs != null)
+					w.writeVarInt(blobs.indexOf(attachments.get(i)));
+				else
+					w.writeBytes(attachments.get(i).getBinaryContent());
+			}
+		}
+		return w.buf;
+	}
+
+	static CodeLib2Element decode(byte[] frame) throws IOException {
+		return decode(frame, null);
+	}
+
+	/**
+	 * @param blobs 附件数据区, 版本 2 的帧需要.
+	 */
+	static CodeLib2Element decode(byte[] frame, BlobStore blobs) throws IOException {
+		try {
+			Reader r = new Reader(frame);
+			byte version = r.buf[r.pos++];
+			if (version != Version && version != BlobVersion)
+				throw new IOException("unknown element codec version: " + version);
+			if (version == BlobVersion && blobs == null)
+				throw new IOException("blob store required");
+			int flags = r.buf[r.pos++];
+
+			String id;
+			if ((flags & FlagUUID) != 0) {
+				id = new UUID(r.readLong(), r.readLong()).toString();
+			} else {
+				id = new String(r.readBytes(), StandardCharsets.UTF_8);
+			}
+			Instant createTime = (flags & FlagCreateTime) != 0 ? Instant.ofEpochMilli(unZigZag(r.readVarLong())) : null;
+			Instant updateTime = (flags & FlagUpdateTime) != 0 ? Instant.ofEpochMilli(unZigZag(r.readVarLong())) : null;
+			String keywords = new String(r.readBytes(), StandardCharsets.UTF_8);
+			byte[] content = r.readBytes();
+
+			List<Attachment> attachments = null;
+			int attachmentCount = r.readVarInt() - 1;
+			if (attachmentCount > -1) {
+				attachments = new ArrayList<>(attachmentCount);
+				for (int i = 0; i < attachmentCount; i++) {
+					byte[] nameBytes = r.readNullableBytes();
+					String name = nameBytes == null ? null : new String(nameBytes, StandardCharsets.UTF_8);
+					if (version == BlobVersion)
+						attachments.add(blobs.attachment(name, r.readVarInt()));
+					else
+						attachments.add(new Attachment().setName(name).setBinaryContent(r.readBytes()));
+				}
+			}
+
+			if (r.pos != frame.length)
+				throw new IOException("unexpected data after element: " + id);
+			return new CodeLib2Element(id, keywords, content.length == 0 ? null : content, attachments,
+					createTime, updateTime, (flags & FlagDeleted) != 0);
+		} catch (ArrayIndexOutOfBoundsException | NegativeArraySizeException e) {
+			throw new IOException("broken element frame", e);
+		}
+	}
+
+	/**
+	 * 写目录项.<br/>
+	 * [标志 byte][id: 16 字节 UUID | 长度 int + UTF8][创建时间 long][修改时间 long] (时间由标志位指明是否存在)
+	 * [关键字 长度 int + UTF8][尺寸 int]
+	 */
+	static void writeEntry(DataOutput out, CodeLib2Element ele) throws IOException {
+		UUID uuid = parseUUID(ele.getId());
+		int flags = (ele.isDeleted() ? FlagDeleted : 0)
+				| (uuid != null ? FlagUUID : 0)
+				| (ele.getCreateTime() != null ? FlagCreateTime : 0)
+				| (ele.getUpdateTime() != null ? FlagUpdateTime : 0)
+				| (ele.hasAttachments() ? FlagHasAttachments : 0);
+		out.writeByte(flags);
+		if (uuid != null) {
+			out.writeLong(uuid.getMostSignificantBits());
+			out.writeLong(uuid.getLeastSignificantBits());
+		} else {
+			writeData(out, ele.getId().getBytes(StandardCharsets.UTF_8));
+		}
+		if (ele.getCreateTime() != null)
+			out.writeLong(ele.getCreateTime().toEpochMilli());
+		if (ele.getUpdateTime() != null)
+			out.writeLong(ele.getUpdateTime().toEpochMilli());
+		writeData(out, ele.getKeywords().getBytes(StandardCharsets.UTF_8));
+		out.writeInt(ele.getSize());
+	}
+
+	/**
+	 * 读目录项, 生成内容待由 block 加载的元素.
+	 */
+	static CodeLib2Element readEntry(DataInput in, ContentBlock block) throws IOException {
+		int flags = in.readByte();
+		String id = (flags & FlagUUID) != 0 ? new UUID(in.readLong(), in.readLong()).toString()
+				: new String(readData(in), StandardCharsets.UTF_8);
+		Instant createTime = (flags & FlagCreateTime) != 0 ? Instant.ofEpochMilli(in.readLong()) : null;
+		Instant updateTime = (flags & FlagUpdateTime) != 0 ? Instant.ofEpochMilli(in.readLong()) : null;
+		String keywords = new String(readData(in), StandardCharsets.UTF_8);
+		int size = in.readInt();
+		return new CodeLib2Element(id, keywords, createTime, updateTime, (flags & FlagDeleted) != 0,
+				block, size, (flags & FlagHasAttachments) != 0);
+	}
+
+	private static void writeData(DataOutput out, byte[] b) throws IOException {
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static byte[] readData(DataInput in) throws IOException {
+		int len = in.readInt();
+		if (len < 0)
+			throw new IOException("bad length: " + len);
+		byte[] b = new byte[len];
+		in.readFully(b);
+		return b;
+	}
+
+	/**
+	 * 只接受规范形式的 UUID 字符串, 以保证还原后的 id 与原 id 完全相同.
+	 */
+	private static UUID parseUUID(String id) {
+		if (id == null || id.length() != 36)
+			return null;
+		try {
+			UUID uuid = UUID.fromString(id);
+			return uuid.toString().equals(id) ? uuid : null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private static long zigZag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	private static long unZigZag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private static int varIntSize(int v) {
+		return varLongSize(v & 0xFFFFFFFFL);
+	}
+
+	private static int varLongSize(long v) {
+		int size = 1;
+		while ((v >>>= 7) != 0)
+			size++;
+		return size;
+	}
+
+	private static final class Writer {
+		private final byte[] buf;
+		private int pos;
+
+		Writer(int size) {
+			this.buf = new byte[size];
+		}
+
+		void writeLong(long v) {
+			for (int i = 56; i >= 0; i -= 8) {
+				buf[pos++] = (byte) (v >>> i);
+			}
+		}
+
+		void writeVarInt(int v) {
+			writeVarLong(v & 0xFFFFFFFFL);
+		}
+
+		void writeVarLong(long v) {
+			while ((v & ~0x7FL) != 0) {
+				buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buf[pos++] = (byte) v;
+		}
+
+		void writeBytes(byte[] b) {
+			writeVarInt(b.length);
+			System.arraycopy(b, 0, buf, pos, b.length);
+			pos += b.length;
+		}
+
+		void writeNullableBytes(byte[] b) {
+			if (b == null) {
+				writeVarInt(0);
+			} else {
+				writeVarInt(b.length + 1);
+				System.arraycopy(b, 0, buf, pos, b.length);
+				pos += b.length;
+			}
+		}
+	}
+
+	private static final class Reader {
+		private final byte[] buf;
+		private int pos;
+
+		Reader(byte[] buf) {
+			this.buf = buf;
+		}
+
+		long readLong() {
+			long v = 0;
+			for (int i = 0; i < 8; i++) {
+				v = (v << 8) | (buf[pos++] & 0xFF);
+			}
+			return v;
+		}
+
+		int readVarInt() throws IOException {
+			long v = readVarLong();
+			if (v > Integer.MAX_VALUE)
+				throw new IOException("bad length: " + v);
+			return (int) v;
+		}
+
+		long readVarLong() throws IOException {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = buf[pos++];
+				v |= (long) (b & 0x7F) << shift;
+				if (b >= 0)
+					return v;
+			}
+			throw new IOException("bad varint");
+		}
+
+		byte[] readBytes() throws IOException {
+			return copy(readVarInt());
+		}
+
+		byte[] readNullableBytes() throws IOException {
+			int len = readVarInt() - 1;
+			return len < 0 ? null : copy(len);
+		}
+
+		private byte[] copy(int len) {
+			byte[] b = new byte[len];
+			System.arraycopy(buf, pos, b, 0, len);
+			pos += len;
+			return b;
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package mysh.codelib2.model;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 库文件中尚未加载的数据块.<br/>
+ * 按目录打开库文件时, 元素先只有目录信息, 所属数据块在后台或首次访问元素内容时解压, 再把内容填回元素.
+ *
+ * @author Allen
+ */
+final class ContentBlock {
+	
+	private static final Logger log = LoggerFactory.getLogger(ContentBlock.class);
+	
+	/**
+	 * 各文件中尚未加载的数据块. 文件被覆盖前须先加载完, 见 {@link #loadAll(File)}.
+	 */
+	private static final Map<File, Set<ContentBlock>> unloaded = new ConcurrentHashMap<>();
+	
+	private final File file;
+	private final long offset;
+	private final int length;
+	
+	/**
+	 * 内容存储. 为 null 时内容留在堆中.
+	 */
+	private final MappedContentStore store;
+	
+	/**
+	 * 附件数据区, 可为 null.
+	 */
+	private final BlobStore blobs;
+	
+	/**
+	 * 块内等待内容的元素, 与块内帧顺序一致. 加载后置空.
+	 */
+	private List<CodeLib2Element> pending;
+	
+	/**
+	 * 块内元素的快照, 加载时与元素一同填入内容. 加载后置空.
+	 */
+	private Map<CodeLib2Element, List<CodeLib2Element>> snapshots;
+	
+	ContentBlock(File file, long offset, int length, int count, MappedContentStore store, BlobStore blobs) {
+		this.file = file.getAbsoluteFile();
+		this.offset = offset;
+		this.length = length;
+		this.store = store;
+		this.blobs = blobs;
+		this.pending = new ArrayList<>(count);
+		unloaded.computeIfAbsent(this.file, f -> ConcurrentHashMap.newKeySet()).add(this);
+	}
+	
+	void addPending(CodeLib2Element ele) {
+		this.pending.add(ele);
+	}
+	
+	/**
+	 * 登记块内元素的快照, 本块加载时一同填入内容, 取快照不必先解压.
+	 *
+	 * @return 本块已加载时返回 false, 此时快照直接复制元素的内容.
+	 */
+	synchronized boolean addSnapshot(CodeLib2Element ele, CodeLib2Element snapshot) {
+		if (this.pending == null)
+			return false;
+		if (this.snapshots == null)
+			this.snapshots = new IdentityHashMap<>();
+		this.snapshots.computeIfAbsent(ele, e -> new ArrayList<>(1)).add(snapshot);
+		return true;
+	}
+	
+	/**
+	 * 解压本块并把内容填回元素及其快照. 成功后不再执行.
+	 * 失败时不记下异常, 本块仍待加载, 下次访问块内元素的内容时重试; 已填入内容的元素重试时跳过.
+	 *
+	 * @throws UncheckedIOException 读取或解码失败.
+	 */
+	synchronized void load() {
+		if (this.pending == null)
+			return;
+		
+		try {
+			byte[] data = new byte[this.length];
+			try (RandomAccessFile raf = new RandomAccessFile(this.file, "r")) {
+				raf.seek(this.offset);
+				raf.readFully(data);
+			}
+			
+			List<CodeLib2Element> loaded = DataHeader.decompressBlock(data, this.blobs);
+			if (loaded.size() != this.pending.size())
+				throw new IOException("block element count mismatch: " + this.file + "@" + this.offset);
+			for (int i = 0; i < loaded.size(); i++) {
+				CodeLib2Element ele = this.pending.get(i);
+				if (!ele.isContentLoaded())
+					ele.fillPending(loaded.get(i), this.store, this.snapshots == null ? null : this.snapshots.get(ele));
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		
+		this.pending = null;
+		this.snapshots = null;
+		Set<ContentBlock> fileBlocks = unloaded.get(this.file);
+		if (fileBlocks != null)
+			fileBlocks.remove(this);
+	}
+	
+	/**
+	 * 后台并行加载全部数据块. 一个块失败不影响其他块, 失败的块仍待加载, 访问时重试.
+	 *
+	 * @return 全部块都尝试过后的通知. 有块失败时以一个异常结束, 各块的异常附在其中.
+	 */
+	static CompletableFuture<Void> loadInBackground(List<ContentBlock> blocks) {
+		return CompletableFuture.runAsync(() -> {
+			List<RuntimeException> failures = Collections.synchronizedList(new ArrayList<>());
+			blocks.parallelStream().forEach(block -> {
+				try {
+					block.load();
+				} catch (RuntimeException e) {
+					failures.add(e);
+				}
+			});
+			if (!failures.isEmpty()) {
+				IOException e = new IOException(
+						failures.size() + " of " + blocks.size() + " content blocks failed to load: " + blocks.get(0).file);
+				failures.forEach(e::addSuppressed);
+				throw new UncheckedIOException(e);
+			}
+		}).whenComplete((r, t) -> {
+			if (t != null)
+				log.error("load content blocks failed.", t);
+		});
+	}
+	
+	/**
+	 * 加载指定文件中所有尚未加载的数据块. 覆盖文件前调用, 以免之后从新文件读到错位的数据.
+	 *
+	 * @throws UncheckedIOException 有块加载失败, 此时不应覆盖文件. 未加载的块仍登记, 下次调用时重试.
+	 */
+	static void loadAll(File file) {
+		Set<ContentBlock> fileBlocks = unloaded.get(file.getAbsoluteFile());
+		if (fileBlocks == null)
+			return;
+		fileBlocks.forEach(ContentBlock::load);
+		unloaded.computeIfPresent(file.getAbsoluteFile(), (f, blocks) -> blocks.isEmpty() ? null : blocks);
+	}
+}
@@ -9,16 +9,42 @@ import mysh.util.Strings;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZInputStream;
+import org.tukaani.xz.XZOutputStream;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.stream.Collectors;
+
+import static mysh.codelib2.model.CodeLib2Element.Attachment;
 
 /**
  * 文件数据头部. <br/>
@@ -31,16 +57,53 @@ public class DataHeader implements Serializable {
 	
 	private static final Logger log = LoggerFactory.getLogger(DataHeader.class);
 	
+	/**
+	 * 帧结束标记. 帧长度为此值时表示后面不再有元素.
+	 */
+	private static final int FrameEnd = -1;
+	
+	/**
+	 * 数据块最小尺寸(未压缩, 字节). 块越多越利于并行, 但块太小会降低压缩率.
+	 */
+	private static final long MinBlockSize = 1 << 20;
+	
+	private static final int Parallelism = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * 库文件超过此尺寸(压缩后, 字节)时, 打开后的元素内容存入内存映射的 {@link MappedContentStore}, 不占用堆内存.
+	 */
+	private static final long MappedContentThreshold = 32 << 20;
+	
+	/**
+	 * 打开库文件后内容是否应存入 {@link MappedContentStore}.
+	 */
+	static boolean isLargeLib(File file) {
+		return file.length() > MappedContentThreshold;
+	}
+	
 	private final int version;
 	
+	/**
+	 * 与此快照配套的变更日志标识, 见 {@link LibJournal}. 为 null 表示没有配套的日志.
+	 */
+	private String journalId;
+	
 	public DataHeader() {
-		version = 5;
+		version = 10;
 	}
 	
 	public DataHeader(int version) {
 		this.version = version;
 	}
 	
+	public int getVersion() {
+		return version;
+	}
+	
+	public String getJournalId() {
+		return journalId;
+	}
+	
 	/**
 	 * 数据保存到文件.<br/>
 	 *
@@ -48,56 +111,562 @@ public class DataHeader implements Serializable {
 	 * @param eles 数据集.
 	 */
 	public static boolean saveToFile(File file, Collection<CodeLib2Element> eles) throws Exception {
-		return writeVer5(file, eles);
+		return saveToFile(file, eles, null);
+	}
+	
+	/**
+	 * 数据保存到文件, 并记录配套的变更日志标识.<br/>
+	 *
+	 * @param file      文件
+	 * @param eles      数据集.
+	 * @param journalId 变更日志标识, 可为 null.
+	 */
+	static boolean saveToFile(File file, Collection<CodeLib2Element> eles, String journalId) throws Exception {
+		return saveToFile(file, eles, journalId, p -> {
+		});
+	}
+	
+	/**
+	 * 数据保存到文件, 并报告进度.<br/>
+	 *
+	 * @param file      文件
+	 * @param eles      数据集.
+	 * @param journalId 变更日志标识, 可为 null.
+	 * @param progress  进度(百分比), 在压缩线程上调用.
+	 */
+	static boolean saveToFile(File file, Collection<CodeLib2Element> eles, String journalId, IntConsumer progress)
+			throws Exception {
+		DataHeader header = new DataHeader(10);
+		header.journalId = journalId;
+		return writeVer10(file, header, eles, progress);
 	}
 	
 	/**
-	 * 从文件读取数据.
+	 * 从文件读取数据. 返回的元素已按自然顺序排序.
 	 */
-	@SuppressWarnings("unchecked")
 	public static Pair<DataHeader, Collection<CodeLib2Element>> readFromFile(File file) throws Exception {
-		try (FileInputStream in = new FileInputStream(file)) {
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
 			return readFromInputStream(in);
 		}
 	}
 	
+	/**
+	 * 从文件读取数据, 元素逐个交给 consumer.
+	 *
+	 * @return 文件数据头.
+	 */
+	public static DataHeader readFromFile(File file, Consumer<CodeLib2Element> consumer) throws Exception {
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			return readFromInputStream(in, consumer);
+		}
+	}
+	
+	/**
+	 * 打开文件, 元素逐个交给 consumer.<br/>
+	 * 版本 9 起只读取元素目录(及附件数据区表), 交给 consumer 的元素此时只有关键字, 时间等目录信息,
+	 * 内容和附件在后台并行解压, 或在首次访问时按需解压, 见 {@link CodeLib2Element#isContentLoaded()}.
+	 * 更早的版本直接读取全部数据. 内容留在堆中, 大库经 {@link LibJournal#load()} 打开时存入内容存储.
+	 *
+	 * @return 文件数据头, 以及内容全部加载完成的通知.
+	 */
+	public static Pair<DataHeader, CompletableFuture<Void>> openFromFile(
+			File file, Consumer<CodeLib2Element> consumer) throws Exception {
+		return openFromFile(file, consumer, null);
+	}
+	
+	/**
+	 * 打开文件, 元素逐个交给 consumer.
+	 *
+	 * @param store 内容存储, 为 null 时内容留在堆中. 仅对版本 9 起的格式有效. 由调用方在库不再使用后关闭.
+	 */
+	static Pair<DataHeader, CompletableFuture<Void>> openFromFile(
+			File file, Consumer<CodeLib2Element> consumer, MappedContentStore store) throws Exception {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			DataHeader header = Serializer.BUILD_IN.deserialize(in);
+			Consumer<CodeLib2Element> checkedConsumer = e -> consumer.accept(check(e));
+			if (header.version < 9) {
+				readBody(header, in, checkedConsumer);
+				return Pair.of(header, CompletableFuture.completedFuture(null));
+			}
+			
+			BlockTable table = readBlockTable(in);
+			List<ContentBlock> blocks = readDirectory(file, in, table, header.version >= 10, store, checkedConsumer);
+			return Pair.of(header, ContentBlock.loadInBackground(blocks));
+		}
+	}
+	
+	/**
+	 * 从输入流读取数据. 返回的元素已按自然顺序排序.
+	 */
 	@NotNull
 	public static Pair<DataHeader, Collection<CodeLib2Element>> readFromInputStream(InputStream in) throws Exception {
+		List<CodeLib2Element> eles = new ArrayList<>();
+		DataHeader header = readFromInputStream(in, eles::add);
+		// 版本 7 起各数据块在加载时已归并为有序序列
+		if (header.version < 7)
+			Collections.sort(eles);
+		return Pair.of(header, eles);
+	}
+	
+	/**
+	 * 从输入流读取数据, 元素逐个交给 consumer.<br/>
+	 * 版本 6 及以后的格式逐帧解码, 不会在内存中保留整个数据集的中间副本.
+	 * 版本 7 及以后的格式按自然顺序交付元素.
+	 *
+	 * @return 文件数据头.
+	 */
+	@NotNull
+	public static DataHeader readFromInputStream(InputStream in, Consumer<CodeLib2Element> consumer) throws Exception {
 		DataHeader header = Serializer.BUILD_IN.deserialize(in);
+		readBody(header, in, e -> consumer.accept(check(e)));
+		return header;
+	}
+	
+	private static void readBody(DataHeader header, InputStream in, Consumer<CodeLib2Element> checkedConsumer)
+			throws Exception {
 		switch (header.version) {
 			case 0:
 			case 2:
-				return Pair.of(header, check(readVer2(in)));
+				feed(readVer2(in), checkedConsumer);
+				break;
 			case 3:
-				return Pair.of(header, check(readVer3(in)));
+				feed(readVer3(in), checkedConsumer);
+				break;
 			case 4:
-				return Pair.of(header, check(readVer4(in)));
+				feed(readVer4(in), checkedConsumer);
+				break;
 			case 5:
-				return Pair.of(header, check(readVer5(in)));
+				feed(readVer5(in), checkedConsumer);
+				break;
+			case 6:
+				readVer6(in, checkedConsumer);
+				break;
+			case 7:
+			case 8:
+				readVer7(in, checkedConsumer);
+				break;
+			case 9:
+			case 10:
+				readVer9(in, header.version, checkedConsumer);
+				break;
 			default:
 				throw new RuntimeException("unknown header version: " + header.version);
 		}
 	}
 	
-	private static Collection<CodeLib2Element> check(Collection<CodeLib2Element> items) {
+	private static void feed(Collection<CodeLib2Element> items, Consumer<CodeLib2Element> consumer) {
 		if (items != null)
-			for (CodeLib2Element item : items) {
-				if (Strings.isBlank(item.getId()))
-					item.setId(UUID.randomUUID().toString());
-			}
-		
-		return items;
+			items.forEach(consumer);
+	}
+	
+	private static CodeLib2Element check(CodeLib2Element item) {
+		if (Strings.isBlank(item.getId()))
+			item.setId(UUID.randomUUID().toString());
+		return item;
 	}
 	
-	private static boolean writeVer5(File file, Collection<CodeLib2Element> eles) throws Exception {
+	/**
+	 * 版本 9: 在版本 8 的数据块前加入不压缩的元素目录, 打开时可以只读目录, 内容按需或在后台解压.<br/>
+	 * [块数 int][各块起始位置(相对文件头) long, 压缩后长度 int ...][目录长度 int][目录][块数据...]<br/>
+	 * 目录按块分组: {[块内元素数 int]{[目录项]...}}..., 目录项见 {@link CodeLib2ElementCodec#writeEntry}.<br/>
+	 * 版本 10: 目录与块数据之间加入附件数据区({@link BlobStore}), 相同的附件内容只保存一次,
+	 * 块中的元素帧以 {@link CodeLib2ElementCodec#BlobVersion} 编码, 附件引用数据区中的内容.
+	 */
+	private static boolean writeVer10(File file, DataHeader header, Collection<CodeLib2Element> eles,
+	                                  IntConsumer progress) throws Exception {
+		List<List<CodeLib2Element>> parts = splitBlocks(eles);
+		
+		BlobStore.Builder blobs = new BlobStore.Builder();
+		for (CodeLib2Element ele : eles) {
+			List<Attachment> attachments = ele.getAttachments();
+			if (attachments != null)
+				attachments.forEach(blobs::add);
+		}
+		
+		// 压缩占保存的绝大部分时间, 按压缩完成的块和附件数计进度
+		int total = parts.size() + blobs.count();
+		AtomicInteger done = new AtomicInteger();
+		Runnable step = () -> progress.accept(done.incrementAndGet() * 90 / total);
+		blobs.compress(step);
+		List<byte[]> blocks = compressBlocks(parts, blobs, step);
+		
+		ByteArrayOutputStream dirBuf = new ByteArrayOutputStream();
+		DataOutputStream dirOut = new DataOutputStream(dirBuf);
+		for (List<CodeLib2Element> part : parts) {
+			dirOut.writeInt(part.size());
+			for (CodeLib2Element ele : part) {
+				CodeLib2ElementCodec.writeEntry(dirOut, ele);
+			}
+		}
+		dirOut.flush();
+		
+		byte[] headerBytes = Serializer.BUILD_IN.serialize(header);
+		long blobOffset = headerBytes.length + 4 + 12L * blocks.size() + 4 + dirBuf.size();
+		long offset = blobOffset + blobs.length();
+		
 		file.getParentFile().mkdirs();
 		File writeFile = FilesUtil.getWriteFile(file);
-		try (FileOutputStream out = new FileOutputStream(writeFile)) {
-			out.write(Serializer.BUILD_IN.serialize(new DataHeader()));
-			out.write(Compresses.compressXz(Serializer.BUILD_IN.serialize(eles)));
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(writeFile)))) {
+			out.write(headerBytes);
+			out.writeInt(blocks.size());
+			for (byte[] block : blocks) {
+				out.writeLong(offset);
+				out.writeInt(block.length);
+				offset += block.length;
+			}
+			out.writeInt(dirBuf.size());
+			dirBuf.writeTo(out);
+			blobs.writeTo(out, blobOffset);
+			for (byte[] block : blocks) {
+				out.write(block);
+			}
+		}
+		
+		// 替换文件前, 加载仍指向原文件的内容
+		ContentBlock.loadAll(file);
+		replaceFile(writeFile, file);
+		progress.accept(100);
+		return true;
+	}
+	
+	/**
+	 * 用新写的文件替换目标文件. 尽量原子替换, 读取方要么读到旧文件, 要么读到完整的新文件.
+	 */
+	private static void replaceFile(File writeFile, File file) throws IOException {
+		try {
+			Files.move(writeFile.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(writeFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	private static void readVer9(InputStream in, int version, Consumer<CodeLib2Element> consumer) throws Exception {
+		DataInputStream dataIn = new DataInputStream(in);
+		BlockTable table = readBlockTable(dataIn);
+		dataIn.readFully(new byte[dataIn.readInt()]);
+		BlobStore blobs = null;
+		if (version >= 10) {
+			blobs = BlobStore.readTable(dataIn, null, null);
+			blobs.readData(dataIn);
+		}
+		readBlocks(dataIn, table.lengths, blobs, consumer);
+	}
+	
+	/**
+	 * 块位置表.
+	 */
+	private static class BlockTable {
+		private long[] offsets;
+		private int[] lengths;
+	}
+	
+	private static BlockTable readBlockTable(DataInputStream in) throws IOException {
+		int blockCount = in.readInt();
+		if (blockCount < 0)
+			throw new IOException("bad block count: " + blockCount);
+		
+		BlockTable table = new BlockTable();
+		table.offsets = new long[blockCount];
+		table.lengths = new int[blockCount];
+		for (int i = 0; i < blockCount; i++) {
+			table.offsets[i] = in.readLong();
+			table.lengths[i] = in.readInt();
+			if (table.lengths[i] < 0)
+				throw new IOException("bad block length: " + table.lengths[i]);
+		}
+		return table;
+	}
+	
+	/**
+	 * 读取目录(及附件数据区表), 生成内容未加载的元素.
+	 *
+	 * @param hasBlobs 目录后是否有附件数据区.
+	 */
+	private static List<ContentBlock> readDirectory(
+			File file, DataInputStream in, BlockTable table, boolean hasBlobs, MappedContentStore store,
+			Consumer<CodeLib2Element> consumer) throws IOException {
+		int dirLen = in.readInt();
+		byte[] dir = new byte[dirLen];
+		in.readFully(dir);
+		BlobStore blobs = hasBlobs ? BlobStore.readTable(in, file, store) : null;
+		
+		DataInputStream dirIn = new DataInputStream(new ByteArrayInputStream(dir));
+		List<ContentBlock> blocks = new ArrayList<>(table.lengths.length);
+		for (int i = 0; i < table.lengths.length; i++) {
+			int count = dirIn.readInt();
+			if (count < 0)
+				throw new IOException("bad block element count: " + count);
+			
+			ContentBlock block = new ContentBlock(file, table.offsets[i], table.lengths[i], count, store, blobs);
+			for (int j = 0; j < count; j++) {
+				CodeLib2Element ele = CodeLib2ElementCodec.readEntry(dirIn, block);
+				block.addPending(ele);
+				consumer.accept(ele);
+			}
+			blocks.add(block);
+		}
+		return blocks;
+	}
+	
+	/**
+	 * 各块独立压缩, 并行执行.
+	 */
+	private static List<byte[]> compressBlocks(List<List<CodeLib2Element>> parts, BlobStore.Builder blobs,
+	                                           Runnable onEach) throws IOException {
+		try {
+			return parts.parallelStream()
+					.map(part -> {
+						byte[] block = compressBlock(part, blobs);
+						onEach.run();
+						return block;
+					})
+					.collect(Collectors.toList());
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+	
+	/**
+	 * 版本 7, 8: 元素排序后切分为多个数据块, 每块是独立的 xz 压缩帧序列, 保存时并行压缩, 加载时可并行解码.<br/>
+	 * 版本 8 的帧由 {@link CodeLib2ElementCodec} 编码, 版本 7 的帧是 java 序列化数据.<br/>
+	 * [块数 int][各块压缩后长度 int...][块数据...]<br/>
+	 * 块数据是首尾相接的 xz 流, 单个 XZInputStream 即可顺序读出全部元素.
+	 */
+	private static void readVer7(InputStream in, Consumer<CodeLib2Element> consumer) throws Exception {
+		DataInputStream dataIn = new DataInputStream(in);
+		int blockCount = dataIn.readInt();
+		if (blockCount < 0)
+			throw new IOException("bad block count: " + blockCount);
+		
+		int[] lens = new int[blockCount];
+		for (int i = 0; i < blockCount; i++) {
+			lens[i] = dataIn.readInt();
+			if (lens[i] < 0)
+				throw new IOException("bad block length: " + lens[i]);
+		}
+		readBlocks(dataIn, lens, null, consumer);
+	}
+	
+	/**
+	 * 读取首尾相接的数据块, 多核时并行解码.
+	 *
+	 * @param blobs 附件数据区, 可为 null.
+	 */
+	private static void readBlocks(DataInputStream dataIn, int[] lens, BlobStore blobs,
+	                               Consumer<CodeLib2Element> consumer) throws Exception {
+		int blockCount = lens.length;
+		if (Parallelism < 2 || blockCount < 2) {
+			// 各块是首尾相接的 xz 流, 单线程时直接顺序解码, 块按顺序保存, 结果自然有序
+			XZInputStream xzIn = new XZInputStream(dataIn);
+			for (int i = 0; i < blockCount; i++) {
+				readFrames(xzIn, blobs, consumer);
+			}
+			return;
+		}
+		
+		byte[][] blocks = new byte[blockCount][];
+		for (int i = 0; i < blockCount; i++) {
+			blocks[i] = new byte[lens[i]];
+			dataIn.readFully(blocks[i]);
+		}
+		
+		try {
+			new BlockLoadTask(blocks, blobs, 0, blockCount).invoke().forEach(consumer);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+	
+	/**
+	 * 把元素排序后按尺寸切分为数据块. 块数至少为 1.
+	 */
+	private static List<List<CodeLib2Element>> splitBlocks(Collection<CodeLib2Element> eles) {
+		List<CodeLib2Element> sorted = new ArrayList<>(eles);
+		Collections.sort(sorted);
+		
+		long total = 0;
+		for (CodeLib2Element ele : sorted) {
+			total += ele.getSize();
+		}
+		// 块数为并行度的数倍, 以便负载均衡
+		long blockSize = Math.max(MinBlockSize, total / (Parallelism * 4));
+		
+		List<List<CodeLib2Element>> blocks = new ArrayList<>();
+		List<CodeLib2Element> block = new ArrayList<>();
+		long size = 0;
+		for (CodeLib2Element ele : sorted) {
+			block.add(ele);
+			size += ele.getSize();
+			if (size >= blockSize) {
+				blocks.add(block);
+				block = new ArrayList<>();
+				size = 0;
+			}
+		}
+		if (block.size() > 0 || blocks.isEmpty())
+			blocks.add(block);
+		return blocks;
+	}
+	
+	/**
+	 * 把元素压缩为一个独立的 xz 帧序列, 附件内容内嵌.
+	 */
+	static byte[] compressBlock(List<CodeLib2Element> eles) {
+		return compressBlock(eles, null);
+	}
+	
+	/**
+	 * 把元素压缩为一个独立的 xz 帧序列.
+	 *
+	 * @param blobs 附件数据区, 为 null 时附件内容内嵌.
+	 */
+	private static byte[] compressBlock(List<CodeLib2Element> eles, BlobStore.Builder blobs) {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			XZOutputStream xzOut = new XZOutputStream(out, new LZMA2Options());
+			writeFrames(xzOut, eles, blobs);
+			xzOut.finish();
+			return out.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	static List<CodeLib2Element> decompressBlock(byte[] block) throws IOException {
+		return decompressBlock(block, null);
+	}
+	
+	/**
+	 * @param blobs 附件数据区, 可为 null.
+	 */
+	static List<CodeLib2Element> decompressBlock(byte[] block, BlobStore blobs) throws IOException {
+		List<CodeLib2Element> eles = new ArrayList<>();
+		readFrames(new XZInputStream(new ByteArrayInputStream(block)), blobs, eles::add);
+		return eles;
+	}
+	
+	/**
+	 * 数据块并行加载任务. 解码 [from, to) 范围内的块, 并把各块的有序结果归并为一个有序序列.
+	 */
+	private static class BlockLoadTask extends RecursiveTask<List<CodeLib2Element>> {
+		private static final long serialVersionUID = 4283620794553035921L;
+		
+		private final byte[][] blocks;
+		private final BlobStore blobs;
+		private final int from, to;
+		
+		BlockLoadTask(byte[][] blocks, BlobStore blobs, int from, int to) {
+			this.blocks = blocks;
+			this.blobs = blobs;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected List<CodeLib2Element> compute() {
+			if (to - from < 1)
+				return new ArrayList<>();
+			
+			if (to - from == 1) {
+				byte[] block = blocks[from];
+				// 解码后即释放压缩数据
+				blocks[from] = null;
+				try {
+					return decompressBlock(block, blobs);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			
+			int mid = (from + to) >>> 1;
+			BlockLoadTask left = new BlockLoadTask(blocks, blobs, from, mid);
+			left.fork();
+			List<CodeLib2Element> right = new BlockLoadTask(blocks, blobs, mid, to).compute();
+			return merge(left.join(), right);
+		}
+		
+		private static List<CodeLib2Element> merge(List<CodeLib2Element> a, List<CodeLib2Element> b) {
+			if (a.isEmpty())
+				return b;
+			if (b.isEmpty())
+				return a;
+			// 按块顺序保存的数据通常已整体有序, 直接拼接
+			if (a.get(a.size() - 1).compareTo(b.get(0)) <= 0) {
+				a.addAll(b);
+				return a;
+			}
+			
+			List<CodeLib2Element> r = new ArrayList<>(a.size() + b.size());
+			int i = 0, j = 0;
+			while (i < a.size() && j < b.size()) {
+				if (a.get(i).compareTo(b.get(j)) <= 0)
+					r.add(a.get(i++));
+				else
+					r.add(b.get(j++));
+			}
+			while (i < a.size())
+				r.add(a.get(i++));
+			while (j < b.size())
+				r.add(b.get(j++));
+			return r;
+		}
+	}
+	
+	private static void readVer6(InputStream in, Consumer<CodeLib2Element> consumer) throws Exception {
+		XZInputStream xzIn = new XZInputStream(in);
+		readFrames(xzIn, consumer);
+		// 读完整个 xz 流, 以校验其完整性
+		if (xzIn.read() != -1)
+			throw new IOException("unexpected data after frame end");
+	}
+	
+	/**
+	 * 写元素帧序列: [帧长度 int][元素编码数据]... [FrameEnd]. 元素由 {@link CodeLib2ElementCodec} 编码.
+	 */
+	static void writeFrames(OutputStream out, Collection<CodeLib2Element> eles) throws IOException {
+		writeFrames(out, eles, null);
+	}
+	
+	/**
+	 * @param blobs 附件数据区, 为 null 时附件内容内嵌.
+	 */
+	private static void writeFrames(OutputStream out, Collection<CodeLib2Element> eles, BlobStore.Builder blobs)
+			throws IOException {
+		DataOutputStream dataOut = new DataOutputStream(out);
+		for (CodeLib2Element ele : eles) {
+			byte[] frame = CodeLib2ElementCodec.encode(ele, blobs);
+			dataOut.writeInt(frame.length);
+			dataOut.write(frame);
+		}
+		dataOut.writeInt(FrameEnd);
+		dataOut.flush();
+	}
+	
+	/**
+	 * 读元素帧序列, 读到 {@link #FrameEnd} 为止, 每读出一个元素即交给 consumer.<br/>
+	 * 帧可以是 {@link CodeLib2ElementCodec} 编码(版本 8 起), 也可以是 java 序列化数据(版本 6, 7).
+	 */
+	static void readFrames(InputStream in, Consumer<CodeLib2Element> consumer) throws IOException {
+		readFrames(in, null, consumer);
+	}
+	
+	/**
+	 * @param blobs 附件数据区, 可为 null.
+	 */
+	static void readFrames(InputStream in, BlobStore blobs, Consumer<CodeLib2Element> consumer) throws IOException {
+		DataInputStream dataIn = new DataInputStream(in);
+		int len;
+		while ((len = dataIn.readInt()) != FrameEnd) {
+			if (len < 0)
+				throw new IOException("bad frame length: " + len);
+			byte[] frame = new byte[len];
+			dataIn.readFully(frame);
+			if (CodeLib2ElementCodec.isCodecFrame(frame))
+				consumer.accept(CodeLib2ElementCodec.decode(frame, blobs));
+			else
+				consumer.accept(Serializer.BUILD_IN.deserialize(frame));
 		}
-		file.delete();
-		return writeFile.renameTo(file);
 	}
 	
 	private static Collection<CodeLib2Element> readVer5(InputStream in) throws Exception {
@@ -129,5 +698,5 @@ public class DataHeader implements Serializable {
 				}, in);
 		return result.get();
 	}
-	
+
 }
@@ -0,0 +1,371 @@
+package mysh.codelib2.model;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 元素的分面索引: 按元素在建立时的序号, 以 {@link OrdinalBitmap} 记录未删除, 有附件, 各第一个关键字的元素,
+ * 并按修改时间和大小排序序号, 范围条件二分查找后得到集合.<br/>
+ * 元数据条件由此组合求值, 不必逐个读取元素. 序号是建立时的元素下标, 与列表之后的顺序无关, 见 {@link #element(int)}.<br/>
+ * 建立后监听元素修改, 原地更新被修改元素的各项, 列表的元素有增减后须重建. 用完须 {@link #close()} 移除监听.
+ * 不触发内容加载. thread safe.
+ *
+ * @author Allen
+ */
+final class FacetIndex implements CodeLib2Element.MutationListener, Closeable {
+	
+	/**
+	 * 建立时的列表大小和元素指纹, 见 {@link #isCurrent(int, long)}.
+	 */
+	private final int libSize;
+	private final long libFingerprint;
+	
+	/**
+	 * 建立时的元素, 下标即序号.
+	 */
+	private final CodeLib2Element[] eles;
+	
+	/**
+	 * 元素 -> 序号.
+	 */
+	private final Map<CodeLib2Element, Integer> ordinals;
+	
+	/**
+	 * 未压缩的未删除, 有附件的元素位图, 及其压缩形式. 压缩形式在有修改后置 null, 用到时重新生成.
+	 */
+	private final long[] liveWords, attachmentWords;
+	private OrdinalBitmap live, withAttachments;
+	
+	/**
+	 * 各元素的语言; 小写的第一个关键字 -> 元素序号, 及其压缩形式.
+	 */
+	private final String[] languageAt;
+	private final Map<String, Ordinals> languages = new HashMap<>();
+	private final Map<String, OrdinalBitmap> languageBitmaps = new HashMap<>();
+	
+	/**
+	 * 各元素的修改时间, 大小; 按修改时间, 大小升序的序号, 及对应的值.
+	 */
+	private final long[] timeAt, sizeAt;
+	private final int[] byTime, bySize;
+	private final long[] times, sizes;
+	
+	private FacetIndex(CodeLib2Element[] eles, int libSize, long libFingerprint) {
+		int n = eles.length;
+		this.libSize = libSize;
+		this.libFingerprint = libFingerprint;
+		this.eles = eles;
+		this.ordinals = new IdentityHashMap<>(n);
+		this.liveWords = OrdinalBitmap.words(n);
+		this.attachmentWords = OrdinalBitmap.words(n);
+		this.languageAt = new String[n];
+		this.timeAt = new long[n];
+		this.sizeAt = new long[n];
+		this.byTime = new int[n];
+		this.bySize = new int[n];
+		this.times = new long[n];
+		this.sizes = new long[n];
+	}
+	
+	/**
+	 * 建立分面索引, 并开始监听元素修改.
+	 *
+	 * @param libSize        建立前取得的列表大小.
+	 * @param libFingerprint 建立前取得的元素指纹.
+	 * @return 期间有元素被移除时返回 null.
+	 */
+	static FacetIndex build(List<CodeLib2Element> list, int libSize, long libFingerprint) {
+		CodeLib2Element[] eles = new CodeLib2Element[list.size()];
+		try {
+			for (int i = 0; i < eles.length; i++) {
+				eles[i] = list.get(i);
+			}
+		} catch (IndexOutOfBoundsException e) {
+			return null;
+		}
+		FacetIndex index = new FacetIndex(eles, libSize, libFingerprint);
+		// 先监听再读取, 读取期间的修改在读取完成后再更新
+		CodeLib2Element.addMutationListener(index);
+		index.fill();
+		return index;
+	}
+	
+	private synchronized void fill() {
+		int n = this.eles.length;
+		for (int i = 0; i < n; i++) {
+			CodeLib2Element ele = this.eles[i];
+			this.ordinals.put(ele, i);
+			if (!ele.isDeleted())
+				OrdinalBitmap.set(this.liveWords, i);
+			if (ele.hasAttachments())
+				OrdinalBitmap.set(this.attachmentWords, i);
+			this.timeAt[i] = ele.getUpdateTimeMillis();
+			this.sizeAt[i] = ele.getSize();
+			
+			// 序号递增, 各语言的序号自然有序
+			this.languageAt[i] = language(ele);
+			this.languages.computeIfAbsent(this.languageAt[i], k -> new Ordinals()).append(i);
+		}
+		sortOrdinals(this.timeAt, this.byTime, this.times);
+		sortOrdinals(this.sizeAt, this.bySize, this.sizes);
+	}
+	
+	/**
+	 * 原地更新被修改的元素. 不在索引中的元素(建立后加入列表)不处理, 列表有增减时索引已须重建.
+	 */
+	@Override
+	public synchronized void onMutated(CodeLib2Element ele) {
+		Integer ordinal = this.ordinals.get(ele);
+		if (ordinal == null)
+			return;
+		int i = ordinal;
+		if (update(this.liveWords, i, !ele.isDeleted()))
+			this.live = null;
+		if (update(this.attachmentWords, i, ele.hasAttachments()))
+			this.withAttachments = null;
+		
+		String lang = language(ele);
+		String old = this.languageAt[i];
+		if (!lang.equals(old)) {
+			Ordinals oldOrdinals = this.languages.get(old);
+			oldOrdinals.remove(i);
+			if (oldOrdinals.count == 0)
+				this.languages.remove(old);
+			this.languages.computeIfAbsent(lang, k -> new Ordinals()).insert(i);
+			this.languageBitmaps.remove(old);
+			this.languageBitmaps.remove(lang);
+			this.languageAt[i] = lang;
+		}
+		
+		move(this.timeAt, this.byTime, this.times, i, ele.getUpdateTimeMillis());
+		move(this.sizeAt, this.bySize, this.sizes, i, ele.getSize());
+	}
+	
+	/**
+	 * 设置位图的一位.
+	 *
+	 * @return 是否有变化.
+	 */
+	private static boolean update(long[] words, int ordinal, boolean value) {
+		long bit = 1L << ordinal, word = words[ordinal >>> 6];
+		if ((word & bit) != 0 == value)
+			return false;
+		words[ordinal >>> 6] = value ? word | bit : word & ~bit;
+		return true;
+	}
+	
+	/**
+	 * 把元素的值改为 value, 并移到有序序号中的新位置, 其间的序号整体平移.
+	 */
+	private static void move(long[] valueOf, int[] ordinals, long[] sorted, int ordinal, long value) {
+		long old = valueOf[ordinal];
+		if (old == value)
+			return;
+		int from = lowerBound(sorted, old);
+		while (ordinals[from] != ordinal) {
+			from++;
+		}
+		int to = lowerBound(sorted, value);
+		if (to > from) {
+			to--;
+			System.arraycopy(ordinals, from + 1, ordinals, from, to - from);
+			System.arraycopy(sorted, from + 1, sorted, from, to - from);
+		} else {
+			System.arraycopy(ordinals, to, ordinals, to + 1, from - to);
+			System.arraycopy(sorted, to, sorted, to + 1, from - to);
+		}
+		ordinals[to] = ordinal;
+		sorted[to] = value;
+		valueOf[ordinal] = value;
+	}
+	
+	/**
+	 * 升序不重复的序号.
+	 */
+	private static final class Ordinals {
+		private int[] values = new int[4];
+		private int count;
+		
+		void append(int ordinal) {
+			if (this.count == this.values.length)
+				this.values = Arrays.copyOf(this.values, this.count * 2);
+			this.values[this.count++] = ordinal;
+		}
+		
+		void insert(int ordinal) {
+			int i = -Arrays.binarySearch(this.values, 0, this.count, ordinal) - 1;
+			if (this.count == this.values.length)
+				this.values = Arrays.copyOf(this.values, this.count * 2);
+			System.arraycopy(this.values, i, this.values, i + 1, this.count - i);
+			this.values[i] = ordinal;
+			this.count++;
+		}
+		
+		void remove(int ordinal) {
+			int i = Arrays.binarySearch(this.values, 0, this.count, ordinal);
+			System.arraycopy(this.values, i + 1, this.values, i, this.count - i - 1);
+			this.count--;
+		}
+	}
+	
+	/**
+	 * 元素的语言, 即小写的第一个关键字.
+	 */
+	static String language(CodeLib2Element ele) {
+		return FieldQuery.firstKeyword(ele).toLowerCase(Locale.ROOT);
+	}
+	
+	/**
+	 * 按值升序排列序号(稳定的归并排序), 并取出对应的值.
+	 *
+	 * @param valueOf  各序号的值.
+	 * @param ordinals 输出, 升序的序号.
+	 * @param sorted   输出, 对应的值.
+	 */
+	private static void sortOrdinals(long[] valueOf, int[] ordinals, long[] sorted) {
+		int n = valueOf.length;
+		int[] a = ordinals, b = new int[n];
+		for (int i = 0; i < n; i++) {
+			a[i] = i;
+		}
+		for (int width = 1; width < n; width <<= 1) {
+			for (int lo = 0; lo < n; lo += width << 1) {
+				int mid = Math.min(lo + width, n), hi = Math.min(lo + (width << 1), n);
+				int i = lo, j = mid, k = lo;
+				while (i < mid && j < hi) {
+					b[k++] = valueOf[a[j]] < valueOf[a[i]] ? a[j++] : a[i++];
+				}
+				while (i < mid) {
+					b[k++] = a[i++];
+				}
+				while (j < hi) {
+					b[k++] = a[j++];
+				}
+			}
+			int[] t = a;
+			a = b;
+			b = t;
+		}
+		if (a != ordinals)
+			System.arraycopy(a, 0, ordinals, 0, n);
+		for (int i = 0; i < n; i++) {
+			sorted[i] = valueOf[ordinals[i]];
+		}
+	}
+	
+	/**
+	 * 是否仍对应列表: 列表大小和元素指纹与建立时相同, 即元素没有增减. 只有顺序变化时仍对应.
+	 */
+	boolean isCurrent(int libSize, long libFingerprint) {
+		return this.libSize == libSize && this.libFingerprint == libFingerprint;
+	}
+	
+	/**
+	 * 序号对应的元素.
+	 */
+	CodeLib2Element element(int ordinal) {
+		return this.eles[ordinal];
+	}
+	
+	/**
+	 * 元素数, 序号在 [0, size) 中.
+	 */
+	int size() {
+		return this.eles.length;
+	}
+	
+	/**
+	 * 由本索引求值查询的全部元数据条件. 求值期间元素修改等待求值完成.
+	 */
+	synchronized OrdinalBitmap evaluate(FieldQuery query) {
+		return query.evaluateFilters(this);
+	}
+	
+	/**
+	 * 未删除的元素.
+	 */
+	synchronized OrdinalBitmap live() {
+		if (this.live == null)
+			this.live = OrdinalBitmap.of(this.liveWords);
+		return this.live;
+	}
+	
+	/**
+	 * 有附件的元素.
+	 */
+	synchronized OrdinalBitmap withAttachments() {
+		if (this.withAttachments == null)
+			this.withAttachments = OrdinalBitmap.of(this.attachmentWords);
+		return this.withAttachments;
+	}
+	
+	/**
+	 * 第一个关键字为 lang 的元素, 忽略大小写.
+	 */
+	synchronized OrdinalBitmap language(String lang) {
+		String key = lang.toLowerCase(Locale.ROOT);
+		Ordinals ordinals = this.languages.get(key);
+		if (ordinals == null)
+			return OrdinalBitmap.Empty;
+		return this.languageBitmaps.computeIfAbsent(key, k -> OrdinalBitmap.ofSorted(ordinals.values, ordinals.count));
+	}
+	
+	/**
+	 * 修改时间(毫秒)在 [from, to) 中的元素.
+	 */
+	synchronized OrdinalBitmap updated(long from, long to) {
+		return range(this.times, this.byTime, from, to);
+	}
+	
+	/**
+	 * 大小在 [from, to) 中的元素.
+	 */
+	synchronized OrdinalBitmap size(long from, long to) {
+		return range(this.sizes, this.bySize, from, to);
+	}
+	
+	private OrdinalBitmap range(long[] sorted, int[] ordinals, long from, long to) {
+		int lo = lowerBound(sorted, from), hi = lowerBound(sorted, to);
+		if (lo >= hi)
+			return OrdinalBitmap.Empty;
+		long[] words = OrdinalBitmap.words(ordinals.length);
+		for (int i = lo; i < hi; i++) {
+			OrdinalBitmap.set(words, ordinals[i]);
+		}
+		return OrdinalBitmap.of(words);
+	}
+	
+	/**
+	 * 第一个不小于 value 的位置.
+	 */
+	private static int lowerBound(long[] sorted, long value) {
+		int lo = 0, hi = sorted.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (sorted[mid] < value)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+	
+	/**
+	 * 停止监听元素修改.
+	 */
+	@Override
+	public void close() {
+		CodeLib2Element.removeMutationListener(this);
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return "FacetIndex{elements: " + this.eles.length + ", live: " + this.live().cardinality()
+				+ ", languages: " + this.languages.size() + "}";
+	}
+}
@@ -0,0 +1,338 @@
+package mysh.codelib2.model;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 按字段限定的查询.<br/>
+ * 条件以空白或逗号分隔, 全部满足才匹配:
+ * <ul>
+ * <li>term: 关键字, 匹配关键字, 附件名, 内容, 文本附件内容之一即可. * 匹配全部元素.</li>
+ * <li>kw:term, content:term, att:term: 只匹配关键字, 内容, 附件(附件名和文本附件内容).</li>
+ * <li>"exact phrase": 含空白或逗号的关键字, 可带字段, 如 kw:"a b".</li>
+ * <li>lang:java: 第一个关键字(忽略大小写). has:att: 有附件.</li>
+ * <li>updated:>2025-01-01, size:>10k: 修改日期, 大小范围, 可用 &gt; &gt;= &lt; &lt;= =, 大小可带 k, m, g.</li>
+ * <li>-条件: 排除满足条件的元素.</li>
+ * </ul>
+ * 解析为求值树: 根为各条件的与, 子节点按代价分三组依次求值: 元数据条件, 包含的关键字(按执行计划),
+ * 排除的关键字. 限定字段的关键字不扫描其他字段. 元数据条件可由 {@link FacetIndex} 的位图一次求值.
+ *
+ * @author Allen
+ */
+final class FieldQuery {
+	
+	/**
+	 * 关键字匹配的字段.
+	 */
+	static final int Keywords = 1, AttachmentNames = 2, Content = 4, AttachmentTexts = 8;
+	static final int AllFields = Keywords | AttachmentNames | Content | AttachmentTexts;
+	
+	private static final Pattern SizePattern = Pattern.compile("(\\d+(?:\\.\\d+)?)([kmg]?)b?", Pattern.CASE_INSENSITIVE);
+	
+	/**
+	 * 关键字条件.
+	 */
+	static final class Term {
+		private final String text;
+		private final int fields;
+		
+		Term(String text, int fields) {
+			this.text = text;
+			this.fields = fields;
+		}
+		
+		/**
+		 * 关键字, 空串匹配全部元素.
+		 */
+		String getText() {
+			return text;
+		}
+		
+		/**
+		 * 匹配的字段, {@link #Keywords} 等的组合.
+		 */
+		int getFields() {
+			return fields;
+		}
+		
+		@Override
+		public String toString() {
+			String f = this.fields == AllFields ? "" : this.fields == Keywords ? "kw:" : this.fields == Content ? "content:" : "att:";
+			return f + '"' + this.text + '"';
+		}
+	}
+	
+	/**
+	 * 元数据条件, 不读取内容. 可逐个元素求值, 也可由分面索引得到满足条件的元素集合.
+	 */
+	static final class Filter {
+		private final String description;
+		private final Predicate<CodeLib2Element> test;
+		private final Function<FacetIndex, OrdinalBitmap> facet;
+		private final boolean excluded;
+		
+		Filter(String description, Predicate<CodeLib2Element> test, Function<FacetIndex, OrdinalBitmap> facet,
+		       boolean excluded) {
+			this.description = description;
+			this.test = test;
+			this.facet = facet;
+			this.excluded = excluded;
+		}
+		
+		boolean test(CodeLib2Element ele) {
+			return this.test.test(ele) != this.excluded;
+		}
+		
+		Filter negate() {
+			return new Filter(this.description, this.test, this.facet, !this.excluded);
+		}
+		
+		@Override
+		public String toString() {
+			return (this.excluded ? "-" : "") + this.description;
+		}
+	}
+	
+	private final List<Filter> filters;
+	private final List<Term> terms;
+	private final List<Term> exclusions;
+	
+	private FieldQuery(List<Filter> filters, List<Term> terms, List<Term> exclusions) {
+		this.filters = Collections.unmodifiableList(filters);
+		this.terms = Collections.unmodifiableList(terms);
+		this.exclusions = Collections.unmodifiableList(exclusions);
+	}
+	
+	/**
+	 * 解析查询. 未知的字段前缀(如 http:)作为关键字的一部分.
+	 *
+	 * @throws IllegalArgumentException 范围条件的值无效.
+	 */
+	static FieldQuery parse(String text) {
+		List<Filter> filters = new ArrayList<>();
+		List<Term> terms = new ArrayList<>();
+		List<Term> exclusions = new ArrayList<>();
+		
+		int n = text.length();
+		for (int i = 0; i < n; ) {
+			if (isSeparator(text.charAt(i))) {
+				i++;
+				continue;
+			}
+			
+			boolean excluded = text.charAt(i) == '-' && i + 1 < n && !isSeparator(text.charAt(i + 1));
+			if (excluded)
+				i++;
+			
+			String field = null;
+			int colon = i;
+			while (colon < n && Character.isLetter(text.charAt(colon))) {
+				colon++;
+			}
+			if (colon < n && text.charAt(colon) == ':') {
+				String name = text.substring(i, colon).toLowerCase(Locale.ROOT);
+				if ("kw".equals(name) || "content".equals(name) || "att".equals(name) || "lang".equals(name)
+						|| "has".equals(name) || "updated".equals(name) || "size".equals(name)) {
+					field = name;
+					i = colon + 1;
+				}
+			}
+			
+			String value;
+			boolean quoted = i < n && text.charAt(i) == '"';
+			if (quoted) {
+				int end = text.indexOf('"', i + 1);
+				if (end < 0)
+					end = n;
+				value = text.substring(i + 1, end);
+				i = Math.min(end + 1, n);
+			} else {
+				int end = i;
+				while (end < n && !isSeparator(text.charAt(end))) {
+					end++;
+				}
+				value = text.substring(i, end);
+				i = end;
+			}
+			if (value.isEmpty())
+				continue;
+			
+			if ("lang".equals(field) || "has".equals(field) || "updated".equals(field) || "size".equals(field)) {
+				Filter f = "lang".equals(field) ? langFilter(value)
+						: "has".equals(field) ? hasFilter(value)
+						: "updated".equals(field) ? updatedFilter(value) : sizeFilter(value);
+				filters.add(excluded ? f.negate() : f);
+				continue;
+			}
+			
+			int fields = field == null ? AllFields
+					: "kw".equals(field) ? Keywords
+					: "content".equals(field) ? Content : AttachmentNames | AttachmentTexts;
+			if (excluded)
+				exclusions.add(new Term(value, fields));
+			else
+				terms.add(new Term(!quoted && field == null && "*".equals(value) ? "" : value, fields));
+		}
+		return new FieldQuery(filters, terms, exclusions);
+	}
+	
+	private static boolean isSeparator(char c) {
+		return c == ',' || Character.isWhitespace(c);
+	}
+	
+	/**
+	 * 元素的第一个关键字.
+	 */
+	static String firstKeyword(CodeLib2Element ele) {
+		String keywords = ele.getKeywords();
+		if (keywords == null)
+			return "";
+		int start = 0, n = keywords.length();
+		while (start < n && isSeparator(keywords.charAt(start))) {
+			start++;
+		}
+		int end = start;
+		while (end < n && !isSeparator(keywords.charAt(end))) {
+			end++;
+		}
+		return keywords.substring(start, end);
+	}
+	
+	private static Filter langFilter(String lang) {
+		String language = lang.toLowerCase(Locale.ROOT);
+		return new Filter("lang:" + lang, ele -> FacetIndex.language(ele).equals(language),
+				facets -> facets.language(language), false);
+	}
+	
+	private static Filter hasFilter(String value) {
+		if (!value.toLowerCase(Locale.ROOT).startsWith("att"))
+			throw new IllegalArgumentException("无效条件: has:" + value);
+		return new Filter("has:" + value, CodeLib2Element::hasAttachments, FacetIndex::withAttachments, false);
+	}
+	
+	private static Filter updatedFilter(String value) {
+		String op = operator(value);
+		LocalDate date;
+		try {
+			date = LocalDate.parse(value.substring(op.length()));
+		} catch (DateTimeParseException e) {
+			throw new IllegalArgumentException("无效日期: " + value, e);
+		}
+		// 日期按本地时区的一整天 [start, end)
+		long start = date.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+		long end = date.plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+		long from = ">".equals(op) ? end : ">=".equals(op) || op.isEmpty() || "=".equals(op) ? start : Long.MIN_VALUE;
+		long to = "<".equals(op) ? start : "<=".equals(op) || op.isEmpty() || "=".equals(op) ? end : Long.MAX_VALUE;
+		return rangeFilter("updated:" + value, CodeLib2Element::getUpdateTimeMillis, from, to, facets -> facets.updated(from, to));
+	}
+	
+	private static Filter sizeFilter(String value) {
+		String op = operator(value);
+		Matcher m = SizePattern.matcher(value.substring(op.length()));
+		if (!m.matches())
+			throw new IllegalArgumentException("无效大小: " + value);
+		int unit = "kmg".indexOf(Character.toLowerCase(m.group(2).isEmpty() ? ' ' : m.group(2).charAt(0))) + 1;
+		double size = Double.parseDouble(m.group(1)) * (1L << (10 * unit));
+		// 大小为整数, 换算为 [from, to)
+		long floor = (long) Math.floor(size), ceil = (long) Math.ceil(size);
+		long from = ">".equals(op) ? floor + 1 : ">=".equals(op) || op.isEmpty() || "=".equals(op) ? ceil : Long.MIN_VALUE;
+		long to = "<".equals(op) ? ceil : "<=".equals(op) || op.isEmpty() || "=".equals(op) ? floor + 1 : Long.MAX_VALUE;
+		return rangeFilter("size:" + value, CodeLib2Element::getSize, from, to, facets -> facets.size(from, to));
+	}
+	
+	/**
+	 * 值在 [from, to) 中的条件.
+	 */
+	private static Filter rangeFilter(String description, ToLongFunction<CodeLib2Element> valueOf, long from, long to,
+	                                  Function<FacetIndex, OrdinalBitmap> facet) {
+		return new Filter(description, ele -> {
+			long v = valueOf.applyAsLong(ele);
+			return v >= from && v < to;
+		}, facet, false);
+	}
+	
+	/**
+	 * 范围条件的比较符, 无则为空串.
+	 */
+	private static String operator(String value) {
+		for (String op : new String[]{">=", "<=", ">", "<", "="}) {
+			if (value.startsWith(op))
+				return op;
+		}
+		return "";
+	}
+	
+	/**
+	 * 元数据条件, 不读取内容, 最先求值.
+	 */
+	List<Filter> getFilters() {
+		return filters;
+	}
+	
+	/**
+	 * 须包含的关键字.
+	 */
+	List<Term> getTerms() {
+		return terms;
+	}
+	
+	/**
+	 * 须排除的关键字.
+	 */
+	List<Term> getExclusions() {
+		return exclusions;
+	}
+	
+	/**
+	 * 没有任何条件.
+	 */
+	boolean isEmpty() {
+		return this.filters.isEmpty() && this.terms.isEmpty() && this.exclusions.isEmpty();
+	}
+	
+	/**
+	 * 只有不限字段的包含关键字. 此时结果是包含全部关键字的所有元素, 可用于细化搜索.
+	 */
+	boolean isPlain() {
+		return this.filters.isEmpty() && this.exclusions.isEmpty()
+				&& this.terms.stream().allMatch(t -> t.fields == AllFields);
+	}
+	
+	/**
+	 * 由分面索引求值全部元数据条件, 结果不含已删除的元素.
+	 */
+	OrdinalBitmap evaluateFilters(FacetIndex facets) {
+		OrdinalBitmap hits = facets.live();
+		for (Filter f : this.filters) {
+			OrdinalBitmap set = f.facet.apply(facets);
+			hits = f.excluded ? hits.andNot(set) : hits.and(set);
+		}
+		return hits;
+	}
+	
+	/**
+	 * 元素是否满足全部元数据条件.
+	 */
+	boolean testFilters(CodeLib2Element ele) {
+		for (Filter f : this.filters) {
+			if (!f.test(ele))
+				return false;
+		}
+		return true;
+	}
+	
+	@Override
+	public String toString() {
+		return "FieldQuery{filters: " + this.filters + ", terms: " + this.terms + ", exclusions: " + this.exclusions + "}";
+	}
+}
@@ -0,0 +1,210 @@
+package mysh.codelib2.model;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 单个关键字的忽略大小写查找(Horspool).<br/>
+ * 按查询预先建立, 跳跃表同时包含关键字的大写, 小写字节. 窗口末字节不在关键字中时整段跳过.<br/>
+ * 关键字按 UTF-8 字符比较: 单字节字符与大写或小写形式之一相同即可,
+ * 多字节字符须整个与大写或小写形式之一相同, 不会把两种形式的字节拼成别的字符.
+ * 大写, 小写形式的字符边界不一致时(如 'ß' 与 "SS"), 分别精确查找两种形式.
+ *
+ * @author Allen
+ */
+final class KeyMatcher {
+	
+	private final byte[] upper, lower;
+	
+	/**
+	 * 窗口末字节 -> 窗口右移距离.
+	 */
+	private final int[] skip = new int[256];
+	
+	/**
+	 * 大写, 小写形式不同的多字节字符, [起始, 结束) 成对排列. 无则为 null.
+	 */
+	private final int[] segments;
+	
+	/**
+	 * 字符边界不一致时小写形式的查找器, 此时本查找器只查大写形式. 否则为 null.
+	 */
+	private final KeyMatcher lowerMatcher;
+	
+	private KeyMatcher(byte[] upper, byte[] lower, int[] segments, KeyMatcher lowerMatcher) {
+		this.upper = upper;
+		this.lower = lower;
+		this.segments = segments;
+		this.lowerMatcher = lowerMatcher;
+		
+		int last = upper.length - 1;
+		Arrays.fill(this.skip, upper.length);
+		for (int j = 0; j < last; j++) {
+			this.skip[upper[j] & 0xFF] = last - j;
+			this.skip[lower[j] & 0xFF] = last - j;
+		}
+	}
+	
+	/**
+	 * 建立查找器.
+	 *
+	 * @param upper 关键字大写形式的 UTF-8 字节.
+	 * @param lower 关键字小写形式的 UTF-8 字节.
+	 */
+	static KeyMatcher of(byte[] upper, byte[] lower) {
+		if (!isAligned(upper, lower))
+			return new KeyMatcher(upper, upper, null, new KeyMatcher(lower, lower, null, null));
+		
+		int[] segments = new int[upper.length * 2];
+		int n = 0;
+		for (int s = 0, e; s < upper.length; s = e) {
+			e = s + 1;
+			while (e < upper.length && !isLead(upper[e])) {
+				e++;
+			}
+			if (e - s > 1 && !Arrays.equals(Arrays.copyOfRange(upper, s, e), Arrays.copyOfRange(lower, s, e))) {
+				segments[n++] = s;
+				segments[n++] = e;
+			}
+		}
+		return new KeyMatcher(upper, lower, n == 0 ? null : Arrays.copyOf(segments, n), null);
+	}
+	
+	/**
+	 * 大写, 小写形式长度相同且字符边界一致.
+	 */
+	private static boolean isAligned(byte[] upper, byte[] lower) {
+		if (upper.length != lower.length)
+			return false;
+		for (int j = 0; j < upper.length; j++) {
+			if (isLead(upper[j]) != isLead(lower[j]))
+				return false;
+		}
+		return true;
+	}
+	
+	private static boolean isLead(byte b) {
+		return (b & 0xC0) != 0x80;
+	}
+	
+	/**
+	 * 关键字字节长度.
+	 */
+	int length() {
+		return this.upper.length;
+	}
+	
+	/**
+	 * 大写, 小写形式能否逐字节对应. 不能时 {@link #matchesAt} 只核对大写形式.
+	 */
+	boolean isAligned() {
+		return this.lowerMatcher == null;
+	}
+	
+	/**
+	 * 有大写, 小写形式不同的多字节字符, 逐字节比较的结果须再用 {@link #matchesAt} 核对.
+	 */
+	boolean hasMultiByteCase() {
+		return this.segments != null;
+	}
+	
+	/**
+	 * 在 data 中从 start 起查找关键字.
+	 *
+	 * @return 匹配位置, 找不到返回 -1.
+	 */
+	int indexOf(byte[] data, int start) {
+		if (this.lowerMatcher != null)
+			return earliest(find(data, start), this.lowerMatcher.find(data, start));
+		return find(data, start);
+	}
+	
+	/**
+	 * 在 buf 中从 start 起查找关键字. 位置从 0 计, 查到 buf 的 limit 为止, 不改变 buf 的位置.
+	 *
+	 * @return 匹配位置, 找不到返回 -1.
+	 */
+	int indexOf(ByteBuffer buf, int start) {
+		if (this.lowerMatcher != null)
+			return earliest(find(buf, start), this.lowerMatcher.find(buf, start));
+		return find(buf, start);
+	}
+	
+	private static int earliest(int a, int b) {
+		return a < 0 ? b : b < 0 ? a : Math.min(a, b);
+	}
+	
+	private int find(byte[] data, int start) {
+		int m = this.upper.length;
+		if (m == 0)
+			return start <= data.length ? Math.max(start, 0) : -1;
+		for (int i = Math.max(start, 0), limit = data.length - m; i <= limit; i += this.skip[data[i + m - 1] & 0xFF]) {
+			if (matchesAt(data, i))
+				return i;
+		}
+		return -1;
+	}
+	
+	private int find(ByteBuffer buf, int start) {
+		int m = this.upper.length;
+		if (m == 0)
+			return start <= buf.limit() ? Math.max(start, 0) : -1;
+		for (int i = Math.max(start, 0), limit = buf.limit() - m; i <= limit; i += this.skip[buf.get(i + m - 1) & 0xFF]) {
+			if (matchesAt(buf, i))
+				return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * data 中 start 处是否为关键字. 调用方保证不越界.
+	 */
+	boolean matchesAt(byte[] data, int start) {
+		for (int j = this.upper.length - 1; j >= 0; j--) {
+			byte b = data[start + j];
+			if (b != this.upper[j] && b != this.lower[j])
+				return false;
+		}
+		if (this.segments != null)
+			for (int k = 0; k < this.segments.length; k += 2) {
+				if (!segmentEquals(data, start, this.segments[k], this.segments[k + 1], this.upper)
+						&& !segmentEquals(data, start, this.segments[k], this.segments[k + 1], this.lower))
+					return false;
+			}
+		return true;
+	}
+	
+	/**
+	 * buf 中 start 处是否为关键字. 调用方保证不越界.
+	 */
+	boolean matchesAt(ByteBuffer buf, int start) {
+		for (int j = this.upper.length - 1; j >= 0; j--) {
+			byte b = buf.get(start + j);
+			if (b != this.upper[j] && b != this.lower[j])
+				return false;
+		}
+		if (this.segments != null)
+			for (int k = 0; k < this.segments.length; k += 2) {
+				if (!segmentEquals(buf, start, this.segments[k], this.segments[k + 1], this.upper)
+						&& !segmentEquals(buf, start, this.segments[k], this.segments[k + 1], this.lower))
+					return false;
+			}
+		return true;
+	}
+	
+	private static boolean segmentEquals(byte[] data, int start, int from, int to, byte[] key) {
+		for (int j = from; j < to; j++) {
+			if (data[start + j] != key[j])
+				return false;
+		}
+		return true;
+	}
+	
+	private static boolean segmentEquals(ByteBuffer buf, int start, int from, int to, byte[] key) {
+		for (int j = from; j < to; j++) {
+			if (buf.get(start + j) != key[j])
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,364 @@
+package mysh.codelib2.model;
+
+import mysh.collect.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * 库文件变更日志.<br/>
+ * 保存时只把上次保存后改动过的元素(按 {@link CodeLib2Element#getId()} 区分)压缩后追加到日志文件,
+ * 打开时在库文件快照上按顺序重放日志. 日志超过阈值后在后台合并回库文件.<br/>
+ * 日志文件格式: [日志标识 UTF][记录长度 int][记录]... 记录为 {@link DataHeader#compressBlock} 的结果.
+ * 日志标识与快照 {@link DataHeader#getJournalId()} 一致时日志才有效.<br/>
+ * 打开大库时持有元素内容的 {@link MappedContentStore}, 库不再使用后须关闭.
+ *
+ * @author Allen
+ */
+public class LibJournal implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(LibJournal.class);
+
+	/**
+	 * 日志合并阈值下限(字节).
+	 */
+	private static final long MinCompactSize = 8 << 20;
+
+	/**
+	 * 日志合并线程. 所有库共用, 合并任务依次执行.
+	 */
+	private static final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "LibJournal Compactor");
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		return t;
+	});
+
+	/**
+	 * 库文件(快照).
+	 */
+	private final File file;
+
+	/**
+	 * 当前追加的日志文件.
+	 */
+	private final File journalFile;
+
+	/**
+	 * 合并中的日志文件. 合并开始时当前日志改名为此文件, 合并完成后删除.
+	 */
+	private final File compactingFile;
+
+	/**
+	 * 快照及日志的写锁, 合并与全量保存互斥.
+	 */
+	private final Object snapshotLock = new Object();
+
+	private final AtomicBoolean compacting = new AtomicBoolean();
+
+	/**
+	 * 日志标识. 为 null 表示快照没有配套日志, 下次保存需全量写快照.
+	 */
+	private volatile String journalId;
+
+	/**
+	 * 日志文件中有效数据的长度. 末尾不完整的记录(如写入时崩溃)会在下次追加前截掉.
+	 */
+	private long journalValidLength = -1;
+
+	/**
+	 * 上次持久化时各元素的修改时间, 用于找出变更元素.
+	 */
+	private final Map<String, Instant> persisted = new HashMap<>();
+	
+	/**
+	 * 上次打开时内容的后台加载.
+	 */
+	private volatile CompletableFuture<Void> contentLoading = CompletableFuture.completedFuture(null);
+
+	/**
+	 * 上次打开时元素内容的存储, 可为 null.
+	 */
+	private MappedContentStore contentStore;
+	
+	public LibJournal(File file) {
+		this.file = file;
+		this.journalFile = new File(file.getPath() + ".journal");
+		this.compactingFile = new File(file.getPath() + ".journal.compacting");
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * 读取快照并重放日志. 返回的元素已按自然顺序排序.<br/>
+	 * 快照带元素目录时只读目录即返回, 元素内容在后台加载, 见 {@link #getContentLoading()}.
+	 * 大库的元素内容存入内容存储, 再次打开或关闭时释放上次的存储.
+	 */
+	public List<CodeLib2Element> load() throws Exception {
+		return load(true);
+	}
+	
+	/**
+	 * 读取快照并重放日志.
+	 *
+	 * @param mapContent 大库的元素内容是否存入内容存储. 导入等只复制元素, 不保留本对象的场合应为 false,
+	 *                   元素内容留在堆上, 不产生需要关闭的存储.
+	 * @see #load()
+	 */
+	public synchronized List<CodeLib2Element> load(boolean mapContent) throws Exception {
+		this.closeContentStore();
+		if (mapContent && DataHeader.isLargeLib(this.file))
+			this.contentStore = new MappedContentStore();
+		
+		Map<String, CodeLib2Element> byId = new LinkedHashMap<>();
+		Pair<DataHeader, CompletableFuture<Void>> opened =
+				DataHeader.openFromFile(this.file, e -> byId.put(e.getId(), e), this.contentStore);
+		DataHeader header = opened.getL();
+		this.contentLoading = opened.getR();
+
+		boolean replayed = false;
+		this.journalId = header.getJournalId();
+		this.journalValidLength = -1;
+		if (this.journalId != null) {
+			replayed = replay(this.compactingFile, byId) >= 0;
+			this.journalValidLength = replay(this.journalFile, byId);
+			replayed |= this.journalValidLength >= 0;
+		}
+
+		List<CodeLib2Element> eles = new ArrayList<>(byId.values());
+		// 版本 7 起快照本身有序, 重放日志后需重新排序
+		if (replayed || header.getVersion() < 7)
+			Collections.sort(eles);
+
+		this.persisted.clear();
+		markPersisted(eles);
+		return eles;
+	}
+	
+	/**
+	 * 释放上次打开时的内容存储. 不影响保存.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		this.closeContentStore();
+	}
+	
+	private void closeContentStore() throws IOException {
+		MappedContentStore store = this.contentStore;
+		this.contentStore = null;
+		if (store != null)
+			store.close();
+	}
+
+	/**
+	 * 上次 {@link #load()} 的元素内容后台加载. 全部内容加载完成后结束.
+	 */
+	public CompletableFuture<Void> getContentLoading() {
+		return contentLoading;
+	}
+	
+	/**
+	 * 保存. 快照已有配套日志时只追加变更元素, 否则全量保存.
+	 */
+	public void save(Collection<CodeLib2Element> eles) throws Exception {
+		save(eles, p -> {
+		});
+	}
+	
+	/**
+	 * 保存, 并报告进度.
+	 *
+	 * @param progress 进度(百分比).
+	 */
+	public synchronized void save(Collection<CodeLib2Element> eles, IntConsumer progress) throws Exception {
+		if (this.journalId == null) {
+			saveFull(eles, progress);
+			return;
+		}
+
+		List<CodeLib2Element> changed = eles.stream()
+				.filter(e -> !Objects.equals(this.persisted.get(e.getId()), e.getUpdateTime()))
+				.collect(Collectors.toList());
+		if (changed.isEmpty())
+			return;
+
+		byte[] record = DataHeader.compressBlock(changed);
+		long journalLength = append(record);
+		markPersisted(changed);
+		progress.accept(100);
+
+		if (journalLength > Math.max(MinCompactSize, this.file.length() / 2))
+			compactInBackground();
+	}
+
+	/**
+	 * 全量保存快照, 并开始新的日志.
+	 */
+	public void saveFull(Collection<CodeLib2Element> eles) throws Exception {
+		saveFull(eles, p -> {
+		});
+	}
+	
+	/**
+	 * 全量保存快照, 并开始新的日志.
+	 *
+	 * @param progress 进度(百分比).
+	 */
+	public synchronized void saveFull(Collection<CodeLib2Element> eles, IntConsumer progress) throws Exception {
+		synchronized (this.snapshotLock) {
+			String newJournalId = UUID.randomUUID().toString();
+			if (!DataHeader.saveToFile(this.file, eles, newJournalId, progress))
+				throw new IOException("write file failed: " + this.file);
+			this.journalFile.delete();
+			this.compactingFile.delete();
+			this.journalId = newJournalId;
+			this.journalValidLength = -1;
+		}
+		this.persisted.clear();
+		markPersisted(eles);
+	}
+
+	private void markPersisted(Collection<CodeLib2Element> eles) {
+		for (CodeLib2Element ele : eles) {
+			this.persisted.put(ele.getId(), ele.getUpdateTime());
+		}
+	}
+
+	/**
+	 * 追加一条记录.
+	 *
+	 * @return 追加后的日志长度.
+	 */
+	private long append(byte[] record) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(this.journalFile, "rw")) {
+			if (this.journalValidLength < 0 || raf.length() == 0) {
+				raf.setLength(0);
+				raf.writeUTF(this.journalId);
+			} else {
+				raf.setLength(this.journalValidLength);
+				raf.seek(this.journalValidLength);
+			}
+			raf.writeInt(record.length);
+			raf.write(record);
+			raf.getChannel().force(false);
+			this.journalValidLength = raf.getFilePointer();
+			return this.journalValidLength;
+		}
+	}
+
+	/**
+	 * 把日志文件中的记录按顺序重放到 byId 上.
+	 *
+	 * @return 日志中有效数据的长度, 日志不存在或与快照不匹配时返回 -1.
+	 */
+	private long replay(File journal, Map<String, CodeLib2Element> byId) throws IOException {
+		if (!journal.exists())
+			return -1;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)))) {
+			if (!this.journalId.equals(in.readUTF())) {
+				log.warn("journal does not match snapshot, ignored: {}", journal);
+				return -1;
+			}
+			long validLength = 2 + this.journalId.getBytes(StandardCharsets.UTF_8).length;
+			while (true) {
+				byte[] record;
+				try {
+					int len = in.readInt();
+					if (len < 0)
+						break;
+					record = new byte[len];
+					in.readFully(record);
+				} catch (EOFException e) {
+					break;
+				}
+
+				List<CodeLib2Element> eles;
+				try {
+					eles = DataHeader.decompressBlock(record);
+				} catch (IOException e) {
+					log.warn("broken journal record ignored: " + journal, e);
+					break;
+				}
+				for (CodeLib2Element ele : eles) {
+					byId.put(ele.getId(), ele);
+				}
+				validLength += 4 + record.length;
+			}
+			return validLength;
+		} catch (EOFException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * 后台把日志合并回快照.<br/>
+	 * 当前日志先改名为合并中日志, 之后的保存追加到新日志, 不被合并阻塞.
+	 * 合并从磁盘读取快照和日志, 不触及内存中正在编辑的元素.
+	 */
+	private void compactInBackground() {
+		if (!this.compacting.compareAndSet(false, true))
+			return;
+
+		// 上次未完成的合并日志先合并, 当前日志留待下次
+		if (!this.compactingFile.exists()) {
+			if (!this.journalFile.renameTo(this.compactingFile)) {
+				this.compacting.set(false);
+				return;
+			}
+			this.journalValidLength = -1;
+		}
+
+		String compactJournalId = this.journalId;
+		compactor.execute(() -> {
+			try {
+				synchronized (this.snapshotLock) {
+					// 全量保存后旧日志已失效
+					if (!compactJournalId.equals(this.journalId) || !this.compactingFile.exists())
+						return;
+
+					Map<String, CodeLib2Element> byId = new LinkedHashMap<>();
+					DataHeader.readFromFile(this.file, e -> byId.put(e.getId(), e));
+					if (replay(this.compactingFile, byId) >= 0) {
+						List<CodeLib2Element> eles = new ArrayList<>(byId.values());
+						Collections.sort(eles);
+						if (!DataHeader.saveToFile(this.file, eles, compactJournalId))
+							throw new IOException("write file failed: " + this.file);
+					}
+					this.compactingFile.delete();
+				}
+			} catch (Exception e) {
+				log.error("compact journal failed: " + this.file, e);
+			} finally {
+				this.compacting.set(false);
+			}
+		});
+	}
+}
@@ -0,0 +1,127 @@
+package mysh.codelib2.model;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 内存映射的内容存储.<br/>
+ * 大库文件打开后, 元素内容和附件内容解压后依次写入一个临时文件, 经 {@link FileChannel#map} 映射访问,
+ * 元素只持有位置和长度, 内容不占用堆内存.<br/>
+ * 临时文件按区域映射, 单条内容不跨区域. 超过区域大小的内容不存入, 仍留在堆中.<br/>
+ * 库不再使用后须关闭, 以释放文件句柄和临时文件. 关闭前取得的内容在其元素被回收前仍可读取.
+ *
+ * @author Allen
+ */
+final class MappedContentStore implements Closeable {
+	
+	/**
+	 * 映射区域大小.
+	 */
+	static final int RegionSize = 64 << 20;
+	
+	/**
+	 * 存储中的一段内容.
+	 */
+	static final class Ref {
+		private final ByteBuffer region;
+		private final int offset;
+		private final int length;
+		
+		private Ref(ByteBuffer region, int offset, int length) {
+			this.region = region;
+			this.offset = offset;
+			this.length = length;
+		}
+		
+		int length() {
+			return length;
+		}
+		
+		/**
+		 * 只读视图, 不复制内容.
+		 */
+		ByteBuffer buffer() {
+			ByteBuffer b = this.region.asReadOnlyBuffer();
+			b.position(this.offset);
+			b.limit(this.offset + this.length);
+			return b.slice();
+		}
+		
+		/**
+		 * 复制到堆中.
+		 */
+		byte[] toArray() {
+			byte[] data = new byte[this.length];
+			buffer().get(data);
+			return data;
+		}
+	}
+	
+	private final File file;
+	private final FileChannel channel;
+	private final List<MappedByteBuffer> regions = new ArrayList<>();
+	
+	/**
+	 * 当前区域中下一条内容的位置.
+	 */
+	private int regionPos = RegionSize;
+	
+	private boolean closed;
+	
+	MappedContentStore() throws IOException {
+		this.file = File.createTempFile("CodeLib2Content", ".tmp");
+		this.file.deleteOnExit();
+		this.channel = new RandomAccessFile(this.file, "rw").getChannel();
+	}
+	
+	/**
+	 * 存入内容.
+	 *
+	 * @return 存入位置. 内容为空, 超过区域大小或存储已关闭时返回 null, 由调用方留在堆中.
+	 * @throws IOException 映射新区域失败.
+	 */
+	synchronized Ref put(byte[] data) throws IOException {
+		if (this.closed || data == null || data.length == 0 || data.length > RegionSize)
+			return null;
+		
+		if (this.regionPos + data.length > RegionSize) {
+			long position = (long) this.regions.size() * RegionSize;
+			this.regions.add(this.channel.map(FileChannel.MapMode.READ_WRITE, position, RegionSize));
+			this.regionPos = 0;
+		}
+		
+		MappedByteBuffer region = this.regions.get(this.regions.size() - 1);
+		ByteBuffer w = region.duplicate();
+		w.position(this.regionPos);
+		w.put(data);
+		
+		Ref ref = new Ref(region, this.regionPos, data.length);
+		this.regionPos += data.length;
+		return ref;
+	}
+	
+	/**
+	 * 关闭文件并删除临时文件. 已映射的区域不强制解除, 由仍引用它的内容在回收时释放,
+	 * 因此删除失败时(如 Windows 上仍有映射)改为退出时删除.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (this.closed)
+			return;
+		this.closed = true;
+		this.regions.clear();
+		try {
+			this.channel.close();
+		} finally {
+			if (!this.file.delete())
+				this.file.deleteOnExit();
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package mysh.codelib2.model;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * 多关键字匹配(Aho-Corasick).<br/>
+ * 按查询的各关键字建立一次自动机, 扫描内容一遍即得各关键字的出现次数(含重叠).<br/>
+ * 匹配语义与 {@link KeyMatcher} 相同.
+ * 自动机的输入是字节类: 各关键字同一位置的大写, 小写字节归为一类. 不同关键字的类合并后可能多于两个字节,
+ * 关键字也可能有大写, 小写形式不同的多字节字符, 此时自动机给出的是候选位置, 再由 {@link KeyMatcher#matchesAt} 核对.
+ *
+ * @author Allen
+ */
+final class MultiKeyMatcher {
+	
+	private final byte[][] upperKeys;
+	
+	private final KeyMatcher[] keys;
+	
+	/**
+	 * 字节 -> 字节类. 不在关键字中的字节为 0 类.
+	 */
+	private final int[] classOf = new int[256];
+	private final int classCount;
+	
+	/**
+	 * 状态转移表, [状态 * 类数 + 类].
+	 */
+	private final int[] delta;
+	
+	/**
+	 * 各状态结束的关键字(含经失败链到达的), 无则为 null.
+	 */
+	private final int[][] out;
+	
+	/**
+	 * 各关键字是否需要核对. 字节类恰为大写, 小写两个字节时不必核对.
+	 */
+	private final boolean[] verify;
+	
+	private MultiKeyMatcher(byte[][] upperKeys, byte[][] lowerKeys, KeyMatcher[] keys) {
+		this.upperKeys = upperKeys;
+		this.keys = keys;
+		
+		// 字节类: 合并各位置的大写, 小写字节
+		int[] parent = new int[256];
+		for (int b = 0; b < 256; b++) {
+			parent[b] = b;
+		}
+		boolean[] used = new boolean[256];
+		for (int k = 0; k < upperKeys.length; k++) {
+			for (int j = 0; j < upperKeys[k].length; j++) {
+				int u = upperKeys[k][j] & 0xFF, l = lowerKeys[k][j] & 0xFF;
+				used[u] = used[l] = true;
+				parent[find(parent, u)] = find(parent, l);
+			}
+		}
+		int[] rootClass = new int[256];
+		int[] classSize = new int[257];
+		int classes = 1;
+		for (int b = 0; b < 256; b++) {
+			if (used[b]) {
+				int r = find(parent, b);
+				if (rootClass[r] == 0)
+					rootClass[r] = classes++;
+				this.classOf[b] = rootClass[r];
+				classSize[this.classOf[b]]++;
+			}
+		}
+		this.classCount = classes;
+		
+		this.verify = new boolean[upperKeys.length];
+		for (int k = 0; k < upperKeys.length; k++) {
+			this.verify[k] = keys[k].hasMultiByteCase();
+			for (int j = 0; j < upperKeys[k].length; j++) {
+				int size = upperKeys[k][j] == lowerKeys[k][j] ? 1 : 2;
+				if (classSize[this.classOf[upperKeys[k][j] & 0xFF]] != size)
+					this.verify[k] = true;
+			}
+		}
+		
+		// 字典树
+		List<int[]> next = new ArrayList<>();
+		List<List<Integer>> ends = new ArrayList<>();
+		next.add(newRow(classes));
+		ends.add(new ArrayList<>());
+		for (int k = 0; k < upperKeys.length; k++) {
+			int s = 0;
+			for (byte b : upperKeys[k]) {
+				int c = this.classOf[b & 0xFF];
+				if (next.get(s)[c] < 0) {
+					next.get(s)[c] = next.size();
+					next.add(newRow(classes));
+					ends.add(new ArrayList<>());
+				}
+				s = next.get(s)[c];
+			}
+			ends.get(s).add(k);
+		}
+		
+		// 按层补全转移, 合并失败链上的结束关键字
+		int states = next.size();
+		int[] fail = new int[states];
+		this.delta = new int[states * classes];
+		this.out = new int[states][];
+		Queue<Integer> queue = new ArrayDeque<>();
+		for (int c = 0; c < classes; c++) {
+			int t = next.get(0)[c];
+			if (t < 0) {
+				this.delta[c] = 0;
+			} else {
+				this.delta[c] = t;
+				fail[t] = 0;
+				queue.add(t);
+			}
+		}
+		this.out[0] = toArray(ends.get(0));
+		while (!queue.isEmpty()) {
+			int s = queue.poll();
+			List<Integer> e = ends.get(s);
+			e.addAll(ends.get(fail[s]));
+			this.out[s] = toArray(e);
+			for (int c = 0; c < classes; c++) {
+				int t = next.get(s)[c];
+				if (t < 0) {
+					this.delta[s * classes + c] = this.delta[fail[s] * classes + c];
+				} else {
+					this.delta[s * classes + c] = t;
+					fail[t] = this.delta[fail[s] * classes + c];
+					queue.add(t);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * 建立匹配器.
+	 *
+	 * @return 有为空或大写, 小写形式不能逐字节对应({@link KeyMatcher#isAligned})的关键字时返回 null, 须逐个关键字匹配.
+	 */
+	static MultiKeyMatcher build(byte[][] upperKeys, byte[][] lowerKeys) {
+		if (upperKeys.length == 0 || upperKeys.length != lowerKeys.length)
+			return null;
+		KeyMatcher[] keys = new KeyMatcher[upperKeys.length];
+		for (int k = 0; k < upperKeys.length; k++) {
+			keys[k] = KeyMatcher.of(upperKeys[k], lowerKeys[k]);
+			if (keys[k].length() == 0 || !keys[k].isAligned())
+				return null;
+		}
+		return new MultiKeyMatcher(upperKeys, lowerKeys, keys);
+	}
+	
+	/**
+	 * 各关键字在 data 中的出现次数.
+	 *
+	 * @param limit 每个关键字最多计数. 全部达到时提前结束.
+	 */
+	int[] count(byte[] data, int limit) {
+		return count(data, limit, new int[this.upperKeys.length]);
+	}
+	
+	/**
+	 * 各关键字在 data 中的出现次数, 写入 counts 并返回.
+	 *
+	 * @param limit  每个关键字最多计数. 全部达到时提前结束.
+	 * @param counts 长度为关键字数, 原有内容被覆盖.
+	 */
+	int[] count(byte[] data, int limit, int[] counts) {
+		Arrays.fill(counts, 0);
+		int remain = counts.length;
+		int s = 0;
+		for (int i = 0; i < data.length; i++) {
+			s = this.delta[s * this.classCount + this.classOf[data[i] & 0xFF]];
+			int[] ends = this.out[s];
+			if (ends != null)
+				for (int k : ends) {
+					if (counts[k] < limit && (!this.verify[k] || this.keys[k].matchesAt(data, i + 1 - this.upperKeys[k].length))
+							&& ++counts[k] == limit && --remain == 0)
+						return counts;
+				}
+		}
+		return counts;
+	}
+	
+	/**
+	 * 各关键字在 buf 中的出现次数. 不改变 buf 的位置.
+	 *
+	 * @param limit 每个关键字最多计数. 全部达到时提前结束.
+	 */
+	int[] count(ByteBuffer buf, int limit) {
+		return count(buf, limit, new int[this.upperKeys.length]);
+	}
+	
+	/**
+	 * 各关键字在 buf 中的出现次数, 写入 counts 并返回. 不改变 buf 的位置.
+	 *
+	 * @param limit  每个关键字最多计数. 全部达到时提前结束.
+	 * @param counts 长度为关键字数, 原有内容被覆盖.
+	 */
+	int[] count(ByteBuffer buf, int limit, int[] counts) {
+		Arrays.fill(counts, 0);
+		int remain = counts.length;
+		int s = 0;
+		for (int i = buf.position(), end = buf.limit(); i < end; i++) {
+			s = this.delta[s * this.classCount + this.classOf[buf.get(i) & 0xFF]];
+			int[] ends = this.out[s];
+			if (ends != null)
+				for (int k : ends) {
+					if (counts[k] < limit && (!this.verify[k] || this.keys[k].matchesAt(buf, i + 1 - this.upperKeys[k].length))
+							&& ++counts[k] == limit && --remain == 0)
+						return counts;
+				}
+		}
+		return counts;
+	}
+	
+	private static int find(int[] parent, int x) {
+		while (parent[x] != x) {
+			x = parent[x] = parent[parent[x]];
+		}
+		return x;
+	}
+	
+	private static int[] newRow(int classes) {
+		int[] row = new int[classes];
+		Arrays.fill(row, -1);
+		return row;
+	}
+	
+	private static int[] toArray(List<Integer> list) {
+		return list.isEmpty() ? null : list.stream().mapToInt(Integer::intValue).toArray();
+	}
+}
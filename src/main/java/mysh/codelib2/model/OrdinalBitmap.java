@@ -0,0 +1,295 @@
+package mysh.codelib2.model;
+
+import java.util.Arrays;
+
+/**
+ * 压缩的元素序号集合(Roaring 方式).<br/>
+ * 序号按高 16 位分块, 每块只存低 16 位: 不超过 {@link #ArrayLimit} 个时为有序 char 数组, 否则为 65536 位的位图.
+ * 稀疏集合只占序号数的两倍字节, 稠密集合每个序号一位. 交, 并, 差逐块进行, 两个位图块按 long 运算.<br/>
+ * 不可变, 运算返回新集合. thread safe.
+ *
+ * @author Allen
+ */
+final class OrdinalBitmap {
+	
+	/**
+	 * 数组块的最大元素数. 超过时位图块(8KB)更小.
+	 */
+	private static final int ArrayLimit = 4096;
+	
+	private static final int BitmapWords = 1024;
+	
+	private static final int And = 0, Or = 1, AndNot = 2;
+	
+	static final OrdinalBitmap Empty = new OrdinalBitmap(new char[0], new Object[0]);
+	
+	/**
+	 * 各块序号的高 16 位, 升序.
+	 */
+	private final char[] keys;
+	
+	/**
+	 * 各块序号的低 16 位, char[] 或 long[{@link #BitmapWords}].
+	 */
+	private final Object[] containers;
+	
+	private final int cardinality;
+	
+	private OrdinalBitmap(char[] keys, Object[] containers) {
+		this.keys = keys;
+		this.containers = containers;
+		int c = 0;
+		for (Object container : containers) {
+			c += cardinality(container);
+		}
+		this.cardinality = c;
+	}
+	
+	/**
+	 * 由升序不重复的序号建立.
+	 *
+	 * @param ordinals 序号, 只取前 length 个.
+	 */
+	static OrdinalBitmap ofSorted(int[] ordinals, int length) {
+		char[] keys = new char[16];
+		Object[] containers = new Object[16];
+		int n = 0;
+		for (int s = 0, e; s < length; s = e) {
+			int key = ordinals[s] >>> 16;
+			e = s + 1;
+			while (e < length && ordinals[e] >>> 16 == key) {
+				e++;
+			}
+			char[] low = new char[e - s];
+			for (int i = s; i < e; i++) {
+				low[i - s] = (char) ordinals[i];
+			}
+			if (n == keys.length) {
+				keys = Arrays.copyOf(keys, n * 2);
+				containers = Arrays.copyOf(containers, n * 2);
+			}
+			keys[n] = (char) key;
+			containers[n++] = normalize(low);
+		}
+		return new OrdinalBitmap(Arrays.copyOf(keys, n), Arrays.copyOf(containers, n));
+	}
+	
+	/**
+	 * 由未压缩的位图建立, 第 i 位表示序号 i.
+	 */
+	static OrdinalBitmap of(long[] words) {
+		int blocks = (words.length + BitmapWords - 1) / BitmapWords;
+		char[] keys = new char[blocks];
+		Object[] containers = new Object[blocks];
+		int n = 0;
+		for (int b = 0; b < blocks; b++) {
+			long[] block = Arrays.copyOfRange(words, b * BitmapWords, (b + 1) * BitmapWords);
+			Object container = normalize(block);
+			if (container != null) {
+				keys[n] = (char) b;
+				containers[n++] = container;
+			}
+		}
+		return new OrdinalBitmap(Arrays.copyOf(keys, n), Arrays.copyOf(containers, n));
+	}
+	
+	/**
+	 * 容纳 size 个序号的未压缩位图.
+	 */
+	static long[] words(int size) {
+		return new long[(size + 63) >>> 6];
+	}
+	
+	static void set(long[] words, int ordinal) {
+		words[ordinal >>> 6] |= 1L << ordinal;
+	}
+	
+	/**
+	 * 元素数.
+	 */
+	int cardinality() {
+		return cardinality;
+	}
+	
+	boolean contains(int ordinal) {
+		int k = Arrays.binarySearch(this.keys, (char) (ordinal >>> 16));
+		if (k < 0)
+			return false;
+		Object c = this.containers[k];
+		if (c instanceof char[])
+			return Arrays.binarySearch((char[]) c, (char) ordinal) > -1;
+		return (((long[]) c)[(ordinal & 0xFFFF) >>> 6] & 1L << ordinal) != 0;
+	}
+	
+	/**
+	 * 不小于 from 的最小序号, 没有返回 -1.
+	 */
+	int nextSetBit(int from) {
+		if (from < 0)
+			from = 0;
+		int k = Arrays.binarySearch(this.keys, (char) (from >>> 16));
+		int low = from & 0xFFFF;
+		if (k < 0) {
+			k = -k - 1;
+			low = 0;
+		}
+		for (; k < this.keys.length; k++, low = 0) {
+			int base = this.keys[k] << 16;
+			Object c = this.containers[k];
+			if (c instanceof char[]) {
+				char[] a = (char[]) c;
+				int i = Arrays.binarySearch(a, (char) low);
+				if (i < 0)
+					i = -i - 1;
+				if (i < a.length)
+					return base | a[i];
+			} else {
+				long[] w = (long[]) c;
+				int i = low >>> 6;
+				long word = w[i] & -1L << low;
+				while (word == 0 && ++i < BitmapWords) {
+					word = w[i];
+				}
+				if (word != 0)
+					return base | i << 6 | Long.numberOfTrailingZeros(word);
+			}
+		}
+		return -1;
+	}
+	
+	OrdinalBitmap and(OrdinalBitmap other) {
+		return op(other, And);
+	}
+	
+	OrdinalBitmap or(OrdinalBitmap other) {
+		return op(other, Or);
+	}
+	
+	OrdinalBitmap andNot(OrdinalBitmap other) {
+		return op(other, AndNot);
+	}
+	
+	/**
+	 * 按块的高 16 位归并两个集合.
+	 */
+	private OrdinalBitmap op(OrdinalBitmap other, int op) {
+		char[] keys = new char[this.keys.length + other.keys.length];
+		Object[] containers = new Object[keys.length];
+		int n = 0, i = 0, j = 0;
+		while (i < this.keys.length || j < other.keys.length) {
+			int a = i < this.keys.length ? this.keys[i] : Integer.MAX_VALUE;
+			int b = j < other.keys.length ? other.keys[j] : Integer.MAX_VALUE;
+			// 只在一方出现的块: 并集保留, 差集保留左方的, 交集丢弃
+			Object c;
+			if (a == b)
+				c = op(this.containers[i++], other.containers[j++], op);
+			else if (a < b) {
+				c = op == And ? null : this.containers[i];
+				i++;
+			} else {
+				c = op == Or ? other.containers[j] : null;
+				j++;
+			}
+			if (c != null) {
+				keys[n] = (char) Math.min(a, b);
+				containers[n++] = c;
+			}
+		}
+		return new OrdinalBitmap(Arrays.copyOf(keys, n), Arrays.copyOf(containers, n));
+	}
+	
+	private static Object op(Object a, Object b, int op) {
+		if (a instanceof char[] && b instanceof char[])
+			return normalize(merge((char[]) a, (char[]) b, op));
+		
+		long[] x = toBitmap(a), y = toBitmap(b);
+		long[] r = new long[BitmapWords];
+		for (int i = 0; i < BitmapWords; i++) {
+			r[i] = op == And ? x[i] & y[i] : op == Or ? x[i] | y[i] : x[i] & ~y[i];
+		}
+		return normalize(r);
+	}
+	
+	private static char[] merge(char[] a, char[] b, int op) {
+		char[] r = new char[op == Or ? a.length + b.length : a.length];
+		int n = 0, i = 0, j = 0;
+		while (i < a.length && j < b.length) {
+			if (a[i] == b[j]) {
+				if (op != AndNot)
+					r[n++] = a[i];
+				i++;
+				j++;
+			} else if (a[i] < b[j]) {
+				if (op != And)
+					r[n++] = a[i];
+				i++;
+			} else {
+				if (op == Or)
+					r[n++] = b[j];
+				j++;
+			}
+		}
+		if (op != And)
+			while (i < a.length) {
+				r[n++] = a[i++];
+			}
+		if (op == Or)
+			while (j < b.length) {
+				r[n++] = b[j++];
+			}
+		return Arrays.copyOf(r, n);
+	}
+	
+	private static long[] toBitmap(Object c) {
+		if (c instanceof long[])
+			return (long[]) c;
+		long[] w = new long[BitmapWords];
+		for (char v : (char[]) c) {
+			w[v >>> 6] |= 1L << v;
+		}
+		return w;
+	}
+	
+	private static int cardinality(Object c) {
+		if (c instanceof char[])
+			return ((char[]) c).length;
+		int n = 0;
+		for (long w : (long[]) c) {
+			n += Long.bitCount(w);
+		}
+		return n;
+	}
+	
+	/**
+	 * 按元素数选择块的形式. 空块返回 null.
+	 */
+	private static Object normalize(Object c) {
+		int n = cardinality(c);
+		if (n == 0)
+			return null;
+		if (c instanceof char[])
+			return n > ArrayLimit ? toBitmap(c) : c;
+		if (n > ArrayLimit)
+			return c;
+		long[] w = (long[]) c;
+		char[] a = new char[n];
+		int k = 0;
+		for (int i = 0; i < BitmapWords; i++) {
+			for (long word = w[i]; word != 0; word &= word - 1) {
+				a[k++] = (char) (i << 6 | Long.numberOfTrailingZeros(word));
+			}
+		}
+		return a;
+	}
+	
+	@Override
+	public String toString() {
+		int arrays = 0;
+		for (Object c : this.containers) {
+			if (c instanceof char[])
+				arrays++;
+		}
+		return "OrdinalBitmap{cardinality: " + this.cardinality + ", arrays: " + arrays
+				+ ", bitmaps: " + (this.containers.length - arrays) + "}";
+	}
+}
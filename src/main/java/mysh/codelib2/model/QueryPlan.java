@@ -0,0 +1,93 @@
+package mysh.codelib2.model;
+
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+/**
+ * 一次查询的执行计划: 关键字的匹配顺序.<br/>
+ * 元素须匹配全部关键字, 先匹配最少元素包含的关键字, 元素能尽早被排除.
+ * 包含关键字的元素数(文档频率)由搜索索引估计, 无法估计时按关键字长度粗略估计: 越长越少见.
+ * 每个关键字依次匹配元素关键字, 附件名, 内容, 文本附件内容, 前两者较短, 先匹配.
+ *
+ * @author Allen
+ */
+final class QueryPlan {
+	
+	private final String[] keys;
+	
+	/**
+	 * 各关键字的文档频率估计.
+	 */
+	private final int[] estimates;
+	
+	/**
+	 * 各关键字的估计是否来自索引.
+	 */
+	private final boolean[] indexed;
+	
+	/**
+	 * 匹配顺序, 关键字下标.
+	 */
+	private final int[] order;
+	
+	private QueryPlan(String[] keys, int[] estimates, boolean[] indexed, int[] order) {
+		this.keys = keys;
+		this.estimates = estimates;
+		this.indexed = indexed;
+		this.order = order;
+	}
+	
+	/**
+	 * 建立执行计划.
+	 *
+	 * @param keys      关键字, 用于记录.
+	 * @param upperKeys 关键字的大写形式.
+	 * @param lowerKeys 关键字的小写形式.
+	 * @param index     搜索索引, 可为 null.
+	 * @param libSize   库中元素数.
+	 */
+	static QueryPlan of(String[] keys, byte[][] upperKeys, byte[][] lowerKeys, SearchIndex index, int libSize) {
+		int[] estimates = new int[keys.length];
+		boolean[] indexed = new boolean[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			int df = index == null ? -1 : index.documentFrequency(SearchEngine.keyTrigrams(upperKeys[i], lowerKeys[i]));
+			indexed[i] = df > -1;
+			estimates[i] = indexed[i] ? df : libSize / (1 + upperKeys[i].length);
+		}
+		int[] order = IntStream.range(0, keys.length).boxed()
+				.sorted(Comparator.comparingInt(i -> estimates[i]))
+				.mapToInt(Integer::intValue).toArray();
+		return new QueryPlan(keys, estimates, indexed, order);
+	}
+	
+	/**
+	 * 关键字的匹配顺序.
+	 */
+	int[] getOrder() {
+		return order;
+	}
+	
+	/**
+	 * 各关键字的文档频率, 无法由索引估计的为 -1.
+	 */
+	int[] getDocumentFrequencies() {
+		int[] df = new int[this.estimates.length];
+		for (int i = 0; i < df.length; i++) {
+			df[i] = this.indexed[i] ? this.estimates[i] : -1;
+		}
+		return df;
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("QueryPlan{");
+		for (int n = 0; n < this.order.length; n++) {
+			int i = this.order[n];
+			if (n > 0)
+				sb.append(" -> ");
+			sb.append('[').append(this.keys[i]).append("] ~").append(this.estimates[i])
+					.append(this.indexed[i] ? " (index)" : " (length)");
+		}
+		return sb.append(", fields: keywords, attachment names, content, attachment text}").toString();
+	}
+}
@@ -0,0 +1,319 @@
+package mysh.codelib2.model;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * 正则表达式查询, 关键字形如 /pattern/. 忽略 ASCII 字母大小写, 需要时可在表达式中用 (?u) 等内嵌标志.<br/>
+ * 从表达式中提取匹配时必然出现的字面量, 作为普通关键字先经索引和字节查找筛选元素, 通过后再解码匹配表达式.
+ * 字面量只作筛选, 元素的各字段中任一处匹配表达式即为匹配.<br/>
+ * 每个元素的匹配有耗时上限, 超时视为不匹配, 避免回溯失控的表达式占住工作线程.
+ *
+ * @author Allen
+ */
+final class RegexQuery {
+	
+	private static final Logger log = LoggerFactory.getLogger(RegexQuery.class);
+	
+	/**
+	 * 每个元素匹配表达式的耗时上限(纳秒).
+	 */
+	static final long ElementBudget = TimeUnit.MILLISECONDS.toNanos(50);
+	
+	private static final Charset ContentCharset = Charset.forName(CodeLib2Element.DefaultCharsetEncode);
+	
+	private static final String[] None = new String[0];
+	
+	private final Pattern pattern;
+	
+	/**
+	 * 必然出现的字面量.
+	 */
+	private final String[] literals;
+	
+	private RegexQuery(Pattern pattern, String[] literals) {
+		this.pattern = pattern;
+		this.literals = literals;
+	}
+	
+	/**
+	 * 关键字是否为正则表达式查询.
+	 */
+	static boolean isRegex(String keyword) {
+		String k = keyword.trim();
+		return k.length() > 2 && k.charAt(0) == '/' && k.charAt(k.length() - 1) == '/';
+	}
+	
+	/**
+	 * 解析正则表达式查询.
+	 *
+	 * @return 不是正则表达式查询时返回 null.
+	 * @throws java.util.regex.PatternSyntaxException 表达式无效.
+	 */
+	static RegexQuery parse(String keyword) {
+		if (!isRegex(keyword))
+			return null;
+		String k = keyword.trim();
+		String regex = k.substring(1, k.length() - 1);
+		return new RegexQuery(Pattern.compile(regex, Pattern.CASE_INSENSITIVE), requiredLiterals(regex));
+	}
+	
+	/**
+	 * 表达式匹配时必然出现的字面量. 只分析顶层的连续普通字符, 分组, 字符类和可省略的字符作为分隔.
+	 * 顶层有分支(|), 内嵌标志或难以分析的转义时不提取. 单个字符筛选不了什么, 不提取.
+	 */
+	static String[] requiredLiterals(String regex) {
+		List<String> literals = new ArrayList<>();
+		StringBuilder run = new StringBuilder();
+		int n = regex.length();
+		for (int i = 0; i < n; ) {
+			char c = regex.charAt(i);
+			switch (c) {
+				case '\\':
+					if (i + 1 >= n)
+						return None;
+					char e = regex.charAt(i + 1);
+					if (!Character.isLetterOrDigit(e)) {
+						// 转义的元字符
+						run.append(e);
+						i += 2;
+					} else if (Character.isDigit(e) && e != '0') {
+						// 反向引用
+						flush(run, literals);
+						for (i++; i < n && Character.isDigit(regex.charAt(i)); i++) {
+						}
+					} else if ("dDsSwWbBAGZzRhHvVXntrfae".indexOf(e) > -1) {
+						flush(run, literals);
+						i += 2;
+					} else
+						return None;
+					break;
+				case '*':
+				case '?':
+					dropLast(run);
+					flush(run, literals);
+					i++;
+					break;
+				case '{':
+					dropLast(run);
+					flush(run, literals);
+					i = regex.indexOf('}', i) + 1;
+					if (i == 0)
+						return None;
+					break;
+				case '+':
+				case '.':
+				case '^':
+				case '$':
+				case ')':
+					flush(run, literals);
+					i++;
+					break;
+				case '[':
+					flush(run, literals);
+					i = skipClass(regex, i);
+					if (i < 0)
+						return None;
+					break;
+				case '(':
+					if (i + 2 < n && regex.charAt(i + 1) == '?'
+							&& (Character.isLetter(regex.charAt(i + 2)) || regex.charAt(i + 2) == '-'))
+						return None;
+					flush(run, literals);
+					i = skipGroup(regex, i);
+					if (i < 0)
+						return None;
+					break;
+				case '|':
+					return None;
+				default:
+					run.append(c);
+					i++;
+			}
+		}
+		flush(run, literals);
+		return literals.toArray(None);
+	}
+	
+	private static void flush(StringBuilder run, List<String> literals) {
+		if (run.codePointCount(0, run.length()) > 1)
+			literals.add(run.toString());
+		run.setLength(0);
+	}
+	
+	/**
+	 * 去掉量词作用的最后一个字符.
+	 */
+	private static void dropLast(StringBuilder run) {
+		if (run.length() > 0)
+			run.setLength(run.length() - Character.charCount(run.codePointBefore(run.length())));
+	}
+	
+	/**
+	 * 跳过 start 处的字符类.
+	 *
+	 * @return 字符类之后的位置, 未结束返回 -1.
+	 */
+	private static int skipClass(String regex, int start) {
+		int i = start + 1;
+		if (i < regex.length() && regex.charAt(i) == '^')
+			i++;
+		if (i < regex.length() && regex.charAt(i) == ']')
+			i++;
+		for (int depth = 1; i < regex.length(); i++) {
+			char c = regex.charAt(i);
+			if (c == '\\')
+				i++;
+			else if (c == '[')
+				depth++;
+			else if (c == ']' && --depth == 0)
+				return i + 1;
+		}
+		return -1;
+	}
+	
+	/**
+	 * 跳过 start 处的分组.
+	 *
+	 * @return 分组之后的位置, 未结束返回 -1.
+	 */
+	private static int skipGroup(String regex, int start) {
+		int depth = 0;
+		for (int i = start; i < regex.length(); ) {
+			char c = regex.charAt(i);
+			if (c == '\\')
+				i += 2;
+			else if (c == '[') {
+				i = skipClass(regex, i);
+				if (i < 0)
+					return -1;
+			} else {
+				if (c == '(')
+					depth++;
+				else if (c == ')' && --depth == 0)
+					return i + 1;
+				i++;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * 必然出现的字面量, 可能为空.
+	 */
+	String[] getLiterals() {
+		return literals;
+	}
+	
+	/**
+	 * 元素是否匹配表达式. 依次匹配关键字, 附件名, 内容, 文本附件内容. 内容尚未加载时只匹配关键字.
+	 * 超过 {@link #ElementBudget} 视为不匹配.
+	 */
+	boolean matches(CodeLib2Element ele) {
+		Budget budget = new Budget(System.nanoTime() + ElementBudget);
+		try {
+			if (find(ele.getKeywords(), budget))
+				return true;
+			if (!ele.isContentLoaded())
+				return false;
+			
+			List<CodeLib2Element.Attachment> attachments = ele.getAttachments();
+			if (attachments != null)
+				for (CodeLib2Element.Attachment attachment : attachments) {
+					if (find(attachment.getName(), budget))
+						return true;
+				}
+			
+			if (find(ContentCharset.decode(ele.contentBuffer().duplicate()), budget))
+				return true;
+			
+			if (attachments != null)
+				for (CodeLib2Element.Attachment attachment : attachments) {
+					String encode = attachment.getContentType().getTextEncode();
+					if (encode != null
+							&& find(Charset.forName(encode).decode(attachment.binaryContentBuffer().duplicate()), budget))
+						return true;
+				}
+			return false;
+		} catch (BudgetExceededException e) {
+			log.debug("正则表达式匹配超时, 视为不匹配, [pattern: {}, element: {}]", this.pattern, ele);
+			return false;
+		}
+	}
+	
+	private boolean find(CharSequence text, Budget budget) {
+		return text != null && this.pattern.matcher(new BudgetedChars(text, budget)).find();
+	}
+	
+	@Override
+	public String toString() {
+		return "RegexQuery{/" + this.pattern + "/, literals: " + String.join(", ", this.literals) + "}";
+	}
+	
+	/**
+	 * 一个元素的匹配期限.
+	 */
+	private static final class Budget {
+		private final long deadline;
+		
+		/**
+		 * 字符读取次数, 每 4096 次检查一次时间.
+		 */
+		private int reads;
+		
+		Budget(long deadline) {
+			this.deadline = deadline;
+		}
+		
+		void check() {
+			if ((++this.reads & 0xFFF) == 0 && System.nanoTime() - this.deadline > 0)
+				throw new BudgetExceededException();
+		}
+	}
+	
+	private static final class BudgetExceededException extends RuntimeException {
+		BudgetExceededException() {
+			super(null, null, false, false);
+		}
+	}
+	
+	/**
+	 * 读取字符时检查期限的字符序列. 表达式回溯时反复读取字符, 超时由此中断匹配.
+	 */
+	private static final class BudgetedChars implements CharSequence {
+		private final CharSequence text;
+		private final Budget budget;
+		
+		BudgetedChars(CharSequence text, Budget budget) {
+			this.text = text;
+			this.budget = budget;
+		}
+		
+		@Override
+		public int length() {
+			return this.text.length();
+		}
+		
+		@Override
+		public char charAt(int index) {
+			this.budget.check();
+			return this.text.charAt(index);
+		}
+		
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new BudgetedChars(this.text.subSequence(start, end), this.budget);
+		}
+		
+		@Override
+		public String toString() {
+			return this.text.toString();
+		}
+	}
+}
@@ -1,25 +1,31 @@
 
 package mysh.codelib2.model;
 
-import mysh.collect.Colls;
-import mysh.util.Bytes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
-import java.util.Comparator;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicInteger;
-
-import static mysh.codelib2.model.CodeLib2Element.Attachment;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 搜索引擎.<br/>
- * 一次只执行一个关键字搜索.
+ * 一次只执行一个关键字搜索. 每个搜索请求有递增的代号, 有新请求时正在执行的旧搜索自行停止, 不必等待.<br/>
+ * 请求延迟执行, 延迟期间的新请求取代旧请求. 延迟按近期搜索的实测耗时估算, 预计很快完成的搜索立即执行.<br/>
+ * 关键字形如 /pattern/ 时按正则表达式搜索, 见 {@link RegexQuery}, 否则按字段限定的查询搜索, 见 {@link FieldQuery}.
  * thread safe.
  *
  * @author Allen
@@ -27,10 +33,6 @@ import static mysh.codelib2.model.CodeLib2Element.Attachment;
 public final class SearchEngine implements Closeable {
 	
 	private static final Logger log = LoggerFactory.getLogger(SearchEngine.class);
-	/**
-	 * 搜索开始时间(毫秒).
-	 */
-	private volatile long searchStartTime;
 	
 	
 	/**
@@ -46,18 +48,169 @@ public final class SearchEngine implements Closeable {
 		int InitMatchDegree = 0;
 		
 		/**
-		 * 取得搜索结果.
+		 * 取得单个搜索结果, 由各工作线程并发调用. 旧请求停止前仍可能送来结果, 须按代号丢弃.<br/>
+		 * 只用于跟踪进度, 完整结果见 {@link #onSearchComplete}. 默认不处理.
 		 *
 		 * @param keyword     搜索关键字.
+		 * @param generation  搜索请求代号, 见 {@link SearchEngine#addSearchTask}.
 		 * @param ele         结果元素.
 		 * @param matchDegree 匹配度(最小为 {@link ResultCatcher#InitMatchDegree}), 越大表示匹配程度越高.
 		 */
-		void onGetSearchResult(String keyword, CodeLib2Element ele, int matchDegree);
+		default void onGetSearchResult(String keyword, long generation, CodeLib2Element ele, int matchDegree) {
+		}
 		
 		/**
-		 * 搜索完成.
+		 * 搜索完成. 被新请求停止的搜索不通知.
+		 *
+		 * @param generation 搜索请求代号.
+		 * @param hits       搜索结果.
 		 */
-		void onSearchComplete(String keyword, Comparator c);
+		void onSearchComplete(String keyword, long generation, SearchHits hits);
+	}
+	
+	/**
+	 * 匹配度的计算方式.
+	 */
+	public enum Ranking {
+		/**
+		 * 固定权重: 关键字 100(按匹配位置递减), 内容每次 5(最多 10 次), 附件名 50(按匹配比例).
+		 */
+		Weighted,
+		/**
+		 * BM25, 见 {@link Bm25Scorer}.
+		 */
+		BM25
+	}
+	
+	/**
+	 * 一次搜索的结果. 完整的结果用于细化搜索.
+	 */
+	private static final class SearchResult {
+		
+		/**
+		 * 关键字的大写, 小写分解的默认编码数组.
+		 */
+		private final byte[][] upperKeys, lowerKeys;
+		
+		/**
+		 * 开始搜索时的元素版本, 见 {@link CodeLib2Element#version()}.
+		 */
+		private final long version;
+		
+		/**
+		 * 开始搜索时搜索目标的元素数和指纹.
+		 */
+		private final int libSize;
+		private final long libFingerprint;
+		
+		/**
+		 * 结果是否为包含全部关键字的所有元素, 可用于细化搜索.
+		 * 正则表达式, 限定字段, 排除关键字和元数据条件的结果只是其中一部分.
+		 */
+		private final boolean refinable;
+		
+		/**
+		 * 各工作线程的结果, 线程 -> 结果.
+		 */
+		private final Map<Thread, Collector> collectors = new ConcurrentHashMap<>();
+		
+		/**
+		 * 匹配的元素. 搜索完成后合并各工作线程的结果得到.
+		 */
+		private volatile List<CodeLib2Element> hits;
+		
+		/**
+		 * 因有新请求而停止的搜索结果不完整.
+		 */
+		private volatile boolean stopped;
+		
+		SearchResult(byte[][] upperKeys, byte[][] lowerKeys, long version, int libSize, long libFingerprint,
+		             boolean refinable) {
+			this.upperKeys = upperKeys;
+			this.lowerKeys = lowerKeys;
+			this.version = version;
+			this.libSize = libSize;
+			this.libFingerprint = libFingerprint;
+			this.refinable = refinable;
+		}
+		
+		/**
+		 * 当前工作线程的结果.
+		 */
+		Collector collector() {
+			return this.collectors.computeIfAbsent(Thread.currentThread(), t -> new Collector());
+		}
+		
+		/**
+		 * 合并各工作线程的结果. 须在全部搜索范围完成后调用.
+		 */
+		SearchHits merge() {
+			int total = 0;
+			for (Collector c : this.collectors.values()) {
+				total += c.hits.size();
+			}
+			List<CodeLib2Element> all = new ArrayList<>(total);
+			SearchHits.TopHeap top = new SearchHits.TopHeap(TopHitsLimit);
+			for (Collector c : this.collectors.values()) {
+				all.addAll(c.hits);
+				top.addAll(c.top);
+			}
+			this.hits = all;
+			return top.toHits(all);
+		}
+	}
+	
+	/**
+	 * 一个元素的各关键字匹配计数. 匹配时得到的计数留给计算匹配度, 不再扫描. 每个搜索范围一份, 逐个元素重置.
+	 */
+	private static final class MatchCounts {
+		
+		/**
+		 * 尚未计数.
+		 */
+		static final int Unknown = -2;
+		
+		/**
+		 * 各关键字在元素关键字中的位置, 不匹配为 -1.
+		 */
+		final int[] keywordIndex;
+		
+		/**
+		 * 各关键字在内容中的出现次数, 最多 {@link #ContentMatchLimit}.
+		 */
+		final int[] content;
+		
+		/**
+		 * 各关键字匹配的附件名数.
+		 */
+		final int[] attachmentNames;
+		
+		/**
+		 * 各关键字在文本附件中的出现次数, 最多 {@link #ContentMatchLimit}. 只供 BM25 计分, 否则为 0.
+		 */
+		final int[] attachmentTexts;
+		
+		MatchCounts(int keys) {
+			this.keywordIndex = new int[keys];
+			this.content = new int[keys];
+			this.attachmentNames = new int[keys];
+			this.attachmentTexts = new int[keys];
+		}
+		
+		void reset() {
+			Arrays.fill(this.keywordIndex, Unknown);
+			Arrays.fill(this.content, Unknown);
+			Arrays.fill(this.attachmentNames, Unknown);
+			Arrays.fill(this.attachmentTexts, Unknown);
+		}
+	}
+	
+	/**
+	 * 一个工作线程在一次搜索中的结果: 全部匹配元素, 以及其中排在最前的元素. 只由所属线程写入, 不加锁.
+	 */
+	private static final class Collector {
+		private final List<CodeLib2Element> hits = new ArrayList<>();
+		private final SearchHits.TopHeap top = new SearchHits.TopHeap(TopHitsLimit);
 	}
 	
 	/**
@@ -66,13 +219,18 @@ public final class SearchEngine implements Closeable {
 	 *
 	 * @author Allen
 	 */
-	private final class SearchTask extends Thread {
+	private final class SearchTask extends RecursiveAction {
 		
 		/**
 		 * 关键字.
 		 */
 		private String keyword;
 		
+		/**
+		 * 搜索请求代号.
+		 */
+		private long generation;
+		
 		/**
 		 * 关键字 keyword 的大写分解.
 		 */
@@ -93,159 +251,423 @@ public final class SearchEngine implements Closeable {
 		 */
 		private byte[][] lowerKeysByteArray;
 		
+		/**
+		 * 各关键字匹配的字段, 见 {@link FieldQuery#Keywords} 等.
+		 */
+		private int[] keyFields;
+		
+		/**
+		 * 关键字的匹配顺序, 见 {@link QueryPlan}.
+		 */
+		private int[] order;
+		
+		/**
+		 * 各关键字的查找器.
+		 */
+		private KeyMatcher[] keyMatchers;
+		
+		/**
+		 * 内容的多关键字匹配器. 为 null 时逐个关键字扫描内容.
+		 */
+		private MultiKeyMatcher matcher;
+		
+		/**
+		 * BM25 匹配度. 为 null 时按固定权重计算.
+		 */
+		private Bm25Scorer scorer;
+		
+		/**
+		 * 字段限定的查询, 提供元数据条件和排除的关键字. 正则表达式搜索时为 null.
+		 */
+		private FieldQuery query;
+		
+		/**
+		 * 排除的关键字的查找器.
+		 */
+		private KeyMatcher[] exclusions;
+		
+		/**
+		 * 正则表达式查询. 不为 null 时关键字是表达式的字面量, 只作筛选.
+		 */
+		private RegexQuery regex;
+		
+		/**
+		 * 候选元素. 为 null 时逐个匹配全部元素.
+		 */
+		private SearchIndex.Candidates candidates;
+		
+		/**
+		 * 求值元数据条件的分面索引, 可为 null.
+		 */
+		private FacetIndex facets;
+		
+		/**
+		 * 满足全部元数据条件的元素在分面索引中的序号. 不为 null 时只匹配其中的元素, 范围是分面索引的序号而非 target 的下标.
+		 */
+		private OrdinalBitmap facetHits;
+		
+		/**
+		 * 搜索范围. 整个搜索目标或上次的结果.
+		 */
+		private List<CodeLib2Element> target;
+		
+		/**
+		 * 本次搜索的结果.
+		 */
+		private SearchResult result;
+		
 		/**
 		 * 创建搜索任务.<br/>
 		 * 要求提供关键字分解是 关键字分解策略自由化 的考虑.<br/>
 		 * 不检查关键字分解的结果是否符合参数含义, 后果由客户端代码承担.
 		 *
 		 * @param keyword       关键字.
+		 * @param generation    搜索请求代号.
 		 * @param upperCaseKeys 关键字 keyword 的大写分解.
 		 * @param lowerCaseKeys 关键字 keyword 的小写分解.
+		 * @param order         关键字的匹配顺序.
+		 * @param candidates    候选元素, 可为 null.
+		 * @param scorer        BM25 匹配度, 为 null 时按固定权重计算.
+		 * @param query         字段限定的查询, 包含的关键字与关键字分解一一对应. 可为 null.
+		 * @param regex         正则表达式查询, 可为 null.
+		 * @param facets        求值元数据条件的分面索引, 对应 target. 可为 null.
+		 * @param target        搜索范围.
+		 * @param result        本次搜索的结果.
 		 * @throws Exception 创建搜索任务失败.
 		 */
-		public SearchTask(String keyword, String[] upperCaseKeys, String[] lowerCaseKeys) throws Exception {
-			
-			this.setName("SearchTask Thread");
-			this.setDaemon(true);
-			this.setPriority(MIN_PRIORITY);
+		public SearchTask(String keyword, long generation, String[] upperCaseKeys, String[] lowerCaseKeys, int[] order,
+		                  SearchIndex.Candidates candidates, Bm25Scorer scorer, FieldQuery query, RegexQuery regex,
+		                  FacetIndex facets, List<CodeLib2Element> target, SearchResult result) throws Exception {
 			
 			if (upperCaseKeys.length != lowerCaseKeys.length) {
 				throw new IllegalArgumentException();
 			}
 			
 			this.keyword = keyword;
+			this.generation = generation;
 			this.upperCaseKeys = upperCaseKeys;
 			this.lowerCaseKeys = lowerCaseKeys;
+			this.order = order;
+			this.candidates = candidates;
+			this.scorer = scorer;
+			this.query = query;
+			this.regex = regex;
+			this.facets = facets;
+			this.target = target;
+			this.result = result;
 			
 			this.upperKeysByteArray = new byte[upperCaseKeys.length][];
 			this.lowerKeysByteArray = new byte[lowerCaseKeys.length][];
+			this.keyMatchers = new KeyMatcher[upperCaseKeys.length];
 			for (int i = 0; i < upperCaseKeys.length; i++) {
 				this.upperKeysByteArray[i] = upperCaseKeys[i].getBytes(CodeLib2Element.DefaultCharsetEncode);
 				this.lowerKeysByteArray[i] = lowerCaseKeys[i].getBytes(CodeLib2Element.DefaultCharsetEncode);
+				this.keyMatchers[i] = KeyMatcher.of(this.upperKeysByteArray[i], this.lowerKeysByteArray[i]);
+			}
+			this.matcher = MultiKeyMatcher.build(this.upperKeysByteArray, this.lowerKeysByteArray);
+			
+			this.keyFields = new int[upperCaseKeys.length];
+			Arrays.fill(this.keyFields, FieldQuery.AllFields);
+			List<FieldQuery.Term> exclusionTerms = query == null ? Collections.emptyList() : query.getExclusions();
+			this.exclusions = new KeyMatcher[exclusionTerms.size()];
+			if (query != null) {
+				for (int i = 0; i < this.keyFields.length; i++) {
+					this.keyFields[i] = query.getTerms().get(i).getFields();
+				}
+				for (int i = 0; i < this.exclusions.length; i++) {
+					String text = exclusionTerms.get(i).getText();
+					this.exclusions[i] = KeyMatcher.of(text.toUpperCase().getBytes(CodeLib2Element.DefaultCharsetEncode),
+							text.toLowerCase().getBytes(CodeLib2Element.DefaultCharsetEncode));
+				}
 			}
 		}
 		
 		@Override
-		public void run() {
+		protected void compute() {
 			
-			final int keyLength = this.lowerCaseKeys.length;
-			if (keyLength < 1 || this.upperCaseKeys.length != this.lowerCaseKeys.length)
+			long start = System.nanoTime();
+			// 元数据条件由分面索引的位图组合求值, 匹配时只访问结果中的元素.
+			// 序号对应索引建立时的元素, 不受之后列表重排影响, 元素修改已原地更新
+			int size = this.target.size();
+			if (this.facets != null) {
+				this.facetHits = this.facets.evaluate(this.query);
+				size = this.facets.size();
+				log.debug("keyword: {}, {}", this.keyword, this.facetHits);
+			}
+			new Chunk(0, size).invoke();
+			if (this.result.stopped)
 				return;
+			recordCost(System.nanoTime() - start, this.target.size());
+			SearchEngine.this.onSearchTaskComplete(this, this.result.merge());
+		}
+		
+		/**
+		 * 搜索范围中的一段. 超过 {@link SearchEngine#ChunkSize} 时对半拆分, 拆出的一半可由空闲的工作线程取走执行.
+		 */
+		private final class Chunk extends RecursiveAction {
+			private final int from, to;
+			
+			Chunk(int from, int to) {
+				this.from = from;
+				this.to = to;
+			}
 			
+			@Override
+			protected void compute() {
+				if (this.to - this.from > ChunkSize) {
+					int mid = (this.from + this.to) >>> 1;
+					invokeAll(new Chunk(this.from, mid), new Chunk(mid, this.to));
+				} else
+					searchRange(this.from, this.to);
+			}
+		}
+		
+		/**
+		 * 是否已有新的搜索请求.
+		 */
+		private boolean isStale() {
+			return SearchEngine.this.generation.get() != this.generation;
+		}
+		
+		/**
+		 * 依次匹配搜索范围中 [from, to) 的元素. 每 {@link SearchEngine#StaleCheckInterval} 个元素检查一次是否已有新请求.
+		 * 有元数据条件的结果集合时, [from, to) 是分面索引的序号, 跳过集合外的元素.
+		 */
+		private void searchRange(int from, int to) {
+			
+			final int keyLength = this.lowerCaseKeys.length;
 			CodeLib2Element ele = null;
-			int keyIndex;
+			int n, keyIndex;
 			boolean isSingleKeyMatches; // 单个 key 匹配结果.
-			while (!this.isInterrupted() && searchTargetIndex.get() < targetLib.size()) {
+			SearchProjection projection;
+			MatchCounts counts = new MatchCounts(keyLength);
+			int degree;
+			Collector collector = this.result.collector();
+			int checked = 0;
+			for (int i = from; i < to; i++) {
+				if (this.facetHits != null && ((i = this.facetHits.nextSetBit(i)) < 0 || i >= to))
+					break;
+				if (checked++ % StaleCheckInterval == 0 && (this.result.stopped || isStale())) {
+					this.result.stopped = true;
+					return;
+				}
+				
 				try {
-					ele = targetLib.get(searchTargetIndex.getAndIncrement());
+					ele = this.facetHits != null ? this.facets.element(i) : this.target.get(i);
 					if (ele.isDeleted())
 						continue;
 					
-					// 单个 key 匹配
-					for (keyIndex = 0, isSingleKeyMatches = true; isSingleKeyMatches && keyIndex < keyLength; keyIndex++) {
+					// 不在候选中的元素不可能匹配. 索引中没有当前版本的元素仍逐个匹配
+					if (this.candidates != null && !this.candidates.mayMatch(ele))
+						continue;
+					
+					// 元数据条件不读内容, 先于关键字求值. 已由分面索引求值时仍复核, 防止求值后元素又有修改
+					if (this.query != null && !this.query.testFilters(ele))
+						continue;
+					
+					// 按计划的顺序逐个 key 匹配, 有一个不匹配即排除. 限定字段的 key 不匹配其他字段
+					projection = ele.searchProjection();
+					counts.reset();
+					for (n = 0, isSingleKeyMatches = true; isSingleKeyMatches && n < keyLength; n++) {
+						keyIndex = this.order[n];
+						KeyMatcher key = this.keyMatchers[keyIndex];
+						int fields = this.keyFields[keyIndex];
+						
 						// 匹配关键字
 						isSingleKeyMatches = this.lowerCaseKeys[keyIndex].length() == 0
-								                     || ele.getKeywords().toLowerCase().contains(this.lowerCaseKeys[keyIndex]);
+								                     || (fields & FieldQuery.Keywords) != 0
+								                     && (counts.keywordIndex[keyIndex] = key.indexOf(projection.getKeywords(), 0)) > -1;
+						
+						// 匹配附件名. 附件名较短, 先于内容匹配, 全部计数供计算匹配度
+						byte[][] names = projection.getAttachmentNames();
+						if (!isSingleKeyMatches && (fields & FieldQuery.AttachmentNames) != 0 && names.length > 0) {
+							int matched = 0;
+							for (byte[] name : names) {
+								if (key.indexOf(name, 0) > -1)
+									matched++;
+							}
+							counts.attachmentNames[keyIndex] = matched;
+							isSingleKeyMatches = matched > 0;
+						}
 						
-						// 匹配内容
-						if (!isSingleKeyMatches) {
-							isSingleKeyMatches = Bytes.findStringIndexIgnoreCase(ele.getContent(), 0,
-									this.upperKeysByteArray[keyIndex],
-									this.lowerKeysByteArray[keyIndex]) > -1;
+						// 匹配内容和文本附件内容. 内容尚在后台加载的条目只匹配关键字, 不阻塞搜索
+						if (!isSingleKeyMatches && ele.isContentLoaded()) {
+							if ((fields & FieldQuery.Content) != 0) {
+								if (this.matcher != null) {
+									if (counts.content[keyIndex] == MatchCounts.Unknown)
+										countContentMatches(ele, this.matcher, counts.content);
+									isSingleKeyMatches = counts.content[keyIndex] > 0;
+								} else
+									isSingleKeyMatches = findContentIndex(ele, 0, key) > -1;
+							}
 							
-							// 匹配附件
-							if (!isSingleKeyMatches && (ele.getAttachments() != null)) {
-								String attachmentEncode;
-								for (Attachment attachment : ele.getAttachments()) {
-									// 附件名
-									isSingleKeyMatches = attachment.getName().toLowerCase().contains(
-											this.lowerCaseKeys[keyIndex]);
-									
-									// 附件内容
-									attachmentEncode = attachment.getContentType().getTextEncode();
-									if (!isSingleKeyMatches && attachmentEncode != null) {
-										isSingleKeyMatches = Bytes.findStringIndexIgnoreCase(
-												attachment.getBinaryContent(), attachmentEncode, 0, this.lowerCaseKeys[keyIndex])
-												                     > -1;
-									}
-									
-									if (isSingleKeyMatches)
-										break;
-								}
+							byte[][] texts = (fields & FieldQuery.AttachmentTexts) != 0 ? projection.getAttachmentTexts() : NoTexts;
+							for (int j = 0; !isSingleKeyMatches && j < texts.length; j++) {
+								isSingleKeyMatches = texts[j] != null && key.indexOf(texts[j], 0) > -1;
 							}
 						}
 					}
 					
-					if (this.isInterrupted())
-						break;
-					else if (isSingleKeyMatches)
-						resultCatcher.onGetSearchResult(this.keyword, ele,
-								countMatchDegree(ele, this.upperKeysByteArray, this.lowerKeysByteArray));
+					// 排除的关键字只对满足其他条件的元素匹配
+					for (int j = 0; isSingleKeyMatches && j < this.exclusions.length; j++) {
+						isSingleKeyMatches = !matchesTerm(ele, projection, this.exclusions[j],
+								this.query.getExclusions().get(j).getFields());
+					}
+					
+					// 字面量都出现后才解码匹配表达式
+					if (isSingleKeyMatches && this.regex != null)
+						isSingleKeyMatches = this.regex.matches(ele);
+					
+					if (isSingleKeyMatches) {
+						completeCounts(ele, projection, this.keyMatchers, this.keyFields, this.matcher,
+								this.scorer != null, counts);
+						degree = this.scorer == null
+								         ? countMatchDegree(projection, this.keyMatchers, counts)
+								         : this.scorer.score(ele, projection, counts.keywordIndex, counts.content,
+										         counts.attachmentTexts, counts.attachmentNames);
+						collector.hits.add(ele);
+						collector.top.offer(ele, degree);
+						resultCatcher.onGetSearchResult(this.keyword, this.generation, ele, degree);
+					}
 				} catch (IndexOutOfBoundsException outOfBoundsEx) {
 					break;
 				} catch (Exception e) {
 					log.error("搜索失败, [keyword: " + this.keyword + ", element: " + ele + "]", e);
 				}
 			}
-			
-			SearchEngine.this.onSearchTaskComplete(this);
 		}
 	}
 	
 	@Override
 	public void close() {
-		taskScheduler.interrupt();
+		scheduler.shutdownNow();
+		workers.shutdownNow();
+		FacetIndex facets = this.facets;
+		if (facets != null)
+			facets.close();
+	}
+	
+	private static final byte[][] NoTexts = new byte[0][];
+	
+	/**
+	 * 元素的指定字段中是否有关键字. 内容尚未加载时只匹配关键字和附件名.
+	 *
+	 * @param fields 字段, 见 {@link FieldQuery#Keywords} 等.
+	 */
+	private static boolean matchesTerm(CodeLib2Element ele, SearchProjection projection, KeyMatcher key, int fields) {
+		if ((fields & FieldQuery.Keywords) != 0 && key.indexOf(projection.getKeywords(), 0) > -1)
+			return true;
+		if ((fields & FieldQuery.AttachmentNames) != 0)
+			for (byte[] name : projection.getAttachmentNames()) {
+				if (key.indexOf(name, 0) > -1)
+					return true;
+			}
+		if (!ele.isContentLoaded())
+			return false;
+		if ((fields & FieldQuery.Content) != 0 && findContentIndex(ele, 0, key) > -1)
+			return true;
+		if ((fields & FieldQuery.AttachmentTexts) != 0)
+			for (byte[] text : projection.getAttachmentTexts()) {
+				if (text != null && key.indexOf(text, 0) > -1)
+					return true;
+			}
+		return false;
+	}
+	
+	/**
+	 * 补全匹配时未得到的计数. 空关键字, 关键字不匹配的字段和内容尚未加载时不计数的项记为不匹配.
+	 *
+	 * @param countTexts 是否为文本附件计数. 只有 BM25 计分用到, 其他情况记为 0.
+	 */
+	private static void completeCounts(CodeLib2Element ele, SearchProjection projection, KeyMatcher[] keyMatchers,
+	                                   int[] keyFields, MultiKeyMatcher matcher, boolean countTexts,
+	                                   MatchCounts counts) {
+		byte[][] attachmentNames = projection.getAttachmentNames();
+		boolean contentLoaded = ele.isContentLoaded();
+		for (int i = 0; i < keyMatchers.length; i++) {
+			if (keyMatchers[i].length() == 0) {
+				counts.keywordIndex[i] = -1;
+				counts.content[i] = counts.attachmentNames[i] = counts.attachmentTexts[i] = 0;
+				continue;
+			}
+			
+			int fields = keyFields[i];
+			if ((fields & FieldQuery.Keywords) == 0)
+				counts.keywordIndex[i] = -1;
+			else if (counts.keywordIndex[i] == MatchCounts.Unknown)
+				counts.keywordIndex[i] = keyMatchers[i].indexOf(projection.getKeywords(), 0);
+			
+			// 多关键字扫描内容时也会为不匹配内容的关键字计数
+			if (!contentLoaded || (fields & FieldQuery.Content) == 0)
+				counts.content[i] = 0;
+			else if (counts.content[i] == MatchCounts.Unknown) {
+				if (matcher != null)
+					countContentMatches(ele, matcher, counts.content);
+				else {
+					int n = 0;
+					for (int index = -1; n < ContentMatchLimit
+							&& (index = findContentIndex(ele, index + 1, keyMatchers[i])) > -1; ) {
+						n++;
+					}
+					counts.content[i] = n;
+				}
+			}
+			
+			if ((fields & FieldQuery.AttachmentNames) == 0)
+				counts.attachmentNames[i] = 0;
+			else if (counts.attachmentNames[i] == MatchCounts.Unknown) {
+				int n = 0;
+				for (byte[] name : attachmentNames) {
+					if (keyMatchers[i].indexOf(name, 0) > -1)
+						n++;
+				}
+				counts.attachmentNames[i] = n;
+			}
+			
+			if (!countTexts || !contentLoaded || (fields & FieldQuery.AttachmentTexts) == 0)
+				counts.attachmentTexts[i] = 0;
+			else {
+				int n = 0;
+				for (byte[] text : projection.getAttachmentTexts()) {
+					for (int index = -1; text != null && n < ContentMatchLimit
+							&& (index = keyMatchers[i].indexOf(text, index + 1)) > -1; ) {
+						n++;
+					}
+				}
+				counts.attachmentTexts[i] = n;
+			}
+		}
 	}
 	
 	/**
-	 * 计算条目的关键字匹配度.
+	 * 按固定权重计算条目的关键字匹配度, 见 {@link Ranking#Weighted}.
 	 *
-	 * @param ele                条目
-	 * @param upperKeysByteArray 大写关键字字节数组
-	 * @param lowerKeysByteArray 小写关键字字节数组
+	 * @param projection  条目的搜索投影
+	 * @param keyMatchers 各关键字的查找器
+	 * @param counts      已补全的匹配计数
 	 * @return 匹配度
 	 */
-	private static int countMatchDegree(CodeLib2Element ele, byte[][] upperKeysByteArray, byte[][] lowerKeysByteArray) {
+	private static int countMatchDegree(SearchProjection projection, KeyMatcher[] keyMatchers, MatchCounts counts) {
 		final int KeyWeight = 100;
 		final int ContentWeightP = 5;
 		final int AttachmentNameWeight = 50;
 		
-		int tMatchIndex;
-		byte[] tSearchContent;
+		int keywordLength = projection.getKeywords().length;
+		int attachmentCount = projection.getAttachmentNames().length;
 		int degree = 0;
-		
-		try {
-			for (int i = 0; i < upperKeysByteArray.length && upperKeysByteArray[i].length > 0; i++) {
-				// key
-				tSearchContent = ele.getKeywords().getBytes(CodeLib2Element.DefaultCharsetEncode);
-				tMatchIndex = Bytes.findStringIndexIgnoreCase(tSearchContent, 0, upperKeysByteArray[i], lowerKeysByteArray[i]);
-				if (tMatchIndex > -1) {
-					degree += KeyWeight * (tSearchContent.length - tMatchIndex) / tSearchContent.length;
-				}
-				
-				// content
-				tMatchIndex = -1;
-				int tContentLimit = 10;
-				while ((tMatchIndex = Bytes.findStringIndexIgnoreCase(ele.getContent(), tMatchIndex + 1,
-						upperKeysByteArray[i], lowerKeysByteArray[i])) > -1) {
-					degree += ContentWeightP;
-					if (--tContentLimit < 1) break;
-				}
-				
-				//attachment name
-				int attachmentMatchCount = 0;
-				if (Colls.isNotEmpty(ele.getAttachments())) {
-					for (Attachment attachment : ele.getAttachments()) {
-						if (Bytes.findStringIndexIgnoreCase(attachment.getName().getBytes(CodeLib2Element.DefaultCharsetEncode),
-								0, upperKeysByteArray[i], lowerKeysByteArray[i]) > -1) {
-							attachmentMatchCount++;
-						}
-					}
-					degree += AttachmentNameWeight * attachmentMatchCount / ele.getAttachments().size();
-				}
+		for (int i = 0; i < keyMatchers.length && keyMatchers[i].length() > 0; i++) {
+			// key
+			if (counts.keywordIndex[i] > -1) {
+				degree += KeyWeight * (keywordLength - counts.keywordIndex[i]) / keywordLength;
+			}
+			
+			// content
+			degree += ContentWeightP * counts.content[i];
+			
+			//attachment name
+			if (attachmentCount > 0) {
+				degree += AttachmentNameWeight * counts.attachmentNames[i] / attachmentCount;
 			}
-		} catch (Exception e) {
-			log.error("匹配度计算失败.", e);
 		}
 		
 		//		log.debug(ele.getKeywords() + " : " + degree);
@@ -253,44 +675,168 @@ public final class SearchEngine implements Closeable {
 	}
 	
 	/**
-	 * 允许的工作线程数.
+	 * 计算匹配度时每个关键字在内容中最多计数的次数.
 	 */
-	private static final int ThreadCount = Runtime.getRuntime().availableProcessors();
+	private static final int ContentMatchLimit = 10;
+	
+	/**
+	 * 扫描一遍条目内容, 将各关键字的出现次数(最多 {@link #ContentMatchLimit})写入 counts.
+	 */
+	private static void countContentMatches(CodeLib2Element ele, MultiKeyMatcher matcher, int[] counts) {
+		if (ele.isContentMapped())
+			matcher.count(ele.contentBuffer(), ContentMatchLimit, counts);
+		else
+			matcher.count(ele.getContent(), ContentMatchLimit, counts);
+	}
 	
 	/**
-	 * 请求的任务队列.
+	 * 在条目内容中查找关键字(忽略大小写). 内容在内容存储中时直接扫描映射区, 不复制到堆中.
+	 *
+	 * @return 匹配位置, 找不到返回 -1.
 	 */
-	private final BlockingQueue<String> taskList = new LinkedBlockingQueue<>();
+	private static int findContentIndex(CodeLib2Element ele, int start, KeyMatcher key) {
+		if (ele.isContentMapped())
+			return key.indexOf(ele.contentBuffer(), start);
+		return key.indexOf(ele.getContent(), start);
+	}
 	
 	/**
-	 * 守护线程. 维护 taskList.
+	 * 关键字中必然出现在匹配元素里的三字节组.<br/>
+	 * 内容匹配时每个字节与大写或小写形式之一相同即可, 因此只取大小写形式折叠后相同的 ASCII 三字节组.
+	 * 这些三字节组同样出现在匹配关键字, 附件名或文本附件的元素中.
 	 */
-	private Thread taskScheduler = new Thread("SearchEngine TaskScheduler") {
+	static int[] keyTrigrams(byte[] upperKey, byte[] lowerKey) {
+		if (upperKey.length != lowerKey.length)
+			return new int[0];
 		
-		public void run() {
-			
-			String keyword, tempKey;
-			
-			try {
-				while (true) {
-					keyword = taskList.take();
-					
-					while (System.currentTimeMillis() < SearchEngine.this.searchStartTime) {
-						Thread.sleep(100);
-					}
-					
-					while ((tempKey = taskList.poll()) != null) {
-						keyword = tempKey;
-					}
-					
-					search(keyword);
-				}
-			} catch (InterruptedException e) {
-			} catch (Exception e) {
-				log.error("搜索守护线程异常退出", e);
+		int[] grams = new int[Math.max(lowerKey.length - 2, 0)];
+		int n = 0;
+		for (int i = 0; i + 2 < lowerKey.length; i++) {
+			int t = TrigramIndex.trigram(lowerKey[i], lowerKey[i + 1], lowerKey[i + 2]);
+			if (t > -1 && t == TrigramIndex.trigram(upperKey[i], upperKey[i + 1], upperKey[i + 2]))
+				grams[n++] = t;
+		}
+		return Arrays.copyOf(grams, n);
+	}
+	
+	/**
+	 * 新关键字是否细化了上次的关键字: 上次的每个关键字都包含在某个新关键字中(大写, 小写分解在同一位置).
+	 * 此时匹配新关键字的元素必然匹配上次的关键字.
+	 */
+	private static boolean isRefinement(SearchResult last, byte[][] upperKeys, byte[][] lowerKeys) {
+		if (!last.refinable)
+			return false;
+		outer:
+		for (int i = 0; i < last.lowerKeys.length; i++) {
+			for (int j = 0; j < lowerKeys.length; j++) {
+				if (containsKey(upperKeys[j], lowerKeys[j], last.upperKeys[i], last.lowerKeys[i]))
+					continue outer;
 			}
+			return false;
 		}
-	};
+		return true;
+	}
+	
+	private static boolean containsKey(byte[] upperKey, byte[] lowerKey, byte[] upperPart, byte[] lowerPart) {
+		if (upperKey.length != lowerKey.length || upperPart.length != lowerPart.length)
+			return false;
+		
+		outer:
+		for (int offset = 0; offset + lowerPart.length <= lowerKey.length; offset++) {
+			for (int i = 0; i < lowerPart.length; i++) {
+				if (upperKey[offset + i] != upperPart[i] || lowerKey[offset + i] != lowerPart[i])
+					continue outer;
+			}
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * 搜索目标的指纹. 由各元素对象算出, 与顺序无关, 用于判断元素是否有增减.
+	 */
+	private long libFingerprint() {
+		long h = 0;
+		try {
+			for (int i = 0; i < this.targetLib.size(); i++) {
+				h += System.identityHashCode(this.targetLib.get(i)) * 0x9E3779B97F4A7C15L;
+			}
+		} catch (IndexOutOfBoundsException e) {
+			// 期间有元素被移除
+			h = System.nanoTime();
+		}
+		return h;
+	}
+	
+	/**
+	 * 搜索结果中排序保留的元素数.
+	 */
+	public static final int TopHitsLimit = 500;
+	
+	/**
+	 * 允许的工作线程数.
+	 */
+	private static final int ThreadCount = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * 不再拆分的搜索范围大小(元素数).
+	 */
+	private static final int ChunkSize = 128;
+	
+	/**
+	 * 搜索时检查是否已有新请求的间隔(元素数).
+	 */
+	private static final int StaleCheckInterval = 32;
+	
+	/**
+	 * 工作线程池. 线程常驻, 各搜索共用, 空闲线程从忙碌线程处窃取拆出的范围.
+	 */
+	private final ForkJoinPool workers = new ForkJoinPool(ThreadCount, pool -> {
+		ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+		t.setName("SearchEngine Worker-" + t.getPoolIndex());
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		return t;
+	}, null, false);
+	
+	/**
+	 * 最长延迟(毫秒).
+	 */
+	private static final long MaxDelay = 300;
+	
+	/**
+	 * 预计耗时(毫秒)在此以下的搜索立即执行.
+	 */
+	private static final long CheapCost = 30;
+	
+	/**
+	 * 最新的搜索请求代号.
+	 */
+	private final AtomicLong generation = new AtomicLong();
+	
+	/**
+	 * 调度线程. 计算延迟, 到期后准备并提交搜索.
+	 */
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "SearchEngine Scheduler");
+		t.setDaemon(true);
+		return t;
+	});
+	
+	/**
+	 * 等待执行的请求. 只在调度线程上访问.
+	 */
+	private ScheduledFuture<?> pending;
+	
+	/**
+	 * 近期搜索每个元素的平均耗时(纳秒), 指数移动平均.
+	 */
+	private volatile double costPerElement;
+	
+	/**
+	 * 最近一次请求的延迟(毫秒).
+	 */
+	private volatile long lastDelay;
 	
 	/**
 	 * 搜索目标.<br/>
@@ -305,97 +851,304 @@ public final class SearchEngine implements Closeable {
 	private final ResultCatcher resultCatcher;
 	
 	/**
-	 * 当前正在执行的搜索任务.
+	 * 搜索索引.
 	 */
-	private final Queue<SearchTask> runningTasks = new ConcurrentLinkedQueue<>();
+	private volatile SearchIndex searchIndex;
 	
 	/**
-	 * 当前正在搜索的目标位置.
+	 * 上次完成的搜索的结果.
 	 */
-	private final AtomicInteger searchTargetIndex = new AtomicInteger(0);
+	private volatile SearchResult lastResult;
+	
+	/**
+	 * 匹配度的计算方式.
+	 */
+	private volatile Ranking ranking = Ranking.Weighted;
+	
+	/**
+	 * BM25 使用的库统计数据, 元素有修改或增减后重新统计.
+	 */
+	private volatile Bm25Scorer.Stats libStats;
+	
+	/**
+	 * 元数据条件使用的分面索引, 随元素修改原地更新, 列表的元素有增减后重建.
+	 */
+	private volatile FacetIndex facets;
 	
 	public SearchEngine(List<CodeLib2Element> targetLib, ResultCatcher resultCatcher) {
 		
 		if (targetLib == null || resultCatcher == null)
 			throw new IllegalArgumentException();
 		
-		this.taskScheduler.setDaemon(true);
-		this.taskScheduler.start();
-		
 		this.targetLib = targetLib;
 		this.resultCatcher = resultCatcher;
 	}
 	
 	/**
-	 * 添加搜索任务. 不阻塞.
+	 * 设置搜索目标的索引. 为 null 时不使用索引.
+	 */
+	public void setSearchIndex(SearchIndex searchIndex) {
+		this.searchIndex = searchIndex;
+	}
+	
+	/**
+	 * 添加搜索任务. 不阻塞.<br/>
+	 * 按预计耗时延迟执行, 延迟期间有新请求时不再执行.
 	 *
-	 * @param keyword        搜索关键字.
-	 * @param startTimeLimit 若在这个时间后没有新的搜索任务, 则执行此搜索.
+	 * @param keyword 搜索关键字.
+	 * @return 搜索请求代号. 随请求递增, 结果以此区分所属请求.
+	 */
+	public long addSearchTask(String keyword) {
+		
+		long g = this.generation.incrementAndGet();
+		this.scheduler.execute(() -> this.schedule(keyword, g));
+		return g;
+	}
+	
+	/**
+	 * 设置匹配度的计算方式, 之后的搜索生效.
+	 */
+	public void setRanking(Ranking ranking) {
+		if (ranking == null)
+			throw new IllegalArgumentException();
+		this.ranking = ranking;
+	}
+	
+	public Ranking getRanking() {
+		return this.ranking;
+	}
+	
+	/**
+	 * 最近一次请求的延迟(毫秒).
+	 */
+	public long getLastDelay() {
+		return this.lastDelay;
+	}
+	
+	/**
+	 * 近期搜索每个元素的平均耗时(纳秒).
 	 */
-	public void addSearchTask(String keyword, long startTimeLimit) {
+	public double getCostPerElement() {
+		return this.costPerElement;
+	}
+	
+	private void schedule(String keyword, long generation) {
+		
+		if (this.pending != null)
+			this.pending.cancel(false);
+		this.pending = null;
+		if (generation != this.generation.get())
+			return;
 		
-		this.searchStartTime = startTimeLimit;
-		this.taskList.add(keyword);
+		long delay = this.estimateCost(keyword);
+		if (delay < CheapCost)
+			delay = 0;
+		delay = Math.min(delay, MaxDelay);
+		this.lastDelay = delay;
+		log.debug("search delay: {} ms, keyword: {}", delay, keyword);
+		
+		Runnable run = () -> {
+			if (generation != this.generation.get())
+				return;
+			try {
+				this.search(keyword, generation);
+			} catch (Exception e) {
+				log.error("搜索失败, [keyword: " + keyword + "]", e);
+			}
+		};
+		if (delay == 0)
+			run.run();
+		else
+			this.pending = this.scheduler.schedule(run, delay, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * 预计搜索耗时(毫秒). 按上次结果细化时只搜索上次结果, 否则搜索全部元素.<br/>
+	 * 只作估计, 不计算搜索目标的指纹, 执行时再确认能否细化.
+	 */
+	private long estimateCost(String keyword) {
+		
+		int count = this.targetLib.size();
+		SearchResult last = this.lastResult;
+		if (last != null && last.version == CodeLib2Element.version() && last.libSize == count) {
+			try {
+				FieldQuery query = RegexQuery.isRegex(keyword) ? null : FieldQuery.parse(keyword);
+				if (query != null && isRefinement(last, keyBytes(termKeys(query, true)), keyBytes(termKeys(query, false))))
+					count = last.hits.size();
+			} catch (UnsupportedEncodingException e) {
+				log.error("关键字编码失败: " + keyword, e);
+			} catch (IllegalArgumentException e) {
+				// 无效查询, 执行时直接结束
+			}
+		}
+		return (long) (count * this.costPerElement / 1_000_000);
+	}
+	
+	/**
+	 * 记录一次完整搜索的耗时.
+	 *
+	 * @param nanos 耗时(纳秒).
+	 * @param count 搜索的元素数.
+	 */
+	private void recordCost(long nanos, int count) {
+		if (count < 1)
+			return;
+		double cost = (double) nanos / count;
+		double avg = this.costPerElement;
+		this.costPerElement = avg == 0 ? cost : avg * 0.7 + cost * 0.3;
+	}
+	
+	/**
+	 * 查询中须包含的关键字的大写或小写形式.
+	 */
+	private static String[] termKeys(FieldQuery query, boolean upperCase) {
+		return query.getTerms().stream()
+				.map(t -> upperCase ? t.getText().toUpperCase() : t.getText().toLowerCase())
+				.toArray(String[]::new);
+	}
+	
+	/**
+	 * 关键字分解的默认编码数组.
+	 */
+	private static byte[][] keyBytes(String[] keys) throws UnsupportedEncodingException {
+		byte[][] bytes = new byte[keys.length][];
+		for (int i = 0; i < keys.length; i++) {
+			bytes[i] = keys[i].getBytes(CodeLib2Element.DefaultCharsetEncode);
+		}
+		return bytes;
 	}
 	
 	/**
 	 * 搜索关键字.<br/>
-	 * * 表示展示全部.
+	 * * 表示展示全部. 正则表达式搜索以表达式的字面量作关键字筛选, 按字面量计算匹配度.
+	 * 查询无效或没有任何条件时直接以空结果结束.
 	 *
-	 * @param keyword 搜索关键字.
+	 * @param keyword    搜索关键字.
+	 * @param generation 搜索请求代号.
 	 * @throws Exception 创建搜索任务失败.
 	 */
-	private void search(String keyword) throws Exception {
+	private void search(String keyword, long generation) throws Exception {
 		
-		this.stopCurrentSearch();
-		
-		String[] upperCaseKeys = keyword.trim().toUpperCase().split("[\\s,]+");
-		String[] lowerCaseKeys = keyword.trim().toLowerCase().split("[\\s,]+");
-		if (keyword.length() == 0 || lowerCaseKeys.length == 0 || lowerCaseKeys[0].length() == 0) {
-			// throw new IllegalArgumentException("无效关键字: " + keyword);
-			this.resultCatcher.onSearchComplete(keyword, null);
+		RegexQuery regex;
+		FieldQuery query = null;
+		try {
+			regex = RegexQuery.parse(keyword);
+			if (regex == null)
+				query = FieldQuery.parse(keyword);
+		} catch (IllegalArgumentException e) {
+			log.debug("无效查询: " + keyword, e);
+			this.resultCatcher.onSearchComplete(keyword, generation, SearchHits.Empty);
 			return;
-		} else if (lowerCaseKeys.length == 1 && "*".equals(lowerCaseKeys[0])) {
-			upperCaseKeys[0] = "";
-			lowerCaseKeys[0] = "";
 		}
 		
-		SearchTask task;
-		for (int i = 0; i < ThreadCount; i++) {
-			task = new SearchTask(keyword, upperCaseKeys, lowerCaseKeys);
-			this.runningTasks.add(task);
-			task.start();
+		String[] upperCaseKeys, lowerCaseKeys;
+		if (regex != null) {
+			String[] literals = regex.getLiterals();
+			upperCaseKeys = new String[literals.length];
+			lowerCaseKeys = new String[literals.length];
+			for (int i = 0; i < literals.length; i++) {
+				upperCaseKeys[i] = literals[i].toUpperCase();
+				lowerCaseKeys[i] = literals[i].toLowerCase();
+			}
+			log.debug("keyword: {}, {}", keyword, regex);
+		} else {
+			if (query.isEmpty()) {
+				// throw new IllegalArgumentException("无效关键字: " + keyword);
+				this.resultCatcher.onSearchComplete(keyword, generation, SearchHits.Empty);
+				return;
+			}
+			upperCaseKeys = termKeys(query, true);
+			lowerCaseKeys = termKeys(query, false);
+			log.debug("keyword: {}, {}", keyword, query);
 		}
 		
+		byte[][] upperKeys = keyBytes(upperCaseKeys);
+		byte[][] lowerKeys = keyBytes(lowerCaseKeys);
+		
+		// 各关键字都须匹配, 候选元素须包含全部关键字的三字节组
+		SearchIndex searchIndex = this.searchIndex;
+		SearchIndex.Candidates candidates = null;
+		if (searchIndex != null) {
+			int[] grams = new int[0];
+			for (int i = 0; i < lowerKeys.length; i++) {
+				int[] g = keyTrigrams(upperKeys[i], lowerKeys[i]);
+				grams = Arrays.copyOf(grams, grams.length + g.length);
+				System.arraycopy(g, 0, grams, grams.length - g.length, g.length);
+			}
+			candidates = searchIndex.candidates(grams);
+			log.debug("keyword: {}, {}", keyword, candidates);
+		}
+		
+		int libSize = this.targetLib.size();
+		QueryPlan plan = QueryPlan.of(lowerCaseKeys, upperKeys, lowerKeys, searchIndex, libSize);
+		log.debug("keyword: {}, {}", keyword, plan);
+		
+		// 上次搜索开始后元素没有增减和修改, 且新关键字细化了上次的关键字时, 只在上次的结果中搜索
+		long version = CodeLib2Element.version();
+		long libFingerprint = this.libFingerprint();
+		SearchResult last = this.lastResult;
+		List<CodeLib2Element> target = this.targetLib;
+		if (last != null && last.version == version && last.libSize == libSize
+				&& last.libFingerprint == libFingerprint && isRefinement(last, upperKeys, lowerKeys)) {
+			target = last.hits;
+			log.debug("refine in {} results, keyword: {}", target.size(), keyword);
+		}
+		
+		Bm25Scorer scorer = this.ranking == Ranking.BM25
+				                    ? this.bm25Scorer(plan, upperKeys, version, libSize) : null;
+		
+		// 细化搜索的范围不是整个库, 不用分面索引
+		FacetIndex facets = query != null && !query.getFilters().isEmpty() && target == this.targetLib
+				                    ? this.facetIndex(libSize, libFingerprint) : null;
+		
+		SearchResult result = new SearchResult(upperKeys, lowerKeys, version, libSize, libFingerprint,
+				regex == null && query.isPlain());
+		// 旧搜索不必等待, 其工作线程检查到新代号后自行停止
+		this.workers.execute(new SearchTask(keyword, generation, upperCaseKeys, lowerCaseKeys, plan.getOrder(),
+				candidates, scorer, query, regex, facets, target, result));
 	}
 	
 	/**
-	 * 任务完成.
+	 * 对应当前列表的分面索引. 列表的元素有增减时重建, 旧索引停止监听. 建立期间有元素被移除时返回 null.
+	 *
+	 * @param libSize        当前列表大小.
+	 * @param libFingerprint 当前元素指纹, 见 {@link #libFingerprint()}.
 	 */
-	private synchronized void onSearchTaskComplete(SearchTask task) {
-		
-		this.runningTasks.remove(task);
-		
-		if (this.runningTasks.size() == 0) {
-			this.resultCatcher.onSearchComplete(task.keyword, null);
+	private FacetIndex facetIndex(int libSize, long libFingerprint) {
+		FacetIndex facets = this.facets;
+		if (facets == null || !facets.isCurrent(libSize, libFingerprint)) {
+			if (facets != null)
+				facets.close();
+			facets = FacetIndex.build(this.targetLib, libSize, libFingerprint);
+			this.facets = facets;
+			log.debug("rebuild {}", facets);
 		}
+		return facets;
 	}
 	
 	/**
-	 * 停止当前搜索.<br/>
-	 * 阻塞直到操作完成.
+	 * 建立本次搜索的 BM25 匹配度. 库统计数据在元素修改或增减后重新统计, 关键字的文档频率取自执行计划.
 	 */
-	private void stopCurrentSearch() {
+	private Bm25Scorer bm25Scorer(QueryPlan plan, byte[][] upperKeys, long version, int libSize) {
+		Bm25Scorer.Stats stats = this.libStats;
+		if (stats == null || !stats.isCurrent(version, libSize)) {
+			stats = Bm25Scorer.Stats.of(this.targetLib, version);
+			this.libStats = stats;
+		}
 		
-		SearchTask task;
-		while ((task = this.runningTasks.poll()) != null) {
-			try {
-				task.interrupt();
-				task.join();
-			} catch (Exception e) {
-			}
+		boolean[] emptyKeys = new boolean[upperKeys.length];
+		for (int i = 0; i < upperKeys.length; i++) {
+			emptyKeys[i] = upperKeys[i].length == 0;
 		}
+		return new Bm25Scorer(stats, plan.getDocumentFrequencies(), emptyKeys);
+	}
+	
+	/**
+	 * 任务完成.
+	 */
+	private void onSearchTaskComplete(SearchTask task, SearchHits hits) {
 		
-		this.searchTargetIndex.set(0);
+		this.lastResult = task.result;
+		this.resultCatcher.onSearchComplete(task.keyword, task.generation, hits);
 	}
 }
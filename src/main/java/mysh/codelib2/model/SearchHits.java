@@ -0,0 +1,149 @@
+package mysh.codelib2.model;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 一次搜索的结果.<br/>
+ * 只对匹配度最高(其次修改时间最新)的前若干个元素排序, 全部匹配元素不排序, 不包装.
+ *
+ * @author Allen
+ */
+public final class SearchHits {
+	
+	static final SearchHits Empty = new SearchHits(new CodeLib2Element[0], new int[0], Collections.emptyList());
+	
+	private final CodeLib2Element[] top;
+	private final int[] degrees;
+	private final List<CodeLib2Element> all;
+	
+	private SearchHits(CodeLib2Element[] top, int[] degrees, List<CodeLib2Element> all) {
+		this.top = top;
+		this.degrees = degrees;
+		this.all = Collections.unmodifiableList(all);
+	}
+	
+	/**
+	 * 匹配的元素总数.
+	 */
+	public int getTotal() {
+		return this.all.size();
+	}
+	
+	/**
+	 * 排在最前的元素, 按匹配度降序, 匹配度相同时按修改时间降序. 最多 {@link SearchEngine#TopHitsLimit} 个.
+	 */
+	public List<CodeLib2Element> getTop() {
+		return Collections.unmodifiableList(Arrays.asList(this.top));
+	}
+	
+	/**
+	 * {@link #getTop()} 中第 i 个元素的匹配度.
+	 */
+	public int getMatchDegree(int i) {
+		return this.degrees[i];
+	}
+	
+	/**
+	 * 全部匹配的元素, 无序.
+	 */
+	public List<CodeLib2Element> getAll() {
+		return this.all;
+	}
+	
+	/**
+	 * 保留匹配度最高, 其次修改时间最新的元素的有界堆. 堆顶是保留的元素中最差的. 非线程安全.
+	 */
+	static final class TopHeap {
+		private final CodeLib2Element[] eles;
+		private final int[] degrees;
+		private final long[] times;
+		private int size;
+		
+		TopHeap(int capacity) {
+			this.eles = new CodeLib2Element[capacity];
+			this.degrees = new int[capacity];
+			this.times = new long[capacity];
+		}
+		
+		void offer(CodeLib2Element ele, int degree) {
+			offer(ele, degree, ele.getUpdateTimeMillis());
+		}
+		
+		private void offer(CodeLib2Element ele, int degree, long time) {
+			if (this.size < this.eles.length) {
+				set(this.size, ele, degree, time);
+				siftUp(this.size++);
+			} else if (this.size > 0 && worse(this.degrees[0], this.times[0], degree, time)) {
+				set(0, ele, degree, time);
+				siftDown(0, this.size);
+			}
+		}
+		
+		/**
+		 * 并入另一个堆的元素.
+		 */
+		void addAll(TopHeap other) {
+			for (int i = 0; i < other.size; i++) {
+				offer(other.eles[i], other.degrees[i], other.times[i]);
+			}
+		}
+		
+		/**
+		 * 排序后生成搜索结果. 之后本堆不再可用.
+		 *
+		 * @param all 全部匹配的元素.
+		 */
+		SearchHits toHits(List<CodeLib2Element> all) {
+			// 堆排序: 依次把最差的换到末尾, 得到从好到差的顺序
+			for (int end = this.size - 1; end > 0; end--) {
+				swap(0, end);
+				siftDown(0, end);
+			}
+			return new SearchHits(Arrays.copyOf(this.eles, this.size), Arrays.copyOf(this.degrees, this.size), all);
+		}
+		
+		private static boolean worse(int d1, long t1, int d2, long t2) {
+			return d1 < d2 || d1 == d2 && t1 < t2;
+		}
+		
+		private boolean worse(int i, int j) {
+			return worse(this.degrees[i], this.times[i], this.degrees[j], this.times[j]);
+		}
+		
+		private void set(int i, CodeLib2Element ele, int degree, long time) {
+			this.eles[i] = ele;
+			this.degrees[i] = degree;
+			this.times[i] = time;
+		}
+		
+		private void swap(int i, int j) {
+			CodeLib2Element e = this.eles[i];
+			int d = this.degrees[i];
+			long t = this.times[i];
+			set(i, this.eles[j], this.degrees[j], this.times[j]);
+			set(j, e, d, t);
+		}
+		
+		private void siftUp(int i) {
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (!worse(i, parent))
+					break;
+				swap(i, parent);
+				i = parent;
+			}
+		}
+		
+		private void siftDown(int i, int size) {
+			for (int child; (child = 2 * i + 1) < size; i = child) {
+				if (child + 1 < size && worse(child + 1, child))
+					child++;
+				if (!worse(child, i))
+					break;
+				swap(i, child);
+			}
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package mysh.codelib2.model;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
+
+/**
+ * 库文件的搜索索引.<br/>
+ * 索引({@link TrigramIndex})保存在库文件旁的 [库文件].idx 中, 打开库时映射读取.
+ * 索引记录了建立时的库校验和, 与当前元素不一致时在后台增量重建, 未改动的元素沿用原索引数据.<br/>
+ * 编辑中修改的元素经 {@link #update} 在后台单独取三字节组, 记入修改表, 修改表整体替换.
+ * 搜索时元素的当前版本在修改表或索引中时按三字节组筛选, 都不在时逐个匹配.
+ *
+ * @author Allen
+ */
+public class SearchIndex {
+	
+	private static final Logger log = LoggerFactory.getLogger(SearchIndex.class);
+	
+	/**
+	 * 索引建立线程. 所有库共用, 依次执行.
+	 */
+	private static final ExecutorService indexer = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "SearchIndex Builder");
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		return t;
+	});
+	
+	/**
+	 * 修改更新线程. 与索引建立分开, 编辑不必等待索引重建.
+	 */
+	private static final ExecutorService updater = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "SearchIndex Updater");
+		t.setDaemon(true);
+		return t;
+	});
+	
+	/**
+	 * 元素某一版本的三字节组.
+	 */
+	private static final class Posted {
+		private final long updateTime;
+		private final int[] trigrams;
+		
+		Posted(long updateTime, int[] trigrams) {
+			this.updateTime = updateTime;
+			this.trigrams = trigrams;
+		}
+	}
+	
+	/**
+	 * 一次查询的候选判断.
+	 */
+	static final class Candidates {
+		private final TrigramIndex base;
+		private final BitSet inBase;
+		private final Map<String, Posted> delta;
+		private final int[] trigrams;
+		
+		private Candidates(TrigramIndex base, Map<String, Posted> delta, int[] trigrams) {
+			this.base = base;
+			this.inBase = base == null ? null : base.containingAll(trigrams);
+			this.delta = delta;
+			this.trigrams = trigrams;
+		}
+		
+		/**
+		 * 元素是否可能匹配. 修改表和索引中都没有元素的当前版本时返回 true, 须逐个匹配.
+		 */
+		boolean mayMatch(CodeLib2Element ele) {
+			long time = ele.getUpdateTimeMillis();
+			Posted posted = this.delta.get(ele.getId());
+			if (posted != null && posted.updateTime == time) {
+				for (int t : this.trigrams) {
+					if (Arrays.binarySearch(posted.trigrams, t) < 0)
+						return false;
+				}
+				return true;
+			}
+			
+			if (this.base != null) {
+				int ordinal = this.base.ordinalOf(ele.getId());
+				if (ordinal > -1 && this.base.getUpdateTime(ordinal) == time)
+					return this.inBase.get(ordinal);
+			}
+			return true;
+		}
+		
+		@Override
+		public String toString() {
+			return "Candidates{indexed: " + (this.inBase == null ? 0 : this.inBase.cardinality())
+					+ "/" + (this.base == null ? 0 : this.base.size()) + ", modified: " + this.delta.size() + "}";
+		}
+	}
+	
+	private final File libFile;
+	private final File indexFile;
+	
+	/**
+	 * 当前索引. 可能为 null, 也可能比元素旧.
+	 */
+	private volatile TrigramIndex current;
+	
+	/**
+	 * 修改表. 索引之后修改过的元素, id -> 三字节组. 持 this 锁整体替换, 不原地修改.
+	 */
+	private volatile Map<String, Posted> delta = Collections.emptyMap();
+	
+	/**
+	 * 等待更新的元素, id -> 元素.
+	 */
+	private final Map<String, CodeLib2Element> dirty = new ConcurrentHashMap<>();
+	
+	public SearchIndex(File libFile) {
+		this.libFile = libFile;
+		this.indexFile = new File(libFile.getPath() + ".idx");
+	}
+	
+	public File getLibFile() {
+		return libFile;
+	}
+	
+	/**
+	 * 读取索引文件, 与元素不一致时在内容加载完成后于后台重建.
+	 *
+	 * @param eles           库中的元素.
+	 * @param contentLoading 元素内容的加载, 见 {@link LibJournal#getContentLoading()}.
+	 * @return 索引就绪的通知.
+	 */
+	public CompletableFuture<Void> open(Collection<CodeLib2Element> eles, CompletableFuture<Void> contentLoading) {
+		List<CodeLib2Element> target = new ArrayList<>(eles);
+		return CompletableFuture.runAsync(this::load, indexer)
+				.thenCombine(contentLoading, (a, b) -> null)
+				.thenRunAsync(() -> rebuild(target), indexer)
+				.whenComplete((r, t) -> {
+					if (t != null)
+						log.error("open search index failed: " + this.indexFile, t);
+				});
+	}
+	
+	/**
+	 * 元素改动后(如保存后)在后台更新索引.
+	 *
+	 * @return 索引更新完成的通知.
+	 */
+	public CompletableFuture<Void> refresh(Collection<CodeLib2Element> eles) {
+		List<CodeLib2Element> target = new ArrayList<>(eles);
+		return CompletableFuture.runAsync(() -> rebuild(target), indexer)
+				.whenComplete((r, t) -> {
+					if (t != null)
+						log.error("refresh search index failed: " + this.indexFile, t);
+				});
+	}
+	
+	/**
+	 * 元素已修改, 在后台更新其三字节组. 不阻塞.
+	 */
+	public void update(CodeLib2Element ele) {
+		if (this.dirty.put(ele.getId(), ele) == null)
+			updater.execute(this::drainUpdates);
+	}
+	
+	private void drainUpdates() {
+		Map<String, Posted> posted = new HashMap<>();
+		for (Iterator<CodeLib2Element> it = this.dirty.values().iterator(); it.hasNext(); ) {
+			CodeLib2Element ele = it.next();
+			it.remove();
+			try {
+				// 先取修改时间再取内容, 期间再次修改的元素会再次排入
+				long time = ele.getUpdateTimeMillis();
+				posted.put(ele.getId(), new Posted(time, TrigramIndex.trigrams(ele)));
+			} catch (Exception e) {
+				log.error("update search index failed: " + ele, e);
+			}
+		}
+		if (posted.isEmpty())
+			return;
+		
+		synchronized (this) {
+			Map<String, Posted> d = new HashMap<>(this.delta);
+			d.putAll(posted);
+			this.delta = d;
+		}
+	}
+	
+	/**
+	 * 当前索引. 可能为 null 或比元素旧, 使用时须以 {@link TrigramIndex#isIndexed} 核对元素.
+	 */
+	TrigramIndex current() {
+		return current;
+	}
+	
+	/**
+	 * 查询的候选元素.
+	 *
+	 * @param trigrams 匹配的元素必然包含的三字节组.
+	 * @return 没有三字节组或没有可用的索引数据时返回 null.
+	 */
+	Candidates candidates(int[] trigrams) {
+		Map<String, Posted> d = this.delta;
+		TrigramIndex base = this.current;
+		if (trigrams.length == 0 || base == null && d.isEmpty())
+			return null;
+		return new Candidates(base, d, IntStream.of(trigrams).sorted().distinct().toArray());
+	}
+	
+	/**
+	 * 包含全部三字节组的元素数, 按当前索引估计.
+	 *
+	 * @return 没有三字节组或没有索引时返回 -1.
+	 */
+	int documentFrequency(int[] trigrams) {
+		TrigramIndex base = this.current;
+		if (trigrams.length == 0 || base == null)
+			return -1;
+		return base.containingAll(IntStream.of(trigrams).sorted().distinct().toArray()).cardinality();
+	}
+	
+	private void load() {
+		if (this.current != null || !this.indexFile.exists())
+			return;
+		try {
+			this.current = TrigramIndex.open(this.indexFile);
+		} catch (Exception e) {
+			log.warn("broken search index ignored: " + this.indexFile, e);
+		}
+	}
+	
+	private void rebuild(List<CodeLib2Element> eles) {
+		TrigramIndex base = this.current;
+		if (base != null && base.size() == eles.size() && base.getChecksum() == TrigramIndex.checksum(eles))
+			return;
+		
+		try {
+			long start = System.currentTimeMillis();
+			TrigramIndex index = TrigramIndex.build(eles, base, this.indexFile);
+			log.debug("search index built in {} ms: {}", System.currentTimeMillis() - start, this.indexFile);
+			
+			// 修改表只留索引中没有的版本, 不在库中的元素一并去掉
+			Set<String> ids = new HashSet<>(eles.size() * 2);
+			for (CodeLib2Element ele : eles) {
+				ids.add(ele.getId());
+			}
+			synchronized (this) {
+				this.current = index;
+				Map<String, Posted> d = new HashMap<>();
+				this.delta.forEach((id, posted) -> {
+					int ordinal = index.ordinalOf(id);
+					if (ids.contains(id) && (ordinal < 0 || index.getUpdateTime(ordinal) != posted.updateTime))
+						d.put(id, posted);
+				});
+				this.delta = d;
+			}
+		} catch (Exception e) {
+			log.error("build search index failed: " + this.indexFile, e);
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package mysh.codelib2.model;
+
+import java.lang.ref.SoftReference;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * 元素的搜索投影: 小写关键字, 小写附件名, 转为 UTF-8 的小写文本附件内容.<br/>
+ * 由 {@link CodeLib2Element#searchProjection()} 在首次搜索时建立并缓存, 元素修改后重建,
+ * 搜索时不必每次转小写, 编码和解码附件.<br/>
+ * 文本附件内容的投影与附件一样大, 首次用到时才解码, 以软引用缓存, 内存紧张时回收, 再用到时重新解码.
+ *
+ * @author Allen
+ */
+final class SearchProjection {
+	
+	private static final byte[][] None = new byte[0][];
+	private static final CodeLib2Element.Attachment[] NoAttachments = new CodeLib2Element.Attachment[0];
+	
+	/**
+	 * 建立时元素的修改次数.
+	 */
+	private final int modCount;
+	
+	/**
+	 * 建立时内容是否已加载. 未加载时只有关键字.
+	 */
+	private final boolean complete;
+	
+	private final byte[] keywords;
+	private final byte[][] attachmentNames;
+	
+	/**
+	 * 建立时元素的附件, 用于解码文本附件内容.
+	 */
+	private final CodeLib2Element.Attachment[] attachments;
+	
+	private volatile SoftReference<byte[][]> attachmentTexts;
+	
+	private SearchProjection(int modCount, boolean complete, byte[] keywords,
+	                         byte[][] attachmentNames, CodeLib2Element.Attachment[] attachments) {
+		this.modCount = modCount;
+		this.complete = complete;
+		this.keywords = keywords;
+		this.attachmentNames = attachmentNames;
+		this.attachments = attachments;
+	}
+	
+	/**
+	 * 建立元素的搜索投影. 内容尚未加载时不触发加载, 只取关键字.
+	 *
+	 * @param modCount 建立前取得的元素修改次数.
+	 */
+	static SearchProjection of(CodeLib2Element ele, int modCount) {
+		byte[] keywords = lowerUtf8(ele.getKeywords());
+		if (!ele.isContentLoaded())
+			return new SearchProjection(modCount, false, keywords, None, NoAttachments);
+		
+		List<CodeLib2Element.Attachment> attachments = ele.getAttachments();
+		if (attachments == null || attachments.isEmpty())
+			return new SearchProjection(modCount, true, keywords, None, NoAttachments);
+		
+		CodeLib2Element.Attachment[] copy = attachments.toArray(NoAttachments);
+		byte[][] names = new byte[copy.length][];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = lowerUtf8(copy[i].getName());
+		}
+		return new SearchProjection(modCount, true, keywords, names, copy);
+	}
+	
+	private static byte[] lowerUtf8(String s) {
+		return s == null ? new byte[0] : s.toLowerCase().getBytes(StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * 是否仍是元素当前的投影.
+	 */
+	boolean isCurrent(int modCount, boolean contentLoaded) {
+		return this.modCount == modCount && (this.complete || !contentLoaded);
+	}
+	
+	/**
+	 * 小写关键字, UTF-8.
+	 */
+	byte[] getKeywords() {
+		return keywords;
+	}
+	
+	/**
+	 * 各附件的小写附件名, UTF-8.
+	 */
+	byte[][] getAttachmentNames() {
+		return attachmentNames;
+	}
+	
+	/**
+	 * 各附件的小写文本内容, UTF-8. 非文本附件为 null.
+	 */
+	byte[][] getAttachmentTexts() {
+		if (this.attachmentNames.length == 0)
+			return None;
+		SoftReference<byte[][]> ref = this.attachmentTexts;
+		byte[][] texts = ref == null ? null : ref.get();
+		if (texts == null) {
+			texts = new byte[this.attachmentNames.length][];
+			for (int i = 0; i < texts.length; i++) {
+				CodeLib2Element.Attachment attachment = this.attachments[i];
+				String encode = attachment.getContentType().getTextEncode();
+				if (encode != null)
+					texts[i] = lowerUtf8(Charset.forName(encode).decode(attachment.binaryContentBuffer()).toString());
+			}
+			this.attachmentTexts = new SoftReference<>(texts);
+		}
+		return texts;
+	}
+}
@@ -0,0 +1,571 @@
+package mysh.codelib2.model;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.stream.IntStream;
+
+import static mysh.codelib2.model.CodeLib2Element.Attachment;
+
+/**
+ * 三字节组倒排索引.<br/>
+ * 对每个元素的关键字, 内容, 附件名, 文本附件内容, 取其中全部由 ASCII 字节组成的连续三字节(字母转小写),
+ * 记录包含各三字节组的元素序号. 关键字中每个 ASCII 三字节组都出现在元素中, 是元素匹配该关键字的必要条件,
+ * 搜索时以此缩小需要逐个匹配的元素范围.<br/>
+ * 只取 ASCII 三字节组, 因为内容按字节忽略大小写匹配, 关键字与附件按字符串小写匹配, 两者只在 ASCII 范围内一致.<br/>
+ * 索引不可变, 整体保存为一个文件, 打开时内存映射, 倒排表直接从映射区读取.<br/>
+ * 文件格式:
+ * <pre>
+ * [魔数 int][格式版本 int][库校验和 long][元素数 int][三字节组数 int]
+ * {[修改时间 long][id 长度 short][id UTF8]}...          按序号
+ * {[三字节组 int][倒排表起始 int][倒排表长度 int]}...    按三字节组升序
+ * [倒排表 int...]                                       各表内序号升序
+ * </pre>
+ *
+ * @author Allen
+ */
+final class TrigramIndex {
+	
+	private static final Logger log = LoggerFactory.getLogger(TrigramIndex.class);
+	
+	private static final int Magic = 0x434C4958;
+	private static final int FormatVersion = 1;
+	
+	/**
+	 * 三字节组的取值数. 每字节 7 位.
+	 */
+	static final int TrigramSpace = 1 << 21;
+	
+	private static final int[] NoPostings = new int[0];
+	
+	/**
+	 * 建立时一批取三字节组的元素数.
+	 */
+	private static final int BuildBatch = 1024;
+	
+	/**
+	 * 建立时内存中攒的倒排项数上限(每项 8 字节), 超过时排序写入临时文件.
+	 */
+	private static final int RunCapacity = 1 << 22;
+	
+	private final ByteBuffer buf;
+	private final long checksum;
+	private final String[] ids;
+	private final long[] updateTimes;
+	private final Map<String, Integer> ordinals;
+	private final int termCount;
+	private final int termsPos;
+	private final int postingsPos;
+	
+	private TrigramIndex(ByteBuffer buf) throws IOException {
+		this.buf = buf;
+		if (buf.getInt(0) != Magic || buf.getInt(4) != FormatVersion)
+			throw new IOException("unknown index format");
+		this.checksum = buf.getLong(8);
+		int count = buf.getInt(16);
+		this.termCount = buf.getInt(20);
+		
+		ByteBuffer b = buf.duplicate();
+		b.position(24);
+		this.ids = new String[count];
+		this.updateTimes = new long[count];
+		this.ordinals = new HashMap<>(count * 2);
+		for (int i = 0; i < count; i++) {
+			this.updateTimes[i] = b.getLong();
+			byte[] id = new byte[b.getShort() & 0xFFFF];
+			b.get(id);
+			this.ids[i] = new String(id, StandardCharsets.UTF_8);
+			this.ordinals.put(this.ids[i], i);
+		}
+		this.termsPos = b.position();
+		this.postingsPos = this.termsPos + this.termCount * 12;
+	}
+	
+	/**
+	 * 内存映射打开索引文件.
+	 */
+	static TrigramIndex open(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			return new TrigramIndex(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+		}
+	}
+	
+	/**
+	 * 建立时的库校验和, 见 {@link #checksum(Collection)}.
+	 */
+	long getChecksum() {
+		return checksum;
+	}
+	
+	/**
+	 * 元素数.
+	 */
+	int size() {
+		return ids.length;
+	}
+	
+	String getId(int ordinal) {
+		return ids[ordinal];
+	}
+	
+	long getUpdateTime(int ordinal) {
+		return updateTimes[ordinal];
+	}
+	
+	/**
+	 * 元素序号, 不在索引中返回 -1.
+	 */
+	int ordinalOf(String id) {
+		Integer ordinal = this.ordinals.get(id);
+		return ordinal == null ? -1 : ordinal;
+	}
+	
+	/**
+	 * 索引中的元素是否与 ele 一致(id 和修改时间相同).
+	 */
+	boolean isIndexed(int ordinal, CodeLib2Element ele) {
+		return ordinal > -1 && this.ids[ordinal].equals(ele.getId())
+				&& this.updateTimes[ordinal] == ele.getUpdateTimeMillis();
+	}
+	
+	/**
+	 * 包含三字节组的元素序号, 升序.
+	 */
+	int[] postings(int trigram) {
+		int lo = 0, hi = this.termCount - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int pos = this.termsPos + mid * 12;
+			int term = this.buf.getInt(pos);
+			if (term < trigram) {
+				lo = mid + 1;
+			} else if (term > trigram) {
+				hi = mid - 1;
+			} else {
+				int start = this.buf.getInt(pos + 4);
+				int[] postings = new int[this.buf.getInt(pos + 8)];
+				ByteBuffer b = this.buf.duplicate();
+				b.position(this.postingsPos + start * 4);
+				b.asIntBuffer().get(postings);
+				return postings;
+			}
+		}
+		return NoPostings;
+	}
+	
+	/**
+	 * 同时包含全部三字节组的元素序号. 从最短的倒排表开始逐个求交.
+	 *
+	 * @param trigrams 三字节组, 可重复.
+	 */
+	BitSet containingAll(int[] trigrams) {
+		int[][] lists = IntStream.of(trigrams).distinct().mapToObj(this::postings)
+				.sorted(Comparator.comparingInt(p -> p.length))
+				.toArray(int[][]::new);
+		
+		int[] r = lists.length == 0 ? NoPostings : lists[0];
+		for (int i = 1; i < lists.length && r.length > 0; i++) {
+			int[] p = lists[i];
+			int n = 0;
+			for (int x = 0, y = 0; x < r.length && y < p.length; ) {
+				if (r[x] < p[y]) {
+					x++;
+				} else if (r[x] > p[y]) {
+					y++;
+				} else {
+					r[n++] = r[x];
+					x++;
+					y++;
+				}
+			}
+			r = Arrays.copyOf(r, n);
+		}
+		
+		BitSet set = new BitSet(this.ids.length);
+		for (int o : r) {
+			set.set(o);
+		}
+		return set;
+	}
+	
+	/**
+	 * 库校验和. 由各元素的 id 和修改时间算出, 与元素顺序无关.
+	 */
+	static long checksum(Collection<CodeLib2Element> eles) {
+		long h = eles.size();
+		for (CodeLib2Element ele : eles) {
+			h += mix(((long) ele.getId().hashCode() << 32) ^ ele.getUpdateTimeMillis());
+		}
+		return h;
+	}
+	
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+	
+	/**
+	 * 元素的全部三字节组, 升序, 不重复. 元素内容须已加载.
+	 */
+	static int[] trigrams(CodeLib2Element ele) {
+		return Collector.local.get().collect(ele);
+	}
+	
+	/**
+	 * ASCII 三字节组. 含非 ASCII 字节时返回 -1.
+	 */
+	static int trigram(byte a, byte b, byte c) {
+		if ((a | b | c) < 0)
+			return -1;
+		return (fold(a) << 14) | (fold(b) << 7) | fold(c);
+	}
+	
+	private static int fold(byte b) {
+		return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+	}
+	
+	/**
+	 * 建立索引并写入文件, 返回映射该文件的索引.<br/>
+	 * 给出 base 时增量建立: id 和修改时间未变的元素直接沿用 base 中的倒排数据, 不读取内容.<br/>
+	 * 倒排数据不整体放在内存中: 元素分批取三字节组, 倒排项攒满一段后排序写入临时文件, 最后归并写出.
+	 *
+	 * @param eles 元素, 序号即在此列表中的位置. 内容须已加载.
+	 * @param base 旧索引, 可为 null.
+	 */
+	static TrigramIndex build(List<CodeLib2Element> eles, TrigramIndex base, File file) throws IOException {
+		return build(eles, base, file, RunCapacity);
+	}
+	
+	/**
+	 * @param runCapacity 内存中攒的倒排项数上限, 超过时写出一段.
+	 */
+	static TrigramIndex build(List<CodeLib2Element> eles, TrigramIndex base, File file, int runCapacity)
+			throws IOException {
+		int n = eles.size();
+		String[] ids = new String[n];
+		long[] times = new long[n];
+		int[] fromBase = base == null ? null : new int[base.size()];
+		if (fromBase != null)
+			Arrays.fill(fromBase, -1);
+		
+		boolean[] reindex = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			CodeLib2Element ele = eles.get(i);
+			// 先取修改时间再取内容, 期间元素被修改时记录的是旧时间, 下次会重建此元素
+			times[i] = ele.getUpdateTimeMillis();
+			ids[i] = ele.getId();
+			int o = base == null ? -1 : base.ordinalOf(ids[i]);
+			if (o > -1 && base.updateTimes[o] == times[i] && fromBase[o] < 0)
+				fromBase[o] = i;
+			else
+				reindex[i] = true;
+		}
+		
+		// 每次写入新的临时文件. 上次替换失败时正在使用的临时文件仍被映射, 不能覆盖
+		deleteStaleWrites(file);
+		File dir = file.getAbsoluteFile().getParentFile();
+		File writeFile = File.createTempFile(file.getName() + ".", ".writing", dir);
+		try (PostingSorter sorter = new PostingSorter(file.getName() + ".", dir, runCapacity)) {
+			if (base != null)
+				base.forEachPosting((term, o) -> {
+					if (fromBase[o] > -1)
+						sorter.add(term, fromBase[o]);
+				});
+			for (int from = 0; from < n; from += BuildBatch) {
+				int batchStart = from;
+				int[][] grams = new int[Math.min(BuildBatch, n - from)][];
+				IntStream.range(0, grams.length).parallel().filter(i -> reindex[batchStart + i])
+						.forEach(i -> grams[i] = trigrams(eles.get(batchStart + i)));
+				for (int i = 0; i < grams.length; i++) {
+					if (grams[i] != null)
+						for (int term : grams[i]) {
+							sorter.add(term, from + i);
+						}
+				}
+			}
+			
+			int[] counts = sorter.counts;
+			int termCount = 0;
+			for (int term = 0; term < TrigramSpace; term++) {
+				if (counts[term] > 0)
+					termCount++;
+			}
+			
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(writeFile)))) {
+				out.writeInt(Magic);
+				out.writeInt(FormatVersion);
+				out.writeLong(checksum(ids, times));
+				out.writeInt(n);
+				out.writeInt(termCount);
+				for (int i = 0; i < n; i++) {
+					byte[] id = ids[i].getBytes(StandardCharsets.UTF_8);
+					out.writeLong(times[i]);
+					out.writeShort(id.length);
+					out.write(id);
+				}
+				int start = 0;
+				for (int term = 0; term < TrigramSpace; term++) {
+					if (counts[term] > 0) {
+						out.writeInt(term);
+						out.writeInt(start);
+						out.writeInt(counts[term]);
+						start += counts[term];
+					}
+				}
+				sorter.writePostings(out);
+			}
+		} catch (IOException | RuntimeException e) {
+			writeFile.delete();
+			throw e;
+		}
+		try {
+			Files.move(writeFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return open(file);
+		} catch (IOException e) {
+			// 旧索引文件仍被映射时可能无法替换, 先使用新写的文件, 下次再替换
+			log.warn("replace index file failed, use " + writeFile, e);
+			return open(writeFile);
+		}
+	}
+	
+	/**
+	 * 删除以前建立时遗留的临时文件. 仍被映射而无法删除的(如 Windows 上)留待下次.
+	 */
+	private static void deleteStaleWrites(File file) {
+		String prefix = file.getName() + ".";
+		File[] stale = file.getAbsoluteFile().getParentFile().listFiles(
+				(dir, name) -> name.startsWith(prefix) && name.endsWith(".writing"));
+		if (stale != null)
+			for (File f : stale) {
+				f.delete();
+			}
+	}
+	
+	private static long checksum(String[] ids, long[] times) {
+		long h = ids.length;
+		for (int i = 0; i < ids.length; i++) {
+			h += mix(((long) ids[i].hashCode() << 32) ^ times[i]);
+		}
+		return h;
+	}
+	
+	private interface PostingConsumer {
+		void accept(int term, int ordinal) throws IOException;
+	}
+	
+	private void forEachPosting(PostingConsumer consumer) throws IOException {
+		ByteBuffer b = this.buf.duplicate();
+		for (int i = 0; i < this.termCount; i++) {
+			int pos = this.termsPos + i * 12;
+			int term = this.buf.getInt(pos);
+			int start = this.buf.getInt(pos + 4);
+			int count = this.buf.getInt(pos + 8);
+			b.position(this.postingsPos + start * 4);
+			for (int j = 0; j < count; j++) {
+				consumer.accept(term, b.getInt());
+			}
+		}
+	}
+	
+	/**
+	 * 倒排项排序器. 倒排项编码为 [三字节组 高32位][序号 低32位], 按此排序即得各表按三字节组升序, 表内序号升序.<br/>
+	 * 内存中攒满 capacity 项后排序写入一个临时文件(一段), 最后各段归并写出. 全部项未超出容量时不写临时文件.
+	 */
+	private static final class PostingSorter implements Closeable {
+		private final String prefix;
+		private final File dir;
+		private final int capacity;
+		private final List<File> runs = new ArrayList<>();
+		
+		/**
+		 * 各三字节组的倒排项数.
+		 */
+		final int[] counts = new int[TrigramSpace];
+		private long[] buf;
+		private int size;
+		
+		PostingSorter(String prefix, File dir, int capacity) {
+			this.prefix = prefix;
+			this.dir = dir;
+			this.capacity = capacity;
+			this.buf = new long[Math.min(capacity, 1 << 16)];
+		}
+		
+		void add(int term, int ordinal) throws IOException {
+			if (this.size == this.buf.length) {
+				if (this.size < this.capacity)
+					this.buf = Arrays.copyOf(this.buf, Math.min(this.capacity, this.size * 2));
+				else
+					spill();
+			}
+			this.buf[this.size++] = (long) term << 32 | ordinal;
+			this.counts[term]++;
+		}
+		
+		private void spill() throws IOException {
+			Arrays.sort(this.buf, 0, this.size);
+			File run = File.createTempFile(this.prefix, ".run", this.dir);
+			this.runs.add(run);
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)))) {
+				for (int i = 0; i < this.size; i++) {
+					out.writeLong(this.buf[i]);
+				}
+			}
+			this.size = 0;
+		}
+		
+		/**
+		 * 按序写出全部倒排项的序号.
+		 */
+		void writePostings(DataOutputStream out) throws IOException {
+			if (this.runs.isEmpty()) {
+				Arrays.sort(this.buf, 0, this.size);
+				for (int i = 0; i < this.size; i++) {
+					out.writeInt((int) this.buf[i]);
+				}
+				return;
+			}
+			
+			if (this.size > 0)
+				spill();
+			this.buf = null;
+			PriorityQueue<Run> queue = new PriorityQueue<>(this.runs.size(), Comparator.comparingLong(r -> r.head));
+			try {
+				for (File f : this.runs) {
+					Run run = new Run(f);
+					if (run.next())
+						queue.add(run);
+					else
+						run.close();
+				}
+				Run run;
+				while ((run = queue.poll()) != null) {
+					out.writeInt((int) run.head);
+					if (run.next())
+						queue.add(run);
+					else
+						run.close();
+				}
+			} finally {
+				for (Run r : queue) {
+					r.close();
+				}
+			}
+		}
+		
+		@Override
+		public void close() {
+			for (File run : this.runs) {
+				run.delete();
+			}
+		}
+	}
+	
+	/**
+	 * 归并时读取的一段倒排项.
+	 */
+	private static final class Run implements Closeable {
+		private final DataInputStream in;
+		private long remaining;
+		long head;
+		
+		Run(File file) throws IOException {
+			this.remaining = file.length() / 8;
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		}
+		
+		boolean next() throws IOException {
+			if (this.remaining == 0)
+				return false;
+			this.remaining--;
+			this.head = this.in.readLong();
+			return true;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			this.in.close();
+		}
+	}
+	
+	/**
+	 * 收集一个元素的三字节组. 每个线程一个, 重复使用去重位图.
+	 */
+	private static final class Collector {
+		private static final ThreadLocal<Collector> local = ThreadLocal.withInitial(Collector::new);
+		
+		private final long[] seen = new long[TrigramSpace / 64];
+		private int[] grams = new int[1024];
+		private int size;
+		
+		int[] collect(CodeLib2Element ele) {
+			if (!ele.isDeleted()) {
+				addText(ele.getKeywords());
+				addBytes(ele.contentBuffer());
+				List<Attachment> attachments = ele.getAttachments();
+				if (attachments != null)
+					for (Attachment attachment : attachments) {
+						if (attachment.getName() != null)
+							addText(attachment.getName());
+						String encode = attachment.getContentType().getTextEncode();
+						if (encode != null)
+							addText(Charset.forName(encode).decode(attachment.binaryContentBuffer()).toString());
+					}
+			}
+			
+			int[] r = Arrays.copyOf(this.grams, this.size);
+			for (int i = 0; i < this.size; i++) {
+				this.seen[this.grams[i] >>> 6] = 0;
+			}
+			this.size = 0;
+			Arrays.sort(r);
+			return r;
+		}
+		
+		private void addText(String text) {
+			addBytes(ByteBuffer.wrap(text.toLowerCase().getBytes(StandardCharsets.UTF_8)));
+		}
+		
+		private void addBytes(ByteBuffer b) {
+			int limit = b.limit();
+			for (int i = b.position(); i + 2 < limit; i++) {
+				int t = trigram(b.get(i), b.get(i + 1), b.get(i + 2));
+				if (t < 0)
+					continue;
+				long bit = 1L << t;
+				if ((this.seen[t >>> 6] & bit) == 0) {
+					this.seen[t >>> 6] |= bit;
+					if (this.size == this.grams.length)
+						this.grams = Arrays.copyOf(this.grams, this.size * 2);
+					this.grams[this.size++] = t;
+				}
+			}
+		}
+	}
+}
@@ -114,6 +114,7 @@ public final class CodeLib2Main extends javax.swing.JPanel {
         importButton = new javax.swing.JButton();
         export = new javax.swing.JButton();
         orderType = new javax.swing.JButton();
+        rankingBtn = new javax.swing.JToggleButton();
         onTopBtn = new javax.swing.JToggleButton();
         jSplitPane1 = new javax.swing.JSplitPane();
         jPanel1 = new javax.swing.JPanel();
@@ -354,6 +355,26 @@ public final class CodeLib2Main extends javax.swing.JPanel {
         });
         jToolBar1.add(orderType);
 
+        rankingBtn.setText("BM25");
+        rankingBtn.setToolTipText("按 BM25 相关度排序搜索结果");
+        rankingBtn.setFocusable(false);
+        rankingBtn.setHorizontalTextPosition(javax.swing.SwingConstants.CENTER);
+        rankingBtn.setVerticalTextPosition(javax.swing.SwingConstants.BOTTOM);
+        rankingBtn.addMouseListener(new java.awt.event.MouseAdapter() {
+            public void mouseEntered(java.awt.event.MouseEvent evt) {
+                rankingBtnMouseEntered(evt);
+            }
+            public void mouseExited(java.awt.event.MouseEvent evt) {
+                rankingBtnMouseExited(evt);
+            }
+        });
+        rankingBtn.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                rankingBtnActionPerformed(evt);
+            }
+        });
+        jToolBar1.add(rankingBtn);
+
         onTopBtn.setIcon(new javax.swing.ImageIcon(getClass().getResource("/icons/onTop.png"))); // NOI18N
         onTopBtn.setToolTipText("总在最上");
         onTopBtn.setFocusable(false);
@@ -963,6 +984,18 @@ public final class CodeLib2Main extends javax.swing.JPanel {
         this.controller.uiSetStatusBarReady();
     }//GEN-LAST:event_onTopBtnMouseExited
 
+    private void rankingBtnActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_rankingBtnActionPerformed
+        this.controller.uiSetRanking(this.rankingBtn.isSelected());
+    }//GEN-LAST:event_rankingBtnActionPerformed
+
+    private void rankingBtnMouseEntered(java.awt.event.MouseEvent evt) {//GEN-FIRST:event_rankingBtnMouseEntered
+        this.controller.uiSetStatusBar(this.rankingBtn.getToolTipText());
+    }//GEN-LAST:event_rankingBtnMouseEntered
+
+    private void rankingBtnMouseExited(java.awt.event.MouseEvent evt) {//GEN-FIRST:event_rankingBtnMouseExited
+        this.controller.uiSetStatusBarReady();
+    }//GEN-LAST:event_rankingBtnMouseExited
+
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JButton add;
     private javax.swing.JButton addAttachment;
@@ -1000,6 +1033,7 @@ public final class CodeLib2Main extends javax.swing.JPanel {
     private javax.swing.JButton open;
     javax.swing.JButton orderType;
     javax.swing.JScrollPane rTextScrollPane;
+    private javax.swing.JToggleButton rankingBtn;
     private javax.swing.JButton remove;
     private javax.swing.JButton removeAttachment;
     javax.swing.JList resultList;
@@ -14,13 +14,15 @@ import javafx.scene.control.ContextMenu;
 import javafx.scene.input.MouseButton;
 import javafx.scene.web.WebEngine;
 import javafx.scene.web.WebView;
+import mysh.codelib2.model.AsyncSaver;
 import mysh.codelib2.model.CodeLib2Element;
 import mysh.codelib2.model.CodeLib2Element.Attachment;
-import mysh.codelib2.model.DataHeader;
 import mysh.codelib2.model.ExportEngine;
+import mysh.codelib2.model.LibJournal;
 import mysh.codelib2.model.SearchEngine;
+import mysh.codelib2.model.SearchHits;
+import mysh.codelib2.model.SearchIndex;
 import mysh.collect.Colls;
-import mysh.collect.Pair;
 import mysh.util.FilesUtil;
 import mysh.util.HotKeysLocal;
 import mysh.util.Strings;
@@ -59,6 +61,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.URL;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -72,9 +75,8 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Queue;
 import java.util.Random;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
@@ -89,21 +91,6 @@ import java.util.stream.Collectors;
 public class UIController implements SaveStateManager.StateObserver, SearchEngine.ResultCatcher {
 	private static final Logger log = LoggerFactory.getLogger(UIController.class);
 	
-	/**
-	 * 搜索结果.
-	 */
-	private static class SearchResult {
-		
-		private CodeLib2Element ele;
-		private int matchDegree;
-		
-		private SearchResult(CodeLib2Element ele, int matchDegree) {
-			this.ele = ele;
-			this.matchDegree = matchDegree;
-		}
-		
-	}
-	
 	/**
 	 * 应用名.
 	 */
@@ -154,6 +141,70 @@ public class UIController implements SaveStateManager.StateObserver, SearchEngin
 	 */
 	private File file;
 	
+	/**
+	 * 保存文件的变更日志.
+	 */
+	private LibJournal journal;
+	
+	/**
+	 * 打开当前库的变更日志, 持有元素内容的存储. 另存为后不变, 打开其他库或新建时关闭.
+	 */
+	private LibJournal openedJournal;
+	
+	/**
+	 * 保存文件的搜索索引.
+	 */
+	private SearchIndex searchIndex;
+	
+	/**
+	 * 把元素修改记入当前搜索索引的监听. 只引用当前库的索引, 换库或新建时移除.
+	 */
+	private CodeLib2Element.MutationListener indexUpdater;
+	
+	/**
+	 * 后台保存.
+	 */
+	private final AsyncSaver saver = new AsyncSaver(new AsyncSaver.Listener() {
+		@Override
+		public void onSaveProgress(File file, int percent) {
+			SwingUtilities.invokeLater(() -> uiSetStatusBar("正在保存 ... " + percent + "%"));
+		}
+		
+		@Override
+		public void onSaved(File file, long tag) {
+			SwingUtilities.invokeLater(() -> {
+				// 保存期间又有修改时仍为修改状态
+				if (tag == modifyCount && file.equals(UIController.this.file))
+					saveState.changeState(SaveStateManager.State.SAVED);
+				if (file.equals(UIController.this.file)) {
+					SearchIndex index = searchIndex;
+					if (index == null || !index.getLibFile().equals(file))
+						index = new SearchIndex(file);
+					index.refresh(eles);
+					setSearchIndex(index);
+				}
+				uiSetStatusBarReady();
+			});
+		}
+		
+		@Override
+		public void onSaveFailed(File file, Exception e) {
+			SwingUtilities.invokeLater(() -> {
+				// 未写入的修改仍在内存中, 再切换或关闭时提示保存
+				if (file.equals(UIController.this.file))
+					saveState.changeState(SaveStateManager.State.MODIFIED);
+				uiSetStatusBarReady();
+				JOptionPane.showMessageDialog(ui, "保存文件失败.\n" + e.getMessage(), UIController.AppTitle,
+						JOptionPane.ERROR_MESSAGE);
+			});
+		}
+	});
+	
+	/**
+	 * 修改计数. 每次变为修改状态时加一, 用于判断后台保存完成时是否又有修改.
+	 */
+	private long modifyCount;
+	
 	
 	/**
 	 * 当前正在搜索的关键字.
@@ -161,9 +212,14 @@ public class UIController implements SaveStateManager.StateObserver, SearchEngin
 	private volatile String currentKeyword;
 	
 	/**
-	 * 搜索结果队列.
+	 * 当前搜索请求的代号. 其他代号的结果已过期.
+	 */
+	private volatile long currentGeneration;
+	
+	/**
+	 * 当前搜索的结果. 搜索完成前为 null.
 	 */
-	private final Queue<SearchResult> searchResults = new ConcurrentLinkedQueue<>();
+	private volatile SearchHits currentHits;
 	
 	/**
 	 * 当前选中的条目.
@@ -466,17 +522,16 @@ public class UIController implements SaveStateManager.StateObserver, SearchEngin
 	 */
 	void uiNewInst() {
 		
-		if (checkForSave()) {
-			this.saveState.changeState(SaveStateManager.State.NEW);
+		if (checkForSave() && this.saveState.changeState(SaveStateManager.State.NEW)) {
 			this.ui.filterText.setText("");
 			this.uiSearch("");
 		}
 	}
 	
 	/**
-	 * 在改变状态检查当前状态是否需要保存.
+	 * 在改变状态检查当前状态是否需要保存, 并等待保存完成.
 	 *
-	 * @return 是否要继续改变状态. false 表示后面的操作不继续了.
+	 * @return 是否要继续改变状态. false 表示后面的操作不继续了, 包括保存失败的情况.
 	 */
 	private boolean checkForSave() {
 		
@@ -490,7 +545,7 @@ public class UIController implements SaveStateManager.StateObserver, SearchEngin
 			}
 		}
 		
-		return true;
+		return this.flushSave();
 	}
 	
 	/**
@@ -517,25 +572,52 @@ public class UIController implements SaveStateManager.StateObserver, SearchEngin
 		
 		try {
 			this.uiSetStatusBar("正在打开文件 ...");
+			if (!this.flushSave())
+				return;
 			if (!openFile.exists()) {
 				this.eles.clear();
 				this.file = openFile;
 				this.uiSave();
+				if (!this.flushSave())
+					return;
 			}
 			
-			Pair<DataHeader, Collection<CodeLib2Element>> data = DataHeader.readFromFile(openFile);
+			LibJournal openJournal = new LibJournal(openFile);
+			List<CodeLib2Element> data = openJournal.load();
 			
 			this.eles.clear();
-			this.eles.addAll(data.getR());
-			Collections.sort(this.eles);
+			this.eles.addAll(data);
 			this.currentItem = null;
 			this.file = openFile;
+			this.journal = openJournal;
+			this.closeOpenedJournal();
+			this.openedJournal = openJournal;
+			SearchIndex index = new SearchIndex(openFile);
+			index.open(data, openJournal.getContentLoading());
+			this.setSearchIndex(index);
 			
 			this.saveState.changeState(SaveStateManager.State.SAVED);
 			this.ui.filterText.setText("");
 			this.ui.filterText.requestFocus();
 			this.uiSearch("");
 			
+			// 内容后台加载期间搜索只匹配关键字, 加载完后重新搜索一次, 以补上内容匹配的结果
+			openJournal.getContentLoading().whenComplete((r, t) -> SwingUtilities.invokeLater(() -> {
+				if (this.journal != openJournal)
+					return;
+				if (t != null) {
+					// 失败的块不会记下异常, 访问对应条目时会重试, 这里只提示一次
+					Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+					JOptionPane.showMessageDialog(this.ui, "部分条目的内容加载失败, 访问这些条目时会重试.\n" + cause.getMessage(),
+							UIController.AppTitle, JOptionPane.WARNING_MESSAGE);
+				}
+				if (this.currentItem != null)
+					return;
+				String text = this.ui.filterText.getText();
+				if (text.trim().length() > 0)
+					this.uiSearch(text);
+			}));
+			
 			this.ui.zclOpenChooser.setCurrentDirectory(openFile.getParentFile());
 		} catch (Exception e) {
 			log.error("open file error.", e);
@@ -561,19 +643,64 @@ public class UIController implements SaveStateManager.StateObserver, SearchEngin
 		
 		try {
 			this.uiSetStatusBar("正在保存 ...");
-			DataHeader.saveToFile(saveFile, this.eles);
-			
+			// 保存到当前文件时只追加变更, 另存为新文件时全量保存
+			if (this.journal == null || !this.journal.getFile().equals(saveFile))
+				this.journal = new LibJournal(saveFile);
 			this.file = saveFile;
-			this.saveState.changeState(SaveStateManager.State.SAVED);
+			// 在此取快照, 编码压缩及写文件在后台执行, 完成后再更新保存状态
+			this.saver.save(this.journal, this.eles, this.modifyCount);
 		} catch (Exception e) {
 			log.error("saveFile-fail: " + saveFile, e);
 			JOptionPane.showMessageDialog(this.ui, "保存文件失败.\\n" + e.getMessage(), UIController.AppTitle,
 					JOptionPane.ERROR_MESSAGE);
-		} finally {
 			this.uiSetStatusBarReady();
 		}
 	}
 	
+	/**
+	 * 切换当前库的搜索索引. 元素修改只记入当前索引, 旧索引不再被引用.
+	 */
+	private void setSearchIndex(SearchIndex index) {
+		if (index != this.searchIndex) {
+			if (this.indexUpdater != null)
+				CodeLib2Element.removeMutationListener(this.indexUpdater);
+			this.indexUpdater = null;
+			if (index != null) {
+				this.indexUpdater = index::update;
+				CodeLib2Element.addMutationListener(this.indexUpdater);
+			}
+			this.searchIndex = index;
+		}
+		this.searchEngine.setSearchIndex(index);
+	}
+	
+	/**
+	 * 释放上次打开的库的内容存储.
+	 */
+	private void closeOpenedJournal() {
+		try {
+			if (this.openedJournal != null)
+				this.openedJournal.close();
+		} catch (Exception e) {
+			log.error("close library failed.", e);
+		}
+		this.openedJournal = null;
+	}
+	
+	/**
+	 * 等待后台保存完成. 切换或关闭文件前调用.
+	 *
+	 * @return 是否都保存成功. 失败时已另行提示, 调用方不应继续切换或关闭, 以免丢失修改.
+	 */
+	private boolean flushSave() {
+		try {
+			return this.saver.flush().isEmpty();
+		} catch (Exception e) {
+			log.error("wait for saving failed.", e);
+			return false;
+		}
+	}
+	
 	/**
 	 * 新增条目.
 	 */
@@ -670,10 +797,10 @@ public class UIController implements SaveStateManager.StateObserver, SearchEngin
 		this.orderType = 0;
 		this.ui.orderType.setToolTipText("正排");
 		
-		this.clearShowItems(false);
-		
 		try {
-			this.searchEngine.addSearchTask(text, System.currentTimeMillis() + 300);
+			// 先取新代号使旧结果过期, 再清空结果
+			this.currentGeneration = this.searchEngine.addSearchTask(text);
+			this.clearShowItems(false);
 			
 			if (this.currentKeyword.split("[\\s,]+").length > 0)
 				this.uiSetStatusBar("正在搜索 [ " + text + " ] ...");
@@ -683,12 +810,24 @@ public class UIController implements SaveStateManager.StateObserver, SearchEngin
 		}
 	}
 	
+	/**
+	 * 切换搜索结果的匹配度计算方式, 并重新搜索当前关键字.
+	 *
+	 * @param bm25 是否按 BM25 计算, 否则按固定权重.
+	 */
+	void uiSetRanking(boolean bm25) {
+		this.searchEngine.setRanking(bm25 ? SearchEngine.Ranking.BM25 : SearchEngine.Ranking.Weighted);
+		String text = this.ui.filterText.getText();
+		if (text.trim().length() > 0)
+			this.uiSearch(text);
+	}
+	
 	private void clearShowItems(boolean keepSearchResult) {
 		this.ui.resultList.clearSelection();
 		((DefaultListModel<CodeLib2Element>) this.ui.resultList.getModel()).clear();
 		this.attachmentClearTable();
 		if (!keepSearchResult)
-			this.searchResults.clear();
+			this.currentHits = null;
 	}
 	
 	/**
@@ -704,27 +843,24 @@ public class UIController implements SaveStateManager.StateObserver, SearchEngin
 			CodeLib2Element item = (CodeLib2Element) selectedValue;
 			this.ui.keyWordText.setText(item.getKeywords());
 			this.ui.keyWordText.setEditable(true);
-			try {
-				this.ui.codeText.setSyntaxEditingStyle(this.getRSyntaxStyle(item.getFirstKeyword().toLowerCase()));
-				this.ui.codeText.setCaretPosition(0);
-				this.ui.codeText.setText(new String(item.getContent(), CodeLib2Element.DefaultCharsetEncode));
-				this.ui.codeText.setEditable(true);
-				
-				this.ui.infoText.setText(item.showInfo());
-				
-				this.browserSetContent(DefaultBrowserContent);
-				
-				this.findText();
-			} catch (UnsupportedEncodingException e) {
-				log.error("编码失败.", e);
-				JOptionPane.showMessageDialog(this.ui, e.getMessage(), AppTitle, JOptionPane.ERROR_MESSAGE);
-			}
+			this.ui.codeText.setSyntaxEditingStyle(this.getRSyntaxStyle(item.getFirstKeyword().toLowerCase()));
+			this.ui.codeText.setCaretPosition(0);
+			// 由只读视图解码, 内容在内容存储中时不复制到堆中
+			this.ui.codeText.setText(
+					Charset.forName(CodeLib2Element.DefaultCharsetEncode).decode(item.contentBuffer()).toString());
+			this.ui.codeText.setEditable(true);
+			
+			this.ui.infoText.setText(item.showInfo());
+			
+			this.browserSetContent(DefaultBrowserContent);
+			
+			this.findText();
 			
 			this.attachmentClearTable();
 			if (item.getAttachments() != null) {
 				for (Attachment attachment : item.getAttachments()) {
 					((DefaultTableModel) this.ui.attachmentTable.getModel()).addRow(new Object[]{
-							attachment, attachment.getBinaryContent().length});
+							attachment, attachment.length()});
 				}
 			}
 			this.ui.attachmentTable.updateUI();
@@ -918,12 +1054,18 @@ public class UIController implements SaveStateManager.StateObserver, SearchEngin
 		
 		switch (newState) {
 			case NEW:
+				if (!this.flushSave())
+					return false;
 				this.currentItem = null;
 				this.eles.clear();
 				this.file = null;
+				this.journal = null;
+				this.closeOpenedJournal();
+				this.setSearchIndex(null);
 				this.ui.setAppTitle(UIController.AppTitle);
 				break;
 			case MODIFIED:
+				this.modifyCount++;
 				String title = "* " + UIController.AppTitle;
 				if (this.file != null) {
 					title += " - " + file.getAbsolutePath();
@@ -942,45 +1084,43 @@ public class UIController implements SaveStateManager.StateObserver, SearchEngin
 	}
 	
 	
-	@SuppressWarnings("unchecked")
 	@Override
-	public synchronized void onGetSearchResult(final String keyword, final CodeLib2Element ele, int matchDegree) {
+	public void onSearchComplete(final String keyword, long generation, SearchHits hits) {
 		
-		if (keyword == this.currentKeyword)
-			this.searchResults.add(new SearchResult(ele, matchDegree));
+		if (generation != this.currentGeneration)
+			return;
+		this.currentHits = hits;
+		this.showResults(keyword, hits, null);
 	}
 	
-	@Override
-	public void onSearchComplete(final String keyword, Comparator c) {
-		
-		final Object[] resultsArray = this.searchResults.toArray();
-		if (c != null)
-			Arrays.sort(resultsArray, c);
-		else
-			Arrays.sort(resultsArray, (o1, o2) -> {
-				SearchResult sr1 = (SearchResult) o1;
-				SearchResult sr2 = (SearchResult) o2;
-				if (keyword.trim().equals("*"))
-					return sr1.ele.getKeywords().compareTo(sr2.ele.getKeywords());
-				else {
-					int mdd = sr2.matchDegree - sr1.matchDegree;
-					if (mdd == 0) {
-						return sr2.ele.getUpdateTime().compareTo(sr1.ele.getUpdateTime());
-					} else
-						return mdd;
-				}
-			});
+	/**
+	 * 展示搜索结果. 默认展示已按匹配度排好的前 {@link SearchEngine#TopHitsLimit} 个结果,
+	 * 指定排序或搜索全部(*)时对全部结果排序.
+	 *
+	 * @param c 排序, 可为 null.
+	 */
+	@SuppressWarnings("unchecked")
+	private void showResults(final String keyword, final SearchHits hits, Comparator<CodeLib2Element> c) {
+		
+		final List<CodeLib2Element> results;
+		if (c == null && keyword.trim().equals("*"))
+			c = Comparator.comparing(CodeLib2Element::getKeywords);
+		if (c != null) {
+			results = new ArrayList<>(hits.getAll());
+			results.sort(c);
+		} else
+			results = hits.getTop();
 		
 		// update status bar
 		SwingUtilities.invokeLater(() -> {
-			int displayLimit = 500;
+			int displayLimit = SearchEngine.TopHitsLimit;
 			
-			if (resultsArray.length > displayLimit
+			if (results.size() > displayLimit
 					&&
 					"*".equals(currentKeyword.trim().split("[\\s,]+")[0])
 					&&
 					JOptionPane.NO_OPTION == JOptionPane.showConfirmDialog(ui,
-							"结果条目 " + resultsArray.length + " 条, 建议只展示部分结果以缩短渲染时间\n" +
+							"结果条目 " + results.size() + " 条, 建议只展示部分结果以缩短渲染时间\n" +
 									"选 \"是\" 只展示前 " + displayLimit + " 条, 选 \"否\" 全部展示",
 							AppTitle,
 							JOptionPane.YES_NO_OPTION)) {
@@ -988,14 +1128,17 @@ public class UIController implements SaveStateManager.StateObserver, SearchEngin
 			}
 			
 			int count = 1;
-			for (Object sortedResult : resultsArray) {
+			for (CodeLib2Element result : results) {
 				if (count++ > displayLimit)
 					break;
-				((DefaultListModel<CodeLib2Element>) ui.resultList.getModel()).addElement(((SearchResult) sortedResult).ele);
+				((DefaultListModel<CodeLib2Element>) ui.resultList.getModel()).addElement(result);
 			}
 			
+			// 正则表达式搜索时代码框查找同一表达式
 			String[] keywords = keyword.trim().split("[\\s,]+");
-			if (keywords.length > 0 && keywords[keywords.length - 1].trim().length() > 0) {
+			if (keyword.trim().matches("/.+/")) {
+				ui.findText.setText(keyword.trim().substring(1, keyword.trim().length() - 1));
+			} else if (keywords.length > 0 && keywords[keywords.length - 1].trim().length() > 0) {
 				ui.findText.setText(keywords[keywords.length - 1].trim());
 			} else {
 				ui.findText.setText(null);
@@ -1008,7 +1151,7 @@ public class UIController implements SaveStateManager.StateObserver, SearchEngin
 					uiSetStatusBar(this.ui.orderType.getToolTipText());
 				else
 					uiSetStatusBar("搜索 [" + currentKeyword + "] 完成, 展示条目/全部结果="
-							+ ui.resultList.getModel().getSize() + "/" + resultsArray.length);
+							+ ui.resultList.getModel().getSize() + "/" + hits.getTotal());
 				if (ui.resultList.getModel().getSize() > 0) {
 					ui.resultList.setSelectedIndex(0);
 				}
@@ -1059,21 +1202,23 @@ public class UIController implements SaveStateManager.StateObserver, SearchEngin
 	 */
 	void reorderItems() {
 		this.clearShowItems(true);
-		Comparator<SearchResult> c = null;
+		Comparator<CodeLib2Element> c = null;
 		switch ((++orderType) % 3) {
 			case 0:
 				this.ui.orderType.setToolTipText("正排");
 				break;
 			case 1:
-				c = (r1, r2) -> r2.ele.getSize() - r1.ele.getSize();
+				c = (e1, e2) -> e2.getSize() - e1.getSize();
 				this.ui.orderType.setToolTipText("按条目尺寸倒排");
 				break;
 			case 2:
-				c = (r1, r2) -> r2.ele.getUpdateTime().compareTo(r1.ele.getUpdateTime());
+				c = (e1, e2) -> e2.getUpdateTime().compareTo(e1.getUpdateTime());
 				this.ui.orderType.setToolTipText("按修改时间倒排");
 				break;
 		}
-		this.onSearchComplete(this.currentKeyword, c);
+		SearchHits hits = this.currentHits;
+		if (hits != null)
+			this.showResults(this.currentKeyword, hits, c);
 		this.uiSetStatusBar(this.ui.orderType.getToolTipText());
 	}
 	
@@ -1193,7 +1338,7 @@ public class UIController implements SaveStateManager.StateObserver, SearchEngin
 		
 		DefaultTableModel dataModel = (DefaultTableModel) this.ui.attachmentTable.getModel();
 		for (Attachment attachment : attachments) {
-			dataModel.addRow(new Object[]{attachment, attachment.getBinaryContent().length});
+			dataModel.addRow(new Object[]{attachment, attachment.length()});
 		}
 		this.ui.attachmentTable.updateUI();
 	}
@@ -1274,8 +1419,8 @@ public class UIController implements SaveStateManager.StateObserver, SearchEngin
 				for (File tFile : files) {
 					String fileExt = FilesUtil.getFileExtension(tFile);
 					if (UIController.Extension.equals('.' + fileExt)) {
-						Pair<DataHeader, Collection<CodeLib2Element>> data = DataHeader.readFromFile(tFile);
-						readItems.addAll(data.getR());
+						// 元素复制到当前库, 内容留在堆上, 不为导入的库建内容存储
+						readItems.addAll(new LibJournal(tFile).load(false));
 					} else {
 						CodeLib2Element ele = new CodeLib2Element();
 						ele.setKeywords(fileExt + ", " + FilesUtil.getFileNameWithoutExtension(tFile));
@@ -1495,16 +1640,18 @@ public class UIController implements SaveStateManager.StateObserver, SearchEngin
 			if (oldContentType != newContentType)
 				this.saveState.changeState(SaveStateManager.State.MODIFIED);
 			
-			if (newContentType != Attachment.ContentType.Binary && attachment.getBinaryContent() != null) {
+			if (newContentType != Attachment.ContentType.Binary) {
 				ui.contentTab.setSelectedComponent(ui.browserPanel);
 				try {
 					String fileExtension = FilesUtil.getFileExtension(new File(attachment.getName()));
 					if (newContentType == Attachment.ContentType.Img) {
 						String html = String.format("<html><body><img src=\"data:image/%s;base64,%s\" /></body></html>",
-								fileExtension.toLowerCase(), Base64.getEncoder().encodeToString(attachment.getBinaryContent()));
+								fileExtension.toLowerCase(), StandardCharsets.ISO_8859_1.decode(
+										Base64.getEncoder().encode(attachment.binaryContentBuffer())));
 						this.browserSetContent(html);
 					} else {
-						String content = new String(attachment.getBinaryContent(), newContentType.getTextEncode());
+						String content = Charset.forName(newContentType.getTextEncode())
+								                 .decode(attachment.binaryContentBuffer()).toString();
 						if (!"html".equals(fileExtension) && !"htm".equals(fileExtension)) {
 							String html = "<html><head><meta http-equiv='Content-Type' content='text/html; charset="
 									+ newContentType.getTextEncode()
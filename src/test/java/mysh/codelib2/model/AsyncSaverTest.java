@@ -0,0 +1,223 @@
+package mysh.codelib2.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AsyncSaverTest {
+
+	@Test
+	public void snapshotSaveTest() throws Exception {
+		File file = File.createTempFile("AsyncSaverTest", ".zcl2");
+		try {
+			List<CodeLib2Element> eles = new ArrayList<>();
+			for (int i = 0; i < 100; i++) {
+				CodeLib2Element e = new CodeLib2Element().setKeywords("k" + i);
+				e.setContent(("content " + i).getBytes());
+				eles.add(e);
+			}
+
+			AtomicLong savedTag = new AtomicLong(-1);
+			AsyncSaver saver = new AsyncSaver(new AsyncSaver.Listener() {
+				@Override
+				public void onSaveProgress(File file, int percent) {
+				}
+
+				@Override
+				public void onSaved(File file, long tag) {
+					savedTag.set(tag);
+				}
+
+				@Override
+				public void onSaveFailed(File file, Exception e) {
+					Assert.fail(e.toString());
+				}
+			});
+
+			LibJournal journal = new LibJournal(file);
+			List<CodeLib2Element> expected = new ArrayList<>();
+			for (CodeLib2Element e : eles) {
+				expected.add(e.snapshot());
+			}
+			saver.save(journal, eles, 1);
+			// 提交后的修改不影响本次保存
+			eles.get(0).setContent("changed".getBytes());
+			eles.add(new CodeLib2Element());
+			saver.flush();
+
+			Assert.assertEquals(1, savedTag.get());
+			DataHeaderFormatTest.assertSameElements(expected, DataHeader.readFromFile(file).getR());
+
+			saver.save(journal, eles, 2);
+			saver.save(journal, eles, 3);
+			saver.flush();
+			Assert.assertEquals(3, savedTag.get());
+			LibJournal reopened = new LibJournal(file);
+			DataHeaderFormatTest.assertSameElements(eles, reopened.load());
+			reopened.getContentLoading().get();
+		} finally {
+			file.delete();
+			new File(file.getPath() + ".journal").delete();
+		}
+	}
+
+	@Test
+	public void saveDifferentFilesTest() throws Exception {
+		File gate = File.createTempFile("AsyncSaverTest", ".zcl2");
+		File a = File.createTempFile("AsyncSaverTest", ".zcl2");
+		File b = File.createTempFile("AsyncSaverTest", ".zcl2");
+		try {
+			List<CodeLib2Element> eles = new ArrayList<>();
+			for (int i = 0; i < 10; i++) {
+				CodeLib2Element e = new CodeLib2Element().setKeywords("k" + i);
+				e.setContent(("content " + i).getBytes());
+				eles.add(e);
+			}
+
+			CountDownLatch release = new CountDownLatch(1);
+			Map<File, Long> saved = new ConcurrentHashMap<>();
+			AsyncSaver saver = new AsyncSaver(new AsyncSaver.Listener() {
+				@Override
+				public void onSaveProgress(File file, int percent) {
+				}
+
+				@Override
+				public void onSaved(File file, long tag) {
+					saved.put(file, tag);
+					try {
+						if (file.equals(gate))
+							release.await();
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+				}
+
+				@Override
+				public void onSaveFailed(File file, Exception e) {
+					Assert.fail(e.toString());
+				}
+			});
+
+			// 后台线程忙时先保存到 a, 再另存为 b, 两个文件都应写入
+			saver.save(new LibJournal(gate), eles, 0);
+			saver.save(new LibJournal(a), eles, 1);
+			saver.save(new LibJournal(b), eles, 2);
+			saver.save(new LibJournal(a), eles, 3);
+			release.countDown();
+			saver.flush();
+
+			Assert.assertEquals(3L, (long) saved.get(a));
+			Assert.assertEquals(2L, (long) saved.get(b));
+			DataHeaderFormatTest.assertSameElements(eles, DataHeader.readFromFile(a).getR());
+			DataHeaderFormatTest.assertSameElements(eles, DataHeader.readFromFile(b).getR());
+		} finally {
+			for (File f : new File[]{gate, a, b}) {
+				f.delete();
+				new File(f.getPath() + ".journal").delete();
+			}
+		}
+	}
+
+	@Test
+	public void failedSaveTest() throws Exception {
+		File dir = Files.createTempDirectory("AsyncSaverTest").toFile();
+		// 保存目标被非空目录占用, 无法写入
+		File bad = new File(dir, "bad.zcl2");
+		File good = new File(dir, "good.zcl2");
+		try {
+			Assert.assertTrue(bad.mkdir());
+			Assert.assertTrue(new File(bad, "x").createNewFile());
+			List<CodeLib2Element> eles = new ArrayList<>();
+			eles.add(new CodeLib2Element().setKeywords("k"));
+
+			Map<File, Exception> reported = new ConcurrentHashMap<>();
+			AsyncSaver saver = new AsyncSaver(new AsyncSaver.Listener() {
+				@Override
+				public void onSaveProgress(File file, int percent) {
+				}
+
+				@Override
+				public void onSaved(File file, long tag) {
+				}
+
+				@Override
+				public void onSaveFailed(File file, Exception e) {
+					reported.put(file, e);
+				}
+			});
+
+			saver.save(new LibJournal(bad), eles, 1);
+			saver.save(new LibJournal(good), eles, 2);
+			Map<File, Exception> failed = saver.flush();
+			Assert.assertEquals(Collections.singleton(bad.getAbsoluteFile()), failed.keySet());
+			Assert.assertSame(reported.get(bad), failed.get(bad.getAbsoluteFile()));
+			// 失败只报告一次
+			Assert.assertTrue(saver.flush().isEmpty());
+
+			// 之后保存成功的文件不再算失败
+			saver.save(new LibJournal(bad), eles, 3);
+			Assert.assertFalse(saver.flush().isEmpty());
+			Assert.assertTrue(new File(bad, "x").delete());
+			Assert.assertTrue(bad.delete());
+			saver.save(new LibJournal(bad), eles, 4);
+			Assert.assertTrue(saver.flush().isEmpty());
+		} finally {
+			for (File f : new File[]{bad, good}) {
+				new File(f, "x").delete();
+				f.delete();
+				new File(f.getPath() + ".journal").delete();
+			}
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void lazySnapshotTest() throws Exception {
+		// 取快照不解压尚未加载的数据块
+		ContentBlock block = new ContentBlock(new File("AsyncSaverTest-missing.zcl2"), 0, 10, 1, null, null);
+		CodeLib2Element unloaded = new CodeLib2Element("id", "k", Instant.now(), Instant.now(), false, block, 10, true);
+		block.addPending(unloaded);
+		CodeLib2Element s = unloaded.snapshot();
+		Assert.assertFalse(s.isContentLoaded());
+		Assert.assertFalse(unloaded.isContentLoaded());
+		Assert.assertEquals(10, s.getSize());
+
+		File file = File.createTempFile("AsyncSaverTest", ".zcl2");
+		File copy = File.createTempFile("AsyncSaverTest", ".zcl2");
+		try {
+			List<CodeLib2Element> eles = new ArrayList<>();
+			for (int i = 0; i < 2000; i++) {
+				CodeLib2Element e = new CodeLib2Element().setKeywords("k" + i);
+				e.setContent(("content " + i).getBytes());
+				eles.add(e);
+			}
+			DataHeader.saveToFile(file, eles);
+
+			List<CodeLib2Element> read = new ArrayList<>();
+			DataHeader.openFromFile(file, read::add, null);
+			List<CodeLib2Element> snapshot = new ArrayList<>();
+			for (CodeLib2Element e : read) {
+				snapshot.add(e.snapshot());
+			}
+			// 快照之后的修改不影响快照, 无论数据块何时加载
+			for (CodeLib2Element e : read) {
+				e.setContent("changed".getBytes());
+			}
+			DataHeader.saveToFile(copy, snapshot);
+			DataHeaderFormatTest.assertSameElements(eles, DataHeader.readFromFile(copy).getR());
+		} finally {
+			file.delete();
+			copy.delete();
+		}
+	}
+}
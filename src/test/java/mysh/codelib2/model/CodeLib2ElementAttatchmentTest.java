@@ -1,54 +1,83 @@
-
-package mysh.codelib2.model;
-
-import java.io.UnsupportedEncodingException;
-
-import org.junit.Test;
-
-public class CodeLib2ElementAttatchmentTest {
-
-	@Test
-	public void contentTypeTest() throws UnsupportedEncodingException {
-
-		// String blank = "", point = ".", text = "a.txt";
-		// byte[] blankB = new byte[0];
-		// byte[] binB = new byte[] { (byte) 223, 32, 21, 124, 63, 52, 21, 67, 44, 74, 96, 63
-		// };
-		// byte[] utf8B = "伟人".getBytes("utf8");
-		// byte[] gkbB = "伟人".getBytes("gbk");
-		//
-		// Attachment a = new Attachment();
-		// assertEquals(a.getContentType(), ContentType.Binary);
-		//
-		// a.setName(blank);
-		// a.setBinaryContent(blankB);
-		// assertEquals(a.getContentType(), ContentType.Binary);
-		// a.setBinaryContent(binB);
-		// assertEquals(a.getContentType(), ContentType.Binary);
-		// a.setBinaryContent(utf8B);
-		// assertEquals(a.getContentType(), ContentType.Binary);
-		// a.setBinaryContent(gkbB);
-		// assertEquals(a.getContentType(), ContentType.Binary);
-		//
-		// a.setName(point);
-		// a.setBinaryContent(blankB);
-		// assertEquals(a.getContentType(), ContentType.Binary);
-		// a.setBinaryContent(binB);
-		// assertEquals(a.getContentType(), ContentType.Binary);
-		// a.setBinaryContent(utf8B);
-		// assertEquals(a.getContentType(), ContentType.Binary);
-		// a.setBinaryContent(gkbB);
-		// assertEquals(a.getContentType(), ContentType.Binary);
-		//
-		// a.setName(text);
-		// a.setBinaryContent(blankB);
-		// assertEquals(a.getContentType(), ContentType.Binary);
-		// a.setBinaryContent(binB);
-		// assertEquals(a.getContentType(), ContentType.NonUTF8Text);
-		// a.setBinaryContent(utf8B);
-		// assertEquals(a.getContentType(), ContentType.UTF8Text);
-		// a.setBinaryContent(gkbB);
-		// assertEquals(a.getContentType(), ContentType.NonUTF8Text);
-
-	}
-}
+
+package mysh.codelib2.model;
+
+import java.io.UnsupportedEncodingException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import static mysh.codelib2.model.CodeLib2Element.Attachment;
+import static mysh.codelib2.model.CodeLib2Element.Attachment.ContentType;
+
+public class CodeLib2ElementAttatchmentTest {
+
+	@Test
+	public void contentTypeTest() throws UnsupportedEncodingException {
+
+		// String blank = "", point = ".", text = "a.txt";
+		// byte[] blankB = new byte[0];
+		// byte[] binB = new byte[] { (byte) 223, 32, 21, 124, 63, 52, 21, 67, 44, 74, 96, 63
+		// };
+		// byte[] utf8B = "伟人".getBytes("utf8");
+		// byte[] gkbB = "伟人".getBytes("gbk");
+		//
+		// Attachment a = new Attachment();
+		// assertEquals(a.getContentType(), ContentType.Binary);
+		//
+		// a.setName(blank);
+		// a.setBinaryContent(blankB);
+		// assertEquals(a.getContentType(), ContentType.Binary);
+		// a.setBinaryContent(binB);
+		// assertEquals(a.getContentType(), ContentType.Binary);
+		// a.setBinaryContent(utf8B);
+		// assertEquals(a.getContentType(), ContentType.Binary);
+		// a.setBinaryContent(gkbB);
+		// assertEquals(a.getContentType(), ContentType.Binary);
+		//
+		// a.setName(point);
+		// a.setBinaryContent(blankB);
+		// assertEquals(a.getContentType(), ContentType.Binary);
+		// a.setBinaryContent(binB);
+		// assertEquals(a.getContentType(), ContentType.Binary);
+		// a.setBinaryContent(utf8B);
+		// assertEquals(a.getContentType(), ContentType.Binary);
+		// a.setBinaryContent(gkbB);
+		// assertEquals(a.getContentType(), ContentType.Binary);
+		//
+		// a.setName(text);
+		// a.setBinaryContent(blankB);
+		// assertEquals(a.getContentType(), ContentType.Binary);
+		// a.setBinaryContent(binB);
+		// assertEquals(a.getContentType(), ContentType.NonUTF8Text);
+		// a.setBinaryContent(utf8B);
+		// assertEquals(a.getContentType(), ContentType.UTF8Text);
+		// a.setBinaryContent(gkbB);
+		// assertEquals(a.getContentType(), ContentType.NonUTF8Text);
+
+	}
+
+	@Test
+	public void mappedContentTest() throws Exception {
+		try (MappedContentStore store = new MappedContentStore()) {
+			byte[] utf8 = "伟人".getBytes("utf8");
+			byte[] gbk = "伟人".getBytes("gbk");
+			Attachment heap = new Attachment().setName("a.txt").setBinaryContent(utf8);
+			Attachment mapped = new Attachment().setName("a.txt").setBinaryContent(utf8);
+			mapped.moveTo(store);
+			Assert.assertTrue(mapped.isMapped());
+
+			Assert.assertEquals(heap, mapped);
+			Assert.assertEquals(mapped, heap);
+			Assert.assertEquals(utf8.length, mapped.length());
+			Assert.assertEquals(ContentType.UTF8Text, mapped.getContentType());
+
+			Attachment other = new Attachment().setName("a.txt").setBinaryContent(gbk);
+			Assert.assertNotEquals(mapped, other);
+			other.moveTo(store);
+			Assert.assertEquals(ContentType.NonUTF8Text, other.getContentType());
+			// 末尾不完整的多字节序列
+			Assert.assertEquals(ContentType.NonUTF8Text,
+					new Attachment().setName("b.txt").setBinaryContent(new byte[]{'a', (byte) 0xE4, (byte) 0xBC}).getContentType());
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package mysh.codelib2.model;
+
+import mysh.util.Serializer;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static mysh.codelib2.model.CodeLib2Element.Attachment;
+
+public class CodeLib2ElementCodecTest {
+
+	@Test
+	public void roundTripTest() throws Exception {
+		CodeLib2Element e = new CodeLib2Element().setKeywords("java, 并发, test");
+		e.setContent("public static void main() {}\n中文".getBytes("UTF-8"));
+		e.setAttachments(new ArrayList<>(Arrays.asList(
+				new Attachment().setName("a.txt").setBinaryContent("text".getBytes()),
+				new Attachment().setName("b.bin").setBinaryContent(new byte[]{0, -1, 127, -128}))));
+		e.setCreateTime(Instant.ofEpochMilli(-1000));
+		assertRoundTrip(e);
+
+		CodeLib2Element deleted = new CodeLib2Element().setId("not-an-uuid");
+		deleted.delete();
+		assertRoundTrip(deleted);
+
+		CodeLib2Element noTime = new CodeLib2Element().setCreateTime(null).setUpdateTime(null);
+		assertRoundTrip(noTime);
+	}
+
+	private static void assertRoundTrip(CodeLib2Element e) throws Exception {
+		byte[] frame = CodeLib2ElementCodec.encode(e);
+		Assert.assertTrue(CodeLib2ElementCodec.isCodecFrame(frame));
+		Assert.assertFalse(CodeLib2ElementCodec.isCodecFrame(Serializer.BUILD_IN.serialize(e)));
+
+		CodeLib2Element d = CodeLib2ElementCodec.decode(frame);
+		Assert.assertEquals(e.getId(), d.getId());
+		Assert.assertEquals(e.getKeywords(), d.getKeywords());
+		Assert.assertArrayEquals(e.getContent(), d.getContent());
+		Assert.assertEquals(e.getAttachments(), d.getAttachments());
+		Assert.assertEquals(e.isDeleted(), d.isDeleted());
+		Assert.assertEquals(e.getCreateTime() == null ? null : e.getCreateTime().toEpochMilli(),
+				d.getCreateTime() == null ? null : d.getCreateTime().toEpochMilli());
+		Assert.assertEquals(e.getUpdateTime() == null ? null : e.getUpdateTime().toEpochMilli(),
+				d.getUpdateTime() == null ? null : d.getUpdateTime().toEpochMilli());
+	}
+
+	@Ignore
+	@Test
+	public void throughputTest() throws Exception {
+		Random r = new Random();
+		List<CodeLib2Element> eles = new ArrayList<>();
+		long bytes = 0;
+		for (int i = 0; i < 100_000; i++) {
+			CodeLib2Element e = new CodeLib2Element().setKeywords("java, " + Long.toString(r.nextLong(), 36));
+			byte[] content = new byte[r.nextInt(4000)];
+			r.nextBytes(content);
+			e.setContent(content);
+			bytes += content.length;
+			eles.add(e);
+		}
+
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			List<byte[]> frames = new ArrayList<>(eles.size());
+			for (CodeLib2Element e : eles) {
+				frames.add(Serializer.BUILD_IN.serialize(e));
+			}
+			long encode = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (byte[] frame : frames) {
+				Serializer.BUILD_IN.deserialize(frame);
+			}
+			long decode = System.nanoTime() - start;
+			System.out.println("build-in: encode " + mbps(bytes, encode) + " MB/s, decode " + mbps(bytes, decode) + " MB/s");
+
+			start = System.nanoTime();
+			frames.clear();
+			for (CodeLib2Element e : eles) {
+				frames.add(CodeLib2ElementCodec.encode(e));
+			}
+			encode = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (byte[] frame : frames) {
+				CodeLib2ElementCodec.decode(frame);
+			}
+			decode = System.nanoTime() - start;
+			System.out.println("codec: encode " + mbps(bytes, encode) + " MB/s, decode " + mbps(bytes, decode) + " MB/s");
+		}
+	}
+
+	private static long mbps(long bytes, long nanos) {
+		return bytes * 1000 / Math.max(1, nanos);
+	}
+}
@@ -0,0 +1,116 @@
+package mysh.codelib2.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+public class ContentBlockTest {
+
+	private static List<CodeLib2Element> source(String prefix, int count) {
+		List<CodeLib2Element> eles = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			CodeLib2Element e = new CodeLib2Element().setKeywords(prefix + i);
+			e.setContent((prefix + " content " + i).getBytes());
+			eles.add(e);
+		}
+		return eles;
+	}
+
+	private static List<CodeLib2Element> pending(ContentBlock block, List<CodeLib2Element> source) {
+		List<CodeLib2Element> eles = new ArrayList<>();
+		for (CodeLib2Element s : source) {
+			CodeLib2Element e = new CodeLib2Element(s.getId(), s.getKeywords(), Instant.now(), Instant.now(), false,
+					block, s.getContent().length, false);
+			block.addPending(e);
+			eles.add(e);
+		}
+		return eles;
+	}
+
+	@Test
+	public void retryAfterFailedLoadTest() throws Exception {
+		List<CodeLib2Element> source = source("a", 3);
+		byte[] data = DataHeader.compressBlock(source);
+		File file = File.createTempFile("ContentBlockTest", ".zcl2");
+		file.delete();
+		try {
+			ContentBlock block = new ContentBlock(file, 0, data.length, source.size(), null, null);
+			List<CodeLib2Element> eles = pending(block, source);
+
+			// 文件尚不存在, 首次加载失败, 失败不被记下
+			try {
+				eles.get(0).getContent();
+				Assert.fail("load should fail");
+			} catch (UncheckedIOException e) {
+				// expected
+			}
+			Assert.assertFalse(eles.get(0).isContentLoaded());
+
+			// 文件就绪后再次访问即重试成功
+			Files.write(file.toPath(), data);
+			for (int i = 0; i < source.size(); i++) {
+				Assert.assertArrayEquals(source.get(i).getContent(), eles.get(i).getContent());
+				Assert.assertTrue(eles.get(i).isContentLoaded());
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void backgroundFailureTest() throws Exception {
+		List<CodeLib2Element> goodSource = source("g", 2);
+		List<CodeLib2Element> badSource = source("b", 2);
+		byte[] good = DataHeader.compressBlock(goodSource);
+		byte[] bad = DataHeader.compressBlock(badSource);
+		File file = File.createTempFile("ContentBlockTest", ".zcl2");
+		try {
+			// 只写入第一个块, 第二个块越过文件末尾
+			Files.write(file.toPath(), good);
+			ContentBlock goodBlock = new ContentBlock(file, 0, good.length, goodSource.size(), null, null);
+			ContentBlock badBlock = new ContentBlock(file, good.length, bad.length, badSource.size(), null, null);
+			List<CodeLib2Element> goodEles = pending(goodBlock, goodSource);
+			List<CodeLib2Element> badEles = pending(badBlock, badSource);
+
+			CompletableFuture<Void> loading = ContentBlock.loadInBackground(Arrays.asList(badBlock, goodBlock));
+			try {
+				loading.get();
+				Assert.fail("background load should fail");
+			} catch (ExecutionException e) {
+				Assert.assertTrue(e.getCause() instanceof UncheckedIOException);
+				Assert.assertEquals(1, e.getCause().getCause().getSuppressed().length);
+			}
+
+			// 失败的块不影响其他块
+			for (CodeLib2Element e : goodEles)
+				Assert.assertTrue(e.isContentLoaded());
+			Assert.assertFalse(badEles.get(0).isContentLoaded());
+
+			// 覆盖文件前的全部加载须失败, 失败的块仍登记, 补上数据后可重试
+			try {
+				ContentBlock.loadAll(file);
+				Assert.fail("loadAll should fail");
+			} catch (UncheckedIOException e) {
+				// expected
+			}
+			byte[] all = new byte[good.length + bad.length];
+			System.arraycopy(good, 0, all, 0, good.length);
+			System.arraycopy(bad, 0, all, good.length, bad.length);
+			Files.write(file.toPath(), all);
+			ContentBlock.loadAll(file);
+			for (int i = 0; i < badSource.size(); i++)
+				Assert.assertArrayEquals(badSource.get(i).getContent(), badEles.get(i).getContent());
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package mysh.codelib2.model;
+
+import mysh.collect.Pair;
+import mysh.util.Serializer;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.tukaani.xz.XZInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import static mysh.codelib2.model.CodeLib2Element.Attachment;
+
+public class DataHeaderFormatTest {
+
+	private List<CodeLib2Element> eles;
+
+	@Before
+	public void prepare() {
+
+		Random r = new Random(1);
+
+		this.eles = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+			CodeLib2Element e = new CodeLib2Element().setKeywords("java, " + Long.toString(r.nextLong(), 36));
+			byte[] content = new byte[r.nextInt(3000)];
+			r.nextBytes(content);
+			e.setContent(content);
+			if (i % 7 == 0) {
+				List<Attachment> attachments = new ArrayList<>();
+				attachments.add(new Attachment().setName("a" + i + ".txt").setBinaryContent(("附件 " + i).getBytes()));
+				e.setAttachments(attachments);
+			}
+			if (i % 50 == 0)
+				e.delete();
+			eles.add(e);
+		}
+	}
+
+	@Test
+	public void streamReadTest() throws Exception {
+		File file = File.createTempFile("DataHeaderFormatTest", ".zcl2");
+		try {
+			DataHeader.saveToFile(file, this.eles);
+
+			List<CodeLib2Element> read = new ArrayList<>();
+			DataHeader.readFromFile(file, read::add);
+			assertSameElements(this.eles, read);
+
+			Pair<DataHeader, Collection<CodeLib2Element>> data = DataHeader.readFromFile(file);
+			assertSameElements(this.eles, data.getR());
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void sortedReadTest() throws Exception {
+		File file = File.createTempFile("DataHeaderFormatTest", ".zcl2");
+		try {
+			DataHeader.saveToFile(file, this.eles);
+
+			List<CodeLib2Element> read = new ArrayList<>(DataHeader.readFromFile(file).getR());
+			List<CodeLib2Element> sorted = new ArrayList<>(read);
+			Collections.sort(sorted);
+			Assert.assertEquals(sorted, read);
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void singleThreadReadableTest() throws Exception {
+		File file = File.createTempFile("DataHeaderFormatTest", ".zcl2");
+		DataHeader.saveToFile(file, this.eles);
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			Serializer.BUILD_IN.deserialize(in);
+			DataInputStream dataIn = new DataInputStream(in);
+			int blockCount = dataIn.readInt();
+			Assert.assertTrue(blockCount > 1);
+			for (int i = 0; i < blockCount; i++) {
+				dataIn.readLong();
+				dataIn.readInt();
+			}
+			dataIn.readFully(new byte[dataIn.readInt()]);
+			BlobStore blobs = BlobStore.readTable(dataIn, null, null);
+			blobs.readData(dataIn);
+
+			// 全部块数据可由一个 xz 输入流顺序读出
+			List<CodeLib2Element> read = new ArrayList<>();
+			XZInputStream xzIn = new XZInputStream(in);
+			for (int i = 0; i < blockCount; i++) {
+				DataHeader.readFrames(xzIn, blobs, read::add);
+			}
+			assertSameElements(this.eles, read);
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void directoryOpenTest() throws Exception {
+		File file = File.createTempFile("DataHeaderFormatTest", ".zcl2");
+		try {
+			DataHeader.saveToFile(file, this.eles);
+
+			List<CodeLib2Element> read = new ArrayList<>();
+			Pair<DataHeader, CompletableFuture<Void>> opened = DataHeader.openFromFile(file, read::add);
+			Assert.assertEquals(this.eles.size(), read.size());
+			// 按需加载与后台加载结果一致
+			CodeLib2Element first = read.get(0);
+			Assert.assertEquals(this.eles.stream().filter(e -> e.getId().equals(first.getId())).findFirst().get().getSize(),
+					first.getSize());
+			first.getContent();
+			Assert.assertTrue(first.isContentLoaded());
+			opened.getR().get();
+			Assert.assertTrue(read.stream().allMatch(CodeLib2Element::isContentLoaded));
+			assertSameElements(this.eles, read);
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void mappedOpenTest() throws Exception {
+		File file = File.createTempFile("DataHeaderFormatTest", ".zcl2");
+		try {
+			DataHeader.saveToFile(file, this.eles);
+
+			List<CodeLib2Element> read = new ArrayList<>();
+			MappedContentStore store = new MappedContentStore();
+			DataHeader.openFromFile(file, read::add, store).getR().get();
+			Assert.assertTrue(read.stream().anyMatch(CodeLib2Element::isContentMapped));
+			assertSameElements(this.eles, read);
+			Map<String, Integer> sizes = this.eles.stream().collect(Collectors.toMap(CodeLib2Element::getId, CodeLib2Element::getSize));
+			for (CodeLib2Element e : read) {
+				Assert.assertEquals(sizes.get(e.getId()).intValue(), e.getSize());
+			}
+
+			CodeLib2Element ele = read.stream().filter(e -> e.getContent().length > 100).findFirst().get();
+			byte[] key = Arrays.copyOfRange(ele.getContent(), 50, 60);
+			Assert.assertEquals(50, KeyMatcher.of(key, key).indexOf(ele.contentBuffer(), 0));
+
+			// 关闭后不再存入, 已取得的内容仍可读取
+			store.close();
+			Assert.assertNull(store.put(new byte[10]));
+			Assert.assertEquals(50, KeyMatcher.of(key, key).indexOf(ele.contentBuffer(), 0));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void attachmentDedupTest() throws Exception {
+		File file = File.createTempFile("DataHeaderFormatTest", ".zcl2");
+		try {
+			byte[] blob = new byte[100_000];
+			new Random(2).nextBytes(blob);
+			List<CodeLib2Element> eles = new ArrayList<>();
+			for (int i = 0; i < 20; i++) {
+				CodeLib2Element e = new CodeLib2Element().setKeywords("k" + i);
+				List<Attachment> attachments = new ArrayList<>();
+				attachments.add(new Attachment().setName("lib" + i + ".jar").setBinaryContent(blob.clone()));
+				e.setAttachments(attachments);
+				eles.add(e);
+			}
+
+			DataHeader.saveToFile(file, eles);
+			// 相同的附件内容只保存一次
+			Assert.assertTrue(file.length() < blob.length * 2);
+
+			List<CodeLib2Element> read = new ArrayList<>(DataHeader.readFromFile(file).getR());
+			assertSameElements(eles, read);
+			// 加载后共用同一份数据
+			byte[] shared = read.get(0).getAttachments().get(0).getBinaryContent();
+			for (CodeLib2Element e : read) {
+				Assert.assertSame(shared, e.getAttachments().get(0).getBinaryContent());
+			}
+
+			read.clear();
+			DataHeader.openFromFile(file, read::add).getR().get();
+			assertSameElements(eles, read);
+		} finally {
+			file.delete();
+		}
+	}
+
+	static void assertSameElements(Collection<CodeLib2Element> expected, Collection<CodeLib2Element> actual) {
+		List<CodeLib2Element> e = new ArrayList<>(expected), a = new ArrayList<>(actual);
+		e.sort((e1, e2) -> e1.getId().compareTo(e2.getId()));
+		a.sort((e1, e2) -> e1.getId().compareTo(e2.getId()));
+		Assert.assertEquals(e.size(), a.size());
+		for (int i = 0; i < e.size(); i++) {
+			CodeLib2Element x = e.get(i), y = a.get(i);
+			Assert.assertEquals(x.getId(), y.getId());
+			Assert.assertEquals(x.getKeywords(), y.getKeywords());
+			Assert.assertArrayEquals(x.getContent(), y.getContent());
+			Assert.assertEquals(x.isDeleted(), y.isDeleted());
+			Assert.assertEquals(x.getAttachments() == null ? Collections.emptyList() : x.getAttachments(),
+					y.getAttachments() == null ? Collections.emptyList() : y.getAttachments());
+		}
+	}
+}
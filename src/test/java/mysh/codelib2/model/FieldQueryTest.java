@@ -0,0 +1,116 @@
+package mysh.codelib2.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class FieldQueryTest {
+
+	@Test
+	public void parseTest() throws Exception {
+		FieldQuery q = FieldQuery.parse("foo, kw:Bar content:\"a b\" att:note -baz -kw:old lang:java size:>10k http://x");
+		Assert.assertEquals("[\"foo\", kw:\"Bar\", content:\"a b\", att:\"note\", \"http://x\"]", q.getTerms().toString());
+		Assert.assertEquals("[\"baz\", kw:\"old\"]", q.getExclusions().toString());
+		Assert.assertEquals("[lang:java, size:>10k]", q.getFilters().toString());
+		Assert.assertFalse(q.isPlain());
+
+		q = FieldQuery.parse(" a \"b c\" * ");
+		Assert.assertEquals("[\"a\", \"b c\", \"\"]", q.getTerms().toString());
+		Assert.assertTrue(q.isPlain());
+
+		Assert.assertTrue(FieldQuery.parse(" , kw: \"\" ").isEmpty());
+		Assert.assertEquals("[\"-\"]", FieldQuery.parse("-").getTerms().toString());
+	}
+
+	@Test
+	public void filterTest() throws Exception {
+		CodeLib2Element ele = new CodeLib2Element().setKeywords(" Java, snippet");
+		ele.setContent(new byte[2048]);
+		ele.setUpdateTime(LocalDate.of(2025, 3, 1).atTime(12, 0).atZone(ZoneId.systemDefault()).toInstant());
+
+		Assert.assertEquals("Java", FieldQuery.firstKeyword(ele));
+		Assert.assertTrue(FieldQuery.parse("lang:java").testFilters(ele));
+		Assert.assertFalse(FieldQuery.parse("lang:snippet").testFilters(ele));
+		Assert.assertFalse(FieldQuery.parse("-lang:JAVA").testFilters(ele));
+
+		Assert.assertTrue(FieldQuery.parse("size:>1k size:<=2.1K").testFilters(ele));
+		Assert.assertFalse(FieldQuery.parse("size:>=1m").testFilters(ele));
+
+		Assert.assertTrue(FieldQuery.parse("updated:2025-03-01").testFilters(ele));
+		Assert.assertTrue(FieldQuery.parse("updated:>2025-02-28 updated:<=2025-03-01").testFilters(ele));
+		Assert.assertFalse(FieldQuery.parse("updated:>2025-03-01").testFilters(ele));
+		Assert.assertFalse(FieldQuery.parse("updated:<2025-03-01").testFilters(ele));
+
+		for (String invalid : new String[]{"updated:>2025-13-01", "size:>big"}) {
+			try {
+				FieldQuery.parse(invalid);
+				Assert.fail(invalid);
+			} catch (IllegalArgumentException e) {
+			}
+		}
+	}
+
+	@Test
+	public void facetTest() throws Exception {
+		List<CodeLib2Element> eles = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			CodeLib2Element e = new CodeLib2Element().setKeywords(i % 3 == 0 ? "Java" : i % 3 == 1 ? "python" : "go");
+			e.setContent(new byte[i * 100]);
+			e.setUpdateTime(LocalDate.of(2025, 1, 1 + i % 28).atTime(8, 0).atZone(ZoneId.systemDefault()).toInstant());
+			if (i % 7 == 0)
+				e.setAttachments(new ArrayList<>(Collections.singletonList(new CodeLib2Element.Attachment().setName("a"))));
+			eles.add(e);
+		}
+		eles.get(4).delete();
+
+		FacetIndex facets = FacetIndex.build(eles, eles.size(), 1);
+		try {
+			Assert.assertEquals(49, facets.live().cardinality());
+			assertFacets(facets);
+
+			// 元素修改后原地更新, 列表重排不影响序号
+			Collections.reverse(eles);
+			eles.get(0).setKeywords("go, changed");
+			eles.get(1).setKeywords("rust");
+			eles.get(2).setContent(new byte[1500]);
+			eles.get(3).setAttachments(new ArrayList<>(Collections.singletonList(new CodeLib2Element.Attachment().setName("b"))));
+			eles.get(7).setAttachments(null);
+			eles.get(8).delete();
+			eles.get(10).setUpdateTime(LocalDate.of(2025, 1, 15).atStartOfDay(ZoneId.systemDefault()).toInstant());
+			eles.get(11).setUpdateTime(Instant.now());
+			assertFacets(facets);
+			Assert.assertEquals(1, facets.language("RUST").cardinality());
+
+			// 只有元素增减后不再对应
+			Assert.assertTrue(facets.isCurrent(eles.size(), 1));
+			Assert.assertFalse(facets.isCurrent(eles.size() + 1, 1));
+			Assert.assertFalse(facets.isCurrent(eles.size(), 2));
+		} finally {
+			facets.close();
+		}
+	}
+
+	private static void assertFacets(FacetIndex facets) throws Exception {
+		for (String q : new String[]{"lang:JAVA", "lang:go", "-lang:go has:att", "size:>=1k size:<2.5k", "size:2000",
+				"updated:>2025-01-10 -updated:>=2025-01-20", "updated:<=2025-01-03 -has:attachment", "lang:c",
+				"updated:>2025-02-01"}) {
+			FieldQuery query = FieldQuery.parse(q);
+			OrdinalBitmap hits = facets.evaluate(query);
+			int n = 0;
+			for (int i = 0; i < facets.size(); i++) {
+				CodeLib2Element ele = facets.element(i);
+				boolean expected = !ele.isDeleted() && query.testFilters(ele);
+				Assert.assertEquals(q + " " + i, expected, hits.contains(i));
+				if (expected)
+					n++;
+			}
+			Assert.assertEquals(q, n, hits.cardinality());
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package mysh.codelib2.model;
+
+import mysh.util.Bytes;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class KeyMatcherTest {
+
+	private static final String enc = CodeLib2Element.DefaultCharsetEncode;
+
+	private static KeyMatcher matcher(String key) throws Exception {
+		return KeyMatcher.of(key.toUpperCase().getBytes(enc), key.toLowerCase().getBytes(enc));
+	}
+
+	/**
+	 * 按字符逐个比较的查找, 返回字节位置.
+	 */
+	private static int naiveIndexOf(String data, String key, int fromChar) throws Exception {
+		String upper = key.toUpperCase(), lower = key.toLowerCase();
+		outer:
+		for (int i = fromChar; i <= data.length() - key.length(); i++) {
+			for (int j = 0; j < key.length(); j++) {
+				char c = data.charAt(i + j);
+				if (c != upper.charAt(j) && c != lower.charAt(j))
+					continue outer;
+			}
+			return data.substring(0, i).getBytes(enc).length;
+		}
+		return -1;
+	}
+
+	@Test
+	public void indexOfTest() throws Exception {
+		String alphabet = "aAbBcC1 .中文éÉΩωΉ";
+		String[] keys = {"a", "ab", "abcab", "b.c", "中文", "文a", "é", "Éa", "ω", "ωa", "Ή", "aaaaaaaa"};
+		Random random = new Random(7);
+		for (int round = 0; round < 300; round++) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = random.nextInt(200); i > 0; i--) {
+				sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+			}
+			String text = sb.toString();
+			byte[] data = text.getBytes(enc);
+			for (String key : keys) {
+				KeyMatcher m = matcher(key);
+				int fromChar = text.isEmpty() ? 0 : random.nextInt(text.length());
+				int from = text.substring(0, fromChar).getBytes(enc).length;
+				int expected = naiveIndexOf(text, key, fromChar);
+				Assert.assertEquals(key + " in " + text, expected, m.indexOf(data, from));
+				Assert.assertEquals(key + " in " + text, expected, m.indexOf(ByteBuffer.wrap(data), from));
+			}
+		}
+	}
+
+	@Test
+	public void multiByteCaseTest() throws Exception {
+		// Ω(CE A9) 与 ω(CF 89) 逐字节拼出的是 Ή(CE 89)
+		Assert.assertEquals(-1, matcher("ω").indexOf("Ή".getBytes(enc), 0));
+		Assert.assertEquals(2, matcher("ω").indexOf("ΉΩ".getBytes(enc), 0));
+
+		// ß 的大写是 SS, 字节数相同但字符边界不同, 分别精确查找两种形式
+		KeyMatcher sharp = matcher("ß");
+		Assert.assertFalse(sharp.isAligned());
+		Assert.assertEquals(-1, sharp.indexOf("S\u009F".getBytes("ISO-8859-1"), 0));
+		Assert.assertEquals(-1, sharp.indexOf("ss".getBytes(enc), 0));
+		Assert.assertEquals(3, sharp.indexOf("ab SS ß".getBytes(enc), 0));
+		Assert.assertEquals(6, sharp.indexOf("ab SS ß".getBytes(enc), 4));
+
+		Assert.assertEquals(2, matcher("").indexOf(new byte[3], 2));
+		Assert.assertEquals(-1, matcher("abc").indexOf("ab".getBytes(enc), 0));
+	}
+
+	/**
+	 * 与原来的逐字节查找比较. 内容是常见大小的代码片段.
+	 */
+	@Ignore
+	@Test
+	public void benchmarkTest() throws Exception {
+		String[] words = {"public", "static", "void", "return", "final", "class", "import", "String", "int",
+				"for", "if", "else", "new", "this", "null", "List", "Map", "value", "key", "index", "{", "}", "(", ")",
+				";", "=", "注释", "\n\t"};
+		Random random = new Random(1);
+		List<byte[]> contents = new ArrayList<>();
+		long bytes = 0;
+		for (int i = 0; i < 20_000; i++) {
+			StringBuilder sb = new StringBuilder();
+			for (int len = 200 + random.nextInt(8000); sb.length() < len; ) {
+				sb.append(words[random.nextInt(words.length)]).append(' ');
+			}
+			byte[] content = sb.toString().getBytes(enc);
+			contents.add(content);
+			bytes += content.length;
+		}
+
+		for (String key : new String[]{"ret", "hashCode", "ConcurrentHashMap", "注释", "value = null"}) {
+			byte[] upper = key.toUpperCase().getBytes(enc), lower = key.toLowerCase().getBytes(enc);
+			for (int round = 0; round < 3; round++) {
+				long start = System.nanoTime();
+				int hits = 0;
+				for (byte[] content : contents) {
+					if (Bytes.findStringIndexIgnoreCase(content, 0, upper, lower) > -1)
+						hits++;
+				}
+				long naive = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				int matcherHits = 0;
+				KeyMatcher m = KeyMatcher.of(upper, lower);
+				for (byte[] content : contents) {
+					if (m.indexOf(content, 0) > -1)
+						matcherHits++;
+				}
+				long horspool = System.nanoTime() - start;
+				Assert.assertEquals(hits, matcherHits);
+				System.out.println(key + ": Bytes " + mbps(bytes, naive) + " MB/s, KeyMatcher " + mbps(bytes, horspool)
+						+ " MB/s, hits " + hits);
+			}
+		}
+	}
+
+	private static long mbps(long bytes, long nanos) {
+		return bytes * 1000 / Math.max(nanos, 1);
+	}
+}
@@ -0,0 +1,56 @@
+package mysh.codelib2.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class LibJournalTest {
+
+	@Test
+	public void appendAndReplayTest() throws Exception {
+		File file = File.createTempFile("LibJournalTest", ".zcl2");
+		File journalFile = new File(file.getPath() + ".journal");
+		try {
+			List<CodeLib2Element> eles = new ArrayList<>();
+			for (int i = 0; i < 100; i++) {
+				CodeLib2Element e = new CodeLib2Element().setKeywords("k" + i);
+				e.setContent(("content " + i).getBytes());
+				eles.add(e);
+			}
+
+			LibJournal journal = new LibJournal(file);
+			journal.save(eles);
+			Assert.assertFalse(journalFile.exists());
+			long snapshotLength = file.length();
+
+			// 只修改一个元素, 只追加日志, 快照不变
+			eles.get(3).setContent("changed".getBytes());
+			eles.add(new CodeLib2Element().setKeywords("new"));
+			Thread.sleep(2);
+			journal.save(eles);
+			Assert.assertTrue(journalFile.exists());
+			Assert.assertEquals(snapshotLength, file.length());
+			long journalLength = journalFile.length();
+
+			// 无变更时不追加
+			journal.save(eles);
+			Assert.assertEquals(journalLength, journalFile.length());
+
+			LibJournal reopened = new LibJournal(file);
+			List<CodeLib2Element> read = reopened.load();
+			DataHeaderFormatTest.assertSameElements(eles, read);
+
+			// 不带日志标识的全量保存使旧日志失效
+			DataHeader.saveToFile(file, eles.subList(0, 10));
+			reopened = new LibJournal(file);
+			Assert.assertEquals(10, reopened.load().size());
+			reopened.getContentLoading().get();
+		} finally {
+			file.delete();
+			journalFile.delete();
+		}
+	}
+}
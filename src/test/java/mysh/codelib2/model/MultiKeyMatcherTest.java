@@ -0,0 +1,75 @@
+package mysh.codelib2.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+public class MultiKeyMatcherTest {
+
+	private static int naiveCount(String data, String key, int limit) {
+		String upper = key.toUpperCase(), lower = key.toLowerCase();
+		int count = 0;
+		outer:
+		for (int i = 0; count < limit && i <= data.length() - key.length(); i++) {
+			for (int j = 0; j < key.length(); j++) {
+				char c = data.charAt(i + j);
+				if (c != upper.charAt(j) && c != lower.charAt(j))
+					continue outer;
+			}
+			count++;
+		}
+		return count;
+	}
+
+	private static MultiKeyMatcher matcher(String... keys) throws Exception {
+		String enc = CodeLib2Element.DefaultCharsetEncode;
+		byte[][] upper = new byte[keys.length][], lower = new byte[keys.length][];
+		for (int i = 0; i < keys.length; i++) {
+			upper[i] = keys[i].toUpperCase().getBytes(enc);
+			lower[i] = keys[i].toLowerCase().getBytes(enc);
+		}
+		return MultiKeyMatcher.build(upper, lower);
+	}
+
+	@Test
+	public void countTest() throws Exception {
+		String enc = CodeLib2Element.DefaultCharsetEncode;
+		String[][] queries = {
+				{"ab"}, {"aba", "ba", "b"}, {"abc", "bcd", "cde", "abcde"}, {"aa", "aa"},
+				{"中文", "文字"}, {"é", "e"}, {"ω", "Ή"}, {"a1", "1a", "a"}};
+		String alphabet = "aAbBcCdDeE1 中文字éÉΩωΉ";
+		Random random = new Random(17);
+		for (int round = 0; round < 200; round++) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = random.nextInt(300); i > 0; i--) {
+				sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+			}
+			String text = sb.toString();
+			byte[] data = text.getBytes(enc);
+			for (String[] keys : queries) {
+				MultiKeyMatcher m = matcher(keys);
+				Assert.assertNotNull(m);
+				for (int limit : new int[]{1, 10, Integer.MAX_VALUE}) {
+					int[] expected = new int[keys.length];
+					for (int k = 0; k < keys.length; k++) {
+						expected[k] = naiveCount(text, keys[k], limit);
+					}
+					Assert.assertTrue(Arrays.toString(keys), Arrays.equals(expected, m.count(data, limit)));
+					Assert.assertTrue(Arrays.toString(keys), Arrays.equals(expected, m.count(ByteBuffer.wrap(data), limit)));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void buildTest() throws Exception {
+		Assert.assertNull(matcher());
+		Assert.assertNull(matcher("a", ""));
+		// 大小写形式长度不同
+		Assert.assertNull(MultiKeyMatcher.build(new byte[][]{{1, 2}}, new byte[][]{{1}}));
+		Assert.assertTrue(Arrays.equals(new int[]{2, 1}, matcher("Foo", "BAR").count("foo FOO bar".getBytes(), 10)));
+	}
+}
@@ -0,0 +1,77 @@
+package mysh.codelib2.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+public class OrdinalBitmapTest {
+
+	private static final int Size = 200_000;
+
+	/**
+	 * 各 65536 块的密度不同, 稀疏块为数组, 稠密块为位图.
+	 */
+	private static BitSet randomSet(Random rnd) {
+		BitSet set = new BitSet();
+		for (int block = 0; block * 65536 < Size; block++) {
+			double density = new double[]{0, 0.001, 0.05, 0.5, 1}[rnd.nextInt(5)];
+			for (int i = block * 65536; i < Math.min(Size, (block + 1) * 65536); i++) {
+				if (rnd.nextDouble() < density)
+					set.set(i);
+			}
+		}
+		return set;
+	}
+
+	private static OrdinalBitmap of(BitSet set) {
+		long[] words = OrdinalBitmap.words(Size);
+		set.stream().forEach(i -> OrdinalBitmap.set(words, i));
+		return OrdinalBitmap.of(words);
+	}
+
+	private static void assertSame(BitSet expected, OrdinalBitmap actual) {
+		Assert.assertEquals(expected.cardinality(), actual.cardinality());
+		for (int i = expected.nextSetBit(0), j = actual.nextSetBit(0); ; i = expected.nextSetBit(i + 1), j = actual.nextSetBit(j + 1)) {
+			Assert.assertEquals(i, j);
+			if (i < 0)
+				break;
+			Assert.assertTrue(actual.contains(i));
+		}
+	}
+
+	@Test
+	public void opTest() throws Exception {
+		Random rnd = new Random(7);
+		for (int round = 0; round < 20; round++) {
+			BitSet a = randomSet(rnd), b = randomSet(rnd);
+			OrdinalBitmap x = of(a), y = of(b);
+			assertSame(a, x);
+
+			BitSet and = (BitSet) a.clone();
+			and.and(b);
+			assertSame(and, x.and(y));
+			BitSet or = (BitSet) a.clone();
+			or.or(b);
+			assertSame(or, x.or(y));
+			BitSet andNot = (BitSet) a.clone();
+			andNot.andNot(b);
+			assertSame(andNot, x.andNot(y));
+		}
+	}
+
+	@Test
+	public void sortedTest() throws Exception {
+		int[] ordinals = {3, 70000, 70001, 140000, 0};
+		OrdinalBitmap set = OrdinalBitmap.ofSorted(ordinals, 4);
+		Assert.assertEquals(4, set.cardinality());
+		Assert.assertFalse(set.contains(0));
+		Assert.assertTrue(set.contains(70001));
+		Assert.assertEquals(70000, set.nextSetBit(4));
+		Assert.assertEquals(140000, set.nextSetBit(70002));
+		Assert.assertEquals(-1, set.nextSetBit(140001));
+		Assert.assertEquals(0, OrdinalBitmap.Empty.and(set).cardinality());
+		Assert.assertEquals(4, OrdinalBitmap.Empty.or(set).cardinality());
+	}
+}
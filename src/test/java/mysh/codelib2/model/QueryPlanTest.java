@@ -0,0 +1,55 @@
+package mysh.codelib2.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class QueryPlanTest {
+
+	private static byte[][] bytes(String... keys) {
+		byte[][] b = new byte[keys.length][];
+		for (int i = 0; i < keys.length; i++) {
+			b[i] = keys[i].getBytes();
+		}
+		return b;
+	}
+
+	private static QueryPlan plan(SearchIndex index, int libSize, String... keys) {
+		String[] upper = Arrays.stream(keys).map(String::toUpperCase).toArray(String[]::new);
+		return QueryPlan.of(keys, bytes(upper), bytes(keys), index, libSize);
+	}
+
+	@Test
+	public void orderTest() throws Exception {
+		// 无索引时长的关键字先匹配
+		QueryPlan plan = plan(null, 100, "ab", "abcdef", "abcd");
+		Assert.assertTrue(Arrays.equals(new int[]{1, 2, 0}, plan.getOrder()));
+		Assert.assertTrue(Arrays.equals(new int[]{-1, -1, -1}, plan.getDocumentFrequencies()));
+
+		File lib = File.createTempFile("QueryPlanTest", ".zcl2");
+		File idx = new File(lib.getPath() + ".idx");
+		try {
+			List<CodeLib2Element> eles = new ArrayList<>();
+			for (int i = 0; i < 100; i++) {
+				CodeLib2Element e = new CodeLib2Element().setKeywords("common" + (i % 10 == 0 ? " rare" : ""));
+				e.setContent("text".getBytes());
+				eles.add(e);
+			}
+			SearchIndex index = new SearchIndex(lib);
+			index.refresh(eles).get();
+
+			// 索引估计: 少见的关键字先匹配, 无三字节组的按长度估计
+			plan = plan(index, eles.size(), "common", "rare", "xy");
+			Assert.assertTrue(Arrays.equals(new int[]{100, 10, -1}, plan.getDocumentFrequencies()));
+			Assert.assertTrue(Arrays.equals(new int[]{1, 2, 0}, plan.getOrder()));
+			Assert.assertTrue(plan.toString(), plan.toString().startsWith("QueryPlan{[rare] ~10 (index) -> [xy]"));
+		} finally {
+			lib.delete();
+			idx.delete();
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package mysh.codelib2.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class RegexQueryTest {
+
+	private static void assertLiterals(String regex, String... expected) {
+		Assert.assertEquals(regex, Arrays.asList(expected), Arrays.asList(RegexQuery.requiredLiterals(regex)));
+	}
+
+	@Test
+	public void literalsTest() throws Exception {
+		assertLiterals("foo.*bar", "foo", "bar");
+		assertLiterals("colou?r", "colo");
+		assertLiterals("ab+cd", "ab", "cd");
+		assertLiterals("x{2}yz", "yz");
+		assertLiterals("file\\.txt", "file.txt");
+		assertLiterals("\\d+px", "px");
+		assertLiterals("new (Foo|Bar)\\(\\)", "new ", "()");
+		assertLiterals("[a-z]+Exception", "Exception");
+		assertLiterals("a[]b]cd", "cd");
+		assertLiterals("(\\w+)==\\1;", "==");
+		assertLiterals("中文?字符", "字符");
+
+		// 无法确定必然出现的字面量
+		assertLiterals("foo|bar");
+		assertLiterals("(?i)foo");
+		assertLiterals("\\Qa.b\\E");
+		assertLiterals("\\x41bc");
+	}
+
+	@Test
+	public void parseTest() throws Exception {
+		Assert.assertNull(RegexQuery.parse("foo"));
+		Assert.assertNull(RegexQuery.parse("//"));
+		Assert.assertNotNull(RegexQuery.parse(" /fo+/ "));
+		try {
+			RegexQuery.parse("/foo(/");
+			Assert.fail();
+		} catch (java.util.regex.PatternSyntaxException e) {
+		}
+	}
+
+	@Test
+	public void matchesTest() throws Exception {
+		CodeLib2Element ele = new CodeLib2Element().setKeywords("java, snippet");
+		ele.setContent("int count = 42;".getBytes(CodeLib2Element.DefaultCharsetEncode));
+		Assert.assertTrue(RegexQuery.parse("/COUNT = \\d+/").matches(ele));
+		Assert.assertTrue(RegexQuery.parse("/^java/").matches(ele));
+		Assert.assertFalse(RegexQuery.parse("/count = [a-z]/").matches(ele));
+	}
+
+	@Test
+	public void budgetTest() throws Exception {
+		char[] a = new char[40];
+		Arrays.fill(a, 'a');
+		CodeLib2Element ele = new CodeLib2Element().setKeywords(new String(a));
+		ele.setContent(new byte[0]);
+
+		// 回溯失控的表达式超时后视为不匹配
+		RegexQuery query = RegexQuery.parse("/(a|aa)+b/");
+		long start = System.nanoTime();
+		Assert.assertFalse(query.matches(ele));
+		Assert.assertTrue(System.nanoTime() - start < RegexQuery.ElementBudget * 20);
+	}
+}
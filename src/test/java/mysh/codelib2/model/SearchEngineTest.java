@@ -0,0 +1,537 @@
+package mysh.codelib2.model;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.File;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class SearchEngineTest {
+
+	private static Map<String, Integer> search(List<CodeLib2Element> eles, SearchIndex index, String keyword)
+			throws InterruptedException {
+		return search(eles, index, SearchEngine.Ranking.Weighted, keyword);
+	}
+
+	private static Map<String, Integer> search(List<CodeLib2Element> eles, SearchIndex index,
+	                                           SearchEngine.Ranking ranking, String keyword) throws InterruptedException {
+		Map<String, Integer> results = new ConcurrentHashMap<>();
+		CountDownLatch complete = new CountDownLatch(1);
+		SearchEngine engine = new SearchEngine(eles, new SearchEngine.ResultCatcher() {
+			@Override
+			public void onGetSearchResult(String keyword, long generation, CodeLib2Element ele, int matchDegree) {
+				results.put(ele.getId(), matchDegree);
+			}
+
+			@Override
+			public void onSearchComplete(String keyword, long generation, SearchHits result) {
+				complete.countDown();
+			}
+		});
+		try {
+			engine.setSearchIndex(index);
+			engine.setRanking(ranking);
+			engine.addSearchTask(keyword);
+			Assert.assertTrue(complete.await(10, TimeUnit.SECONDS));
+			return results;
+		} finally {
+			engine.close();
+		}
+	}
+
+	@Test
+	public void indexedSearchTest() throws Exception {
+		File lib = File.createTempFile("SearchEngineTest", ".zcl2");
+		File idx = new File(lib.getPath() + ".idx");
+		try {
+			List<CodeLib2Element> eles = new ArrayList<>();
+			for (int i = 0; i < 200; i++) {
+				CodeLib2Element e = new CodeLib2Element().setKeywords("java, snippet" + i);
+				e.setContent(("public class Foo" + i + " { int bar" + (i % 7) + "; } 中文内容").getBytes(CodeLib2Element.DefaultCharsetEncode));
+				e.setUpdateTime(Instant.ofEpochMilli(i));
+				eles.add(e);
+			}
+			SearchIndex index = new SearchIndex(lib);
+			index.refresh(eles).get();
+			Assert.assertNotNull(index.current());
+			Assert.assertEquals(29, index.current().containingAll(
+					SearchEngine.keyTrigrams("BAR3".getBytes(), "bar3".getBytes())).cardinality());
+
+			// 索引之后修改和新增的元素
+			eles.get(3).setContent("now contains BAR3 and FOO".getBytes());
+			eles.get(10).setContent("nothing".getBytes());
+			CodeLib2Element added = new CodeLib2Element().setKeywords("new");
+			added.setContent("class FooBar3".getBytes());
+			eles.add(added);
+
+			for (String keyword : new String[]{"bar3", "FOO bar3", "class foo1", "snippet1", "中文", "ba", "*", "nothing"}) {
+				Assert.assertEquals(keyword, search(eles, null, keyword), search(eles, index, keyword));
+			}
+			Assert.assertTrue(search(eles, index, "bar3").containsKey(added.getId()));
+			Assert.assertTrue(search(eles, index, "foo bar3").containsKey(eles.get(3).getId()));
+			Assert.assertFalse(search(eles, index, "foo10").containsKey(eles.get(10).getId()));
+		} finally {
+			lib.delete();
+			idx.delete();
+		}
+	}
+
+	@Test
+	public void mutationUpdateTest() throws Exception {
+		File lib = File.createTempFile("SearchEngineTest", ".zcl2");
+		File idx = new File(lib.getPath() + ".idx");
+		SearchIndex index = new SearchIndex(lib);
+		CodeLib2Element.MutationListener listener = index::update;
+		CodeLib2Element.addMutationListener(listener);
+		try {
+			List<CodeLib2Element> eles = new ArrayList<>();
+			for (int i = 0; i < 20; i++) {
+				CodeLib2Element e = new CodeLib2Element().setKeywords("k" + i);
+				e.setContent(("alpha " + i).getBytes());
+				eles.add(e);
+			}
+			index.refresh(eles).get();
+
+			CodeLib2Element ele = eles.get(5);
+			ele.setContent("gamma".getBytes());
+			int[] alpha = SearchEngine.keyTrigrams("ALPHA".getBytes(), "alpha".getBytes());
+			int[] gamma = SearchEngine.keyTrigrams("GAMMA".getBytes(), "gamma".getBytes());
+			long deadline = System.currentTimeMillis() + 10_000;
+			while (index.candidates(alpha).mayMatch(ele) && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Assert.assertFalse(index.candidates(alpha).mayMatch(ele));
+			Assert.assertTrue(index.candidates(gamma).mayMatch(ele));
+			Assert.assertFalse(index.candidates(gamma).mayMatch(eles.get(6)));
+			Assert.assertEquals(1, search(eles, index, "gamma").size());
+			Assert.assertEquals(19, search(eles, index, "alpha").size());
+
+			// 重建后修改表中的版本并入索引
+			index.refresh(eles).get();
+			Assert.assertFalse(index.candidates(alpha).mayMatch(ele));
+			Assert.assertTrue(index.candidates(alpha).toString().contains("modified: 0"));
+		} finally {
+			CodeLib2Element.removeMutationListener(listener);
+			lib.delete();
+			idx.delete();
+		}
+	}
+
+	private static Map<String, Integer> search(SearchEngine engine, Map<String, Integer> results,
+	                                           CountDownLatch[] complete, String keyword) throws InterruptedException {
+		results.clear();
+		complete[0] = new CountDownLatch(1);
+		engine.addSearchTask(keyword);
+		Assert.assertTrue(complete[0].await(10, TimeUnit.SECONDS));
+		return new HashMap<>(results);
+	}
+
+	@Test
+	public void refineSearchTest() throws Exception {
+		List<CodeLib2Element> eles = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			CodeLib2Element e = new CodeLib2Element().setKeywords("k" + i);
+			e.setContent(((i % 3 == 0 ? "alpha beta " : "gamma ") + i).getBytes());
+			e.setAttachments(new ArrayList<>());
+			eles.add(e);
+		}
+
+		Map<String, Integer> results = new ConcurrentHashMap<>();
+		CountDownLatch[] complete = new CountDownLatch[1];
+		SearchEngine engine = new SearchEngine(eles, new SearchEngine.ResultCatcher() {
+			@Override
+			public void onGetSearchResult(String keyword, long generation, CodeLib2Element ele, int matchDegree) {
+				results.put(ele.getId(), matchDegree);
+			}
+
+			@Override
+			public void onSearchComplete(String keyword, long generation, SearchHits result) {
+				complete[0].countDown();
+			}
+		});
+		try {
+			Assert.assertEquals(34, search(engine, results, complete, "alp").size());
+			Assert.assertEquals(search(eles, null, "alpha bet"), search(engine, results, complete, "alpha bet"));
+
+			// 未通知的原地修改不影响细化搜索, 说明只搜索了上次的结果
+			CodeLib2Element other = eles.get(1);
+			other.getAttachments().add(new CodeLib2Element.Attachment().setName("alpha beta.txt"));
+			Assert.assertFalse(search(engine, results, complete, "alpha beta").containsKey(other.getId()));
+
+			// 通知修改后全量搜索
+			other.setUpdateTime(Instant.now());
+			Assert.assertTrue(search(engine, results, complete, "alpha beta").containsKey(other.getId()));
+
+			// 放宽关键字时全量搜索
+			Assert.assertEquals(35, search(engine, results, complete, "alpha").size());
+			Assert.assertEquals(66, search(engine, results, complete, "gamma").size());
+
+			// 排除或限定字段的结果不用于细化
+			Assert.assertEquals(30, search(engine, results, complete, "alpha -k3").size());
+			Assert.assertTrue(search(engine, results, complete, "alpha beta").containsKey(eles.get(3).getId()));
+
+			// 元素增减时全量搜索
+			CodeLib2Element added = new CodeLib2Element().setKeywords("gamma ray");
+			eles.add(added);
+			Assert.assertTrue(search(engine, results, complete, "gamma r").containsKey(added.getId()));
+		} finally {
+			engine.close();
+		}
+	}
+
+	@Test
+	public void staleSearchTest() throws Exception {
+		List<CodeLib2Element> eles = new ArrayList<>();
+		for (int i = 0; i < 5000; i++) {
+			eles.add(new CodeLib2Element().setKeywords("item" + i));
+		}
+
+		Map<Long, Integer> completed = new ConcurrentHashMap<>();
+		Map<Long, Integer> hits = new ConcurrentHashMap<>();
+		CountDownLatch firstHit = new CountDownLatch(1);
+		CountDownLatch complete = new CountDownLatch(1);
+		SearchEngine engine = new SearchEngine(eles, new SearchEngine.ResultCatcher() {
+			@Override
+			public void onGetSearchResult(String keyword, long generation, CodeLib2Element ele, int matchDegree) {
+				hits.merge(generation, 1, Integer::sum);
+				firstHit.countDown();
+				if ("item".equals(keyword))
+					try {
+						Thread.sleep(1);
+					} catch (InterruptedException e) {
+					}
+			}
+
+			@Override
+			public void onSearchComplete(String keyword, long generation, SearchHits result) {
+				completed.put(generation, hits.getOrDefault(generation, 0));
+				complete.countDown();
+			}
+		});
+		try {
+			long slow = engine.addSearchTask("item");
+			Assert.assertTrue(firstHit.await(10, TimeUnit.SECONDS));
+			long fast = engine.addSearchTask("item4999");
+			Assert.assertTrue(fast > slow);
+			Assert.assertTrue(complete.await(10, TimeUnit.SECONDS));
+
+			Assert.assertFalse(completed.containsKey(slow));
+			Assert.assertTrue(hits.get(slow) < 5000);
+			Assert.assertEquals(1, (int) completed.get(fast));
+		} finally {
+			engine.close();
+		}
+	}
+
+	@Test
+	public void adaptiveDelayTest() throws Exception {
+		List<CodeLib2Element> eles = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			eles.add(new CodeLib2Element().setKeywords((i < 10 ? "slow" : "other") + i));
+		}
+
+		Map<Long, String> completed = new ConcurrentHashMap<>();
+		SearchEngine engine = new SearchEngine(eles, new SearchEngine.ResultCatcher() {
+			@Override
+			public void onGetSearchResult(String keyword, long generation, CodeLib2Element ele, int matchDegree) {
+				if ("slow".equals(keyword))
+					try {
+						Thread.sleep(20);
+					} catch (InterruptedException e) {
+					}
+			}
+
+			@Override
+			public void onSearchComplete(String keyword, long generation, SearchHits result) {
+				completed.put(generation, keyword);
+			}
+		});
+		try {
+			long deadline = System.currentTimeMillis() + 10_000;
+			long g = engine.addSearchTask("slow");
+			while (!completed.containsKey(g) && System.currentTimeMillis() < deadline)
+				Thread.sleep(5);
+			Assert.assertTrue(engine.getCostPerElement() > 0);
+
+			// 细化上次的少量结果, 立即执行
+			g = engine.addSearchTask("slow1");
+			while (!completed.containsKey(g) && System.currentTimeMillis() < deadline)
+				Thread.sleep(5);
+			Assert.assertEquals(0, engine.getLastDelay());
+
+			// 全量搜索按实测耗时延迟, 延迟期间的请求只执行最后一个
+			long first = engine.addSearchTask("oth");
+			g = engine.addSearchTask("other");
+			while (!completed.containsKey(g) && System.currentTimeMillis() < deadline)
+				Thread.sleep(5);
+			Assert.assertTrue(completed.containsKey(g));
+			Assert.assertTrue(engine.getLastDelay() > 0);
+			Assert.assertFalse(completed.containsKey(first));
+		} finally {
+			engine.close();
+		}
+	}
+
+	@Test
+	public void topHitsTest() throws Exception {
+		List<CodeLib2Element> eles = new ArrayList<>();
+		for (int i = 0; i < 3000; i++) {
+			CodeLib2Element e = new CodeLib2Element().setKeywords(i % 3 == 0 ? "other" : "match" + i);
+			StringBuilder content = new StringBuilder();
+			for (int j = i % 13; j > 0; j--) {
+				content.append("match ");
+			}
+			e.setContent(content.toString().getBytes());
+			e.setUpdateTime(Instant.ofEpochMilli(i));
+			eles.add(e);
+		}
+
+		Map<CodeLib2Element, Integer> degrees = new ConcurrentHashMap<>();
+		SearchHits[] hits = new SearchHits[1];
+		CountDownLatch complete = new CountDownLatch(1);
+		SearchEngine engine = new SearchEngine(eles, new SearchEngine.ResultCatcher() {
+			@Override
+			public void onGetSearchResult(String keyword, long generation, CodeLib2Element ele, int matchDegree) {
+				degrees.put(ele, matchDegree);
+			}
+
+			@Override
+			public void onSearchComplete(String keyword, long generation, SearchHits h) {
+				hits[0] = h;
+				complete.countDown();
+			}
+		});
+		try {
+			engine.addSearchTask("match");
+			Assert.assertTrue(complete.await(10, TimeUnit.SECONDS));
+		} finally {
+			engine.close();
+		}
+
+		List<CodeLib2Element> expected = new ArrayList<>(degrees.keySet());
+		expected.sort((a, b) -> degrees.get(a).equals(degrees.get(b))
+				? b.getUpdateTime().compareTo(a.getUpdateTime()) : degrees.get(b) - degrees.get(a));
+		Assert.assertEquals(expected.size(), hits[0].getTotal());
+		Assert.assertEquals(new HashSet<>(expected), new HashSet<>(hits[0].getAll()));
+		Assert.assertEquals(SearchEngine.TopHitsLimit, hits[0].getTop().size());
+		Assert.assertEquals(expected.subList(0, SearchEngine.TopHitsLimit), hits[0].getTop());
+		for (int i = 0; i < SearchEngine.TopHitsLimit; i++) {
+			Assert.assertEquals((int) degrees.get(hits[0].getTop().get(i)), hits[0].getMatchDegree(i));
+		}
+	}
+
+	@Test
+	public void bm25Test() throws Exception {
+		String filler = "lorem ipsum dolor sit amet consectetur ";
+		List<CodeLib2Element> eles = new ArrayList<>();
+		CodeLib2Element once = new CodeLib2Element().setKeywords("java");
+		once.setContent((filler + "alpha " + filler).getBytes());
+		CodeLib2Element twice = new CodeLib2Element().setKeywords("java");
+		twice.setContent((filler + "alpha alpha " + filler).getBytes());
+		CodeLib2Element longer = new CodeLib2Element().setKeywords("java");
+		longer.setContent((filler + "alpha " + filler + filler + filler + filler).getBytes());
+		CodeLib2Element keyword = new CodeLib2Element().setKeywords("alpha");
+		keyword.setContent(filler.getBytes());
+		CodeLib2Element attached = new CodeLib2Element().setKeywords("java");
+		attached.setContent(filler.getBytes());
+		attached.setAttachments(new ArrayList<>(Collections.singletonList(
+				new CodeLib2Element.Attachment().setName("note.txt").setBinaryContent(("alpha " + filler).getBytes("UTF-8")))));
+		eles.add(once);
+		eles.add(twice);
+		eles.add(longer);
+		eles.add(keyword);
+		eles.add(attached);
+		for (int i = 0; i < 20; i++) {
+			CodeLib2Element e = new CodeLib2Element().setKeywords("other" + i);
+			e.setContent(filler.getBytes());
+			eles.add(e);
+		}
+
+		Map<String, Integer> bm25 = search(eles, null, SearchEngine.Ranking.BM25, "alpha");
+		Assert.assertEquals(5, bm25.size());
+		Assert.assertTrue(bm25.get(twice.getId()) > bm25.get(once.getId()));
+		Assert.assertTrue(bm25.get(once.getId()) > bm25.get(longer.getId()));
+		Assert.assertTrue(bm25.get(keyword.getId()) > bm25.get(once.getId()));
+		// 文本附件计入正文
+		Assert.assertTrue(bm25.get(attached.getId()) > bm25.get(longer.getId()));
+		Assert.assertEquals(search(eles, null, "alpha").keySet(), bm25.keySet());
+		Assert.assertEquals(search(eles, null, "alpha java"), search(eles, null, SearchEngine.Ranking.Weighted, "alpha java"));
+
+		Bm25Scorer.Stats stats = Bm25Scorer.Stats.of(eles, CodeLib2Element.version());
+		Assert.assertEquals(eles.size(), stats.getCount());
+	}
+
+	/**
+	 * 两种匹配度计算方式每个结果的耗时.
+	 */
+	@Ignore
+	@Test
+	public void rankingBenchmarkTest() throws Exception {
+		Random random = new Random(3);
+		String[] words = {"public", "static", "void", "return", "class", "String", "value", "index", "map", "list"};
+		List<CodeLib2Element> eles = new ArrayList<>();
+		for (int i = 0; i < 50_000; i++) {
+			StringBuilder content = new StringBuilder();
+			for (int len = 200 + random.nextInt(4000); content.length() < len; ) {
+				content.append(words[random.nextInt(words.length)]).append(' ');
+			}
+			CodeLib2Element e = new CodeLib2Element().setKeywords("java, " + words[random.nextInt(words.length)]);
+			e.setContent(content.toString().getBytes());
+			eles.add(e);
+		}
+
+		for (int round = 0; round < 3; round++) {
+			for (SearchEngine.Ranking ranking : SearchEngine.Ranking.values()) {
+				long start = System.nanoTime();
+				int hits = search(eles, null, ranking, "value map").size();
+				long nanos = System.nanoTime() - start;
+				System.out.println(ranking + ": " + hits + " hits, " + nanos / Math.max(hits, 1) + " ns/hit");
+			}
+		}
+	}
+
+	@Test
+	public void projectionTest() throws Exception {
+		CodeLib2Element ele = new CodeLib2Element().setKeywords("Java, Snippet");
+		ele.setAttachments(new ArrayList<>(Collections.singletonList(
+				new CodeLib2Element.Attachment().setName("Note.TXT").setBinaryContent("Attached ÉCOLE text".getBytes("UTF-8")))));
+		SearchProjection p = ele.searchProjection();
+		Assert.assertSame(p, ele.searchProjection());
+		Assert.assertEquals(ele.getKeywords().toLowerCase(), new String(p.getKeywords(), "UTF-8"));
+		Assert.assertEquals("note.txt", new String(p.getAttachmentNames()[0], "UTF-8"));
+		Assert.assertEquals("attached école text", new String(p.getAttachmentTexts()[0], "UTF-8"));
+
+		List<CodeLib2Element> eles = new ArrayList<>(Collections.singletonList(ele));
+		Assert.assertEquals(1, search(eles, null, "école note").size());
+
+		// 修改后重建
+		ele.setKeywords("other");
+		Assert.assertNotSame(p, ele.searchProjection());
+		Assert.assertEquals(0, search(eles, null, "snippet").size());
+	}
+
+	@Test
+	public void regexSearchTest() throws Exception {
+		File lib = File.createTempFile("SearchEngineTest", ".zcl2");
+		File idx = new File(lib.getPath() + ".idx");
+		try {
+			List<CodeLib2Element> eles = new ArrayList<>();
+			for (int i = 0; i < 100; i++) {
+				CodeLib2Element e = new CodeLib2Element().setKeywords("java, snippet" + i);
+				e.setContent(("int count" + i + " = " + (i * 3) + ";").getBytes(CodeLib2Element.DefaultCharsetEncode));
+				eles.add(e);
+			}
+			SearchIndex index = new SearchIndex(lib);
+			index.refresh(eles).get();
+
+			Assert.assertEquals(10, search(eles, index, "/COUNT\\d = \\d+;/").size());
+			Assert.assertEquals(search(eles, null, "/count1\\d = 3\\d/"), search(eles, index, "/count1\\d = 3\\d/"));
+			Assert.assertEquals(4, search(eles, index, "/count1\\d = 3\\d/").size());
+			Assert.assertEquals(11, search(eles, index, "/^java, snippet(1|1\\d)$/").size());
+			Assert.assertEquals(0, search(eles, index, "/count(/").size());
+		} finally {
+			lib.delete();
+			idx.delete();
+		}
+	}
+
+	@Test
+	public void fieldQueryTest() throws Exception {
+		List<CodeLib2Element> eles = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			CodeLib2Element e = new CodeLib2Element().setKeywords((i % 2 == 0 ? "java" : "python") + ", demo" + i);
+			e.setContent(("print hello world " + (i % 3 == 0 ? "java" : "")).getBytes(CodeLib2Element.DefaultCharsetEncode));
+			e.setUpdateTime(Instant.ofEpochMilli(i));
+			eles.add(e);
+		}
+		eles.get(5).setAttachments(new ArrayList<>(Collections.singletonList(
+				new CodeLib2Element.Attachment().setName("java.txt").setBinaryContent("java note".getBytes("UTF-8")))));
+
+		Assert.assertEquals(14, search(eles, null, "java").size());
+		Assert.assertEquals(10, search(eles, null, "kw:java").size());
+		Assert.assertEquals(7, search(eles, null, "content:java").size());
+		Assert.assertEquals(1, search(eles, null, "att:java").size());
+		Assert.assertEquals(10, search(eles, null, "lang:java").size());
+		Assert.assertEquals(4, search(eles, null, "java -kw:java").size());
+		Assert.assertEquals(4, search(eles, null, "content:\"world java\" -lang:python").size());
+		Assert.assertEquals(0, search(eles, null, "\"hello java\"").size());
+		Assert.assertEquals(9, search(eles, null, "* -demo1 size:>0").size());
+		Assert.assertEquals(0, search(eles, null, "size:>big").size());
+		Assert.assertEquals(1, search(eles, null, "has:att").size());
+		Assert.assertEquals(8, search(eles, null, "* -has:att -demo1").size());
+		Assert.assertEquals(1, search(eles, null, "hello lang:python has:att").size());
+
+		// 只匹配关键字时不计内容的匹配度
+		Map<String, Integer> kw = search(eles, null, "kw:java");
+		Map<String, Integer> all = search(eles, null, "java");
+		Assert.assertTrue(all.get(eles.get(0).getId()) > kw.get(eles.get(0).getId()));
+		Assert.assertEquals(all.get(eles.get(2).getId()), kw.get(eles.get(2).getId()));
+	}
+
+	@Test
+	public void reorderedFacetTest() throws Exception {
+		List<CodeLib2Element> eles = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			CodeLib2Element e = new CodeLib2Element().setKeywords((i % 2 == 0 ? "java" : "python") + ", demo" + i);
+			e.setContent("print hello".getBytes(CodeLib2Element.DefaultCharsetEncode));
+			eles.add(e);
+		}
+		List<Map<String, Integer>> results = new ArrayList<>();
+		List<CountDownLatch> completes = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			results.add(new ConcurrentHashMap<>());
+			completes.add(new CountDownLatch(1));
+		}
+		SearchEngine engine = new SearchEngine(eles, new SearchEngine.ResultCatcher() {
+			@Override
+			public void onGetSearchResult(String keyword, long generation, CodeLib2Element ele, int matchDegree) {
+				results.get((int) generation - 1).put(ele.getId(), matchDegree);
+			}
+
+			@Override
+			public void onSearchComplete(String keyword, long generation, SearchHits result) {
+				completes.get((int) generation - 1).countDown();
+			}
+		});
+		try {
+			engine.addSearchTask("lang:java");
+			Assert.assertTrue(completes.get(0).await(10, TimeUnit.SECONDS));
+			Assert.assertEquals(10, results.get(0).size());
+
+			// 重排后沿用分面索引, 插入后重建
+			Collections.reverse(eles);
+			engine.addSearchTask("lang:java");
+			Assert.assertTrue(completes.get(1).await(10, TimeUnit.SECONDS));
+			Assert.assertEquals(results.get(0), results.get(1));
+
+			CodeLib2Element added = new CodeLib2Element().setKeywords("java, added");
+			added.setContent("print hello".getBytes(CodeLib2Element.DefaultCharsetEncode));
+			eles.add(0, added);
+			engine.addSearchTask("lang:java hello");
+			Assert.assertTrue(completes.get(2).await(10, TimeUnit.SECONDS));
+			Assert.assertEquals(11, results.get(2).size());
+			Assert.assertTrue(results.get(2).containsKey(added.getId()));
+		} finally {
+			engine.close();
+		}
+	}
+
+	@Test
+	public void keyTrigramsTest() throws Exception {
+		String enc = CodeLib2Element.DefaultCharsetEncode;
+		Assert.assertEquals(2, SearchEngine.keyTrigrams("ABCD".getBytes(enc), "abcd".getBytes(enc)).length);
+		Assert.assertEquals(0, SearchEngine.keyTrigrams("AB".getBytes(enc), "ab".getBytes(enc)).length);
+		Assert.assertEquals(0, SearchEngine.keyTrigrams("中文字".getBytes(enc), "中文字".getBytes(enc)).length);
+	}
+}
@@ -0,0 +1,164 @@
+package mysh.codelib2.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class TrigramIndexTest {
+
+	private static int gram(String s) {
+		byte[] b = s.getBytes();
+		return TrigramIndex.trigram(b[0], b[1], b[2]);
+	}
+
+	private static List<CodeLib2Element> elements() {
+		List<CodeLib2Element> eles = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			CodeLib2Element e = new CodeLib2Element().setKeywords("key" + i);
+			e.setContent(((i % 2 == 0 ? "Even Content " : "odd content ") + i).getBytes());
+			e.setUpdateTime(Instant.ofEpochMilli(1000 + i));
+			eles.add(e);
+		}
+		eles.get(7).setAttachments(new ArrayList<>(Collections.singletonList(
+				new CodeLib2Element.Attachment().setName("note.txt").setBinaryContent("attached XYZ text".getBytes()))));
+		eles.get(7).setUpdateTime(Instant.ofEpochMilli(1007));
+		return eles;
+	}
+
+	@Test
+	public void buildAndOpenTest() throws Exception {
+		File file = File.createTempFile("TrigramIndexTest", ".idx");
+		try {
+			List<CodeLib2Element> eles = elements();
+			TrigramIndex index = TrigramIndex.build(eles, null, file);
+
+			Assert.assertEquals(eles.size(), index.size());
+			Assert.assertEquals(TrigramIndex.checksum(eles), index.getChecksum());
+			// 大小写折叠
+			Assert.assertEquals(gram("EVE"), gram("eve"));
+
+			int[] even = index.postings(gram("eve"));
+			Assert.assertEquals(25, even.length);
+			for (int i = 0; i < even.length; i++) {
+				Assert.assertEquals(i * 2, even[i]);
+			}
+			Assert.assertTrue(Arrays.equals(new int[]{7}, index.postings(gram("xyz"))));
+			Assert.assertTrue(Arrays.equals(new int[]{7}, index.postings(gram("e.t"))));
+			Assert.assertEquals(0, index.postings(gram("qqq")).length);
+
+			TrigramIndex opened = TrigramIndex.open(file);
+			Assert.assertEquals(index.getChecksum(), opened.getChecksum());
+			Assert.assertTrue(Arrays.equals(even, opened.postings(gram("eve"))));
+			for (int i = 0; i < eles.size(); i++) {
+				Assert.assertEquals(i, opened.ordinalOf(eles.get(i).getId()));
+				Assert.assertTrue(opened.isIndexed(i, eles.get(i)));
+			}
+			Assert.assertEquals(-1, opened.ordinalOf("none"));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void incrementalBuildTest() throws Exception {
+		File file = File.createTempFile("TrigramIndexTest", ".idx");
+		try {
+			List<CodeLib2Element> eles = elements();
+			TrigramIndex base = TrigramIndex.build(eles, null, file);
+
+			eles.get(4).setContent("changed".getBytes());
+			eles.get(4).setUpdateTime(Instant.ofEpochMilli(5000));
+			Assert.assertFalse(base.isIndexed(4, eles.get(4)));
+			Assert.assertFalse(base.getChecksum() == TrigramIndex.checksum(eles));
+
+			eles.remove(0);
+			Collections.reverse(eles);
+			CodeLib2Element added = new CodeLib2Element().setKeywords("added");
+			added.setContent("Even newer".getBytes());
+			eles.add(added);
+
+			TrigramIndex index = TrigramIndex.build(eles, base, file);
+			TrigramIndex full = TrigramIndex.build(eles, null, File.createTempFile("TrigramIndexTest", ".idx"));
+			Assert.assertEquals(full.getChecksum(), index.getChecksum());
+			for (String g : Arrays.asList("eve", "odd", "cha", "add", "xyz", "key", "ey4")) {
+				Assert.assertTrue(g, Arrays.equals(full.postings(gram(g)), index.postings(gram(g))));
+			}
+			Assert.assertEquals(0, index.postings(gram("ey0")).length);
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void spilledBuildTest() throws Exception {
+		File dir = Files.createTempDirectory("TrigramIndexTest").toFile();
+		try {
+			List<CodeLib2Element> eles = elements();
+			File inMemory = new File(dir, "memory.idx");
+			File spilled = new File(dir, "spilled.idx");
+			TrigramIndex.build(eles, null, inMemory);
+			// 容量很小, 倒排项分多段写入临时文件再归并, 结果与全在内存中一致
+			TrigramIndex base = TrigramIndex.build(eles, null, spilled, 16);
+			Assert.assertTrue(Arrays.equals(Files.readAllBytes(inMemory.toPath()), Files.readAllBytes(spilled.toPath())));
+
+			// 增量建立时沿用的倒排项同样分段归并
+			eles.get(3).setContent("changed".getBytes());
+			eles.get(3).setUpdateTime(Instant.ofEpochMilli(5000));
+			Collections.reverse(eles);
+			TrigramIndex.build(eles, null, inMemory);
+			TrigramIndex.build(eles, base, spilled, 16);
+			Assert.assertTrue(Arrays.equals(Files.readAllBytes(inMemory.toPath()), Files.readAllBytes(spilled.toPath())));
+			Assert.assertEquals(0, dir.listFiles((d, name) -> name.endsWith(".run")).length);
+		} finally {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void replaceFailedTest() throws Exception {
+		File dir = Files.createTempDirectory("TrigramIndexTest").toFile();
+		// 目标是非空目录, 替换必然失败, 使用临时文件
+		File file = new File(dir, "lib.idx");
+		File blocker = new File(file, "x");
+		try {
+			Assert.assertTrue(blocker.getParentFile().mkdir() && blocker.createNewFile());
+			List<CodeLib2Element> eles = elements();
+			TrigramIndex first = TrigramIndex.build(eles, null, file);
+			int[] even = first.postings(gram("eve"));
+
+			// 再次建立不覆盖上次仍在使用的临时文件
+			eles.get(0).setContent("changed".getBytes());
+			TrigramIndex second = TrigramIndex.build(eles, first, file);
+			Assert.assertTrue(Arrays.equals(even, first.postings(gram("eve"))));
+			Assert.assertEquals(24, second.postings(gram("eve")).length);
+			Assert.assertEquals(1, dir.listFiles((d, name) -> name.endsWith(".writing")).length);
+		} finally {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			blocker.delete();
+			file.delete();
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void checksumTest() {
+		List<CodeLib2Element> eles = elements();
+		long checksum = TrigramIndex.checksum(eles);
+		Collections.shuffle(eles);
+		Assert.assertEquals(checksum, TrigramIndex.checksum(eles));
+		eles.get(0).setUpdateTime(Instant.ofEpochMilli(1));
+		Assert.assertFalse(checksum == TrigramIndex.checksum(eles));
+	}
+}
@@ -0,0 +1,64 @@
+package mysh.codelib2.ui;
+
+import mysh.codelib2.model.CodeLib2Element;
+import mysh.codelib2.model.LibJournal;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import javax.swing.*;
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class UIControllerTest {
+
+	@SuppressWarnings("unchecked")
+	private static <T> T field(Object o, String name) throws Exception {
+		Field f = o.getClass().getDeclaredField(name);
+		f.setAccessible(true);
+		return (T) f.get(o);
+	}
+
+	@Test
+	public void closeAfterFailedSaveTest() throws Exception {
+		Assume.assumeFalse(GraphicsEnvironment.isHeadless());
+
+		File dir = Files.createTempDirectory("UIControllerTest").toFile();
+		File lib = new File(dir, "lib.zcl2");
+		File journal = new File(lib.getPath() + ".journal");
+		try {
+			List<CodeLib2Element> eles = new ArrayList<>();
+			eles.add(new CodeLib2Element().setKeywords("k"));
+			new LibJournal(lib).saveFull(eles);
+
+			boolean[] closed = new boolean[1];
+			SwingUtilities.invokeAndWait(() -> {
+				try {
+					CodeLib2Main main = new CodeLib2Main();
+					main.openFile(lib);
+					UIController controller = field(main, "controller");
+					List<CodeLib2Element> opened = field(controller, "eles");
+					opened.get(0).setKeywords("changed");
+
+					// 变更日志被非空目录占用, 追加保存失败
+					Assert.assertTrue(journal.mkdir());
+					Assert.assertTrue(new File(journal, "x").createNewFile());
+					controller.uiSave();
+					closed[0] = main.doClose();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			});
+			Assert.assertFalse(closed[0]);
+		} finally {
+			new File(journal, "x").delete();
+			journal.delete();
+			lib.delete();
+			dir.delete();
+		}
+	}
+}